@@ -1,6 +1,10 @@
 # MIPS assembler code implementing YAPL predefined functions
 # to be used with the MARS simulator
 # $Id$
+#
+# Each procedure has two entry points (see BackendMIPS):
+# <name> expects arguments on the stack, <name>_reg expects
+# arguments in $a0 - $a3. None of them uses a stack frame.
 .data
 __EOL:
 	.asciiz	"\n"
@@ -13,31 +17,20 @@ __FALSE:
 # void writeint(int i)
 .globl writeint
 writeint:
-    # prolog
-    addi	$sp, $sp, -8
-    sw		$fp, 8($sp)
-    sw		$ra, 4($sp)
-    addi	$fp, $sp, 8
+    lw		$a0, 4($sp)		# load arg1
+.globl writeint_reg
+writeint_reg:
     # print_int syscall
-    lw		$a0, 4($fp)		# load arg1
     li		$v0, 1			# print_int
     syscall
-    # epilog
-    lw		$ra, 4($sp)
-    lw		$fp, 8($sp)
-    addi	$sp, $sp, 8
     jr		$ra
 	
 # void writebool(bool b)
 .globl writebool
 writebool:
-    # prolog
-    addi	$sp, $sp, -8
-    sw		$fp, 8($sp)
-    sw		$ra, 4($sp)
-    addi	$fp, $sp, 8
-    # print_int syscall
-    lw		$a0, 4($fp)		# load arg1
+    lw		$a0, 4($sp)		# load arg1
+.globl writebool_reg
+writebool_reg:
     beq		$a0, $zero, LL1
     la		$a0, __TRUE
     j		LL2
@@ -46,60 +39,35 @@ LL1:
 LL2:
     li		$v0, 4			# print_str
     syscall
-    # epilog
-    lw		$ra, 4($sp)
-    lw		$fp, 8($sp)
-    addi	$sp, $sp, 8
     jr		$ra
 	
 # void writeln()
 .globl writeln
+.globl writeln_reg
 writeln:
-    # prolog
-    addi	$sp, $sp, -8
-    sw		$fp, 8($sp)
-    sw		$ra, 4($sp)
-    addi	$fp, $sp, 8
+writeln_reg:
     la		$a0, __EOL
     li		$v0, 4			# print_str
     syscall
-    # epilog
-    lw		$ra, 4($sp)
-    lw		$fp, 8($sp)
-    addi	$sp, $sp, 8
     jr		$ra
 
 # void write(char *s)
 .globl write
 write:
-    # prolog
-    addi	$sp, $sp, -8
-    sw		$fp, 8($sp)
-    sw		$ra, 4($sp)
-    addi	$fp, $sp, 8
-    lw		$a0, 4($fp)		# load arg1
+    lw		$a0, 4($sp)		# load arg1
+.globl write_reg
+write_reg:
     li		$v0, 4			# print_str
     syscall
-    # epilog
-    lw		$ra, 4($sp)
-    lw		$fp, 8($sp)
-    addi	$sp, $sp, 8
     jr		$ra
 
 # int readint()
 .globl readint
+.globl readint_reg
 readint:
-    # prolog
-    addi	$sp, $sp, -8
-    sw		$fp, 8($sp)
-    sw		$ra, 4($sp)
-    addi	$fp, $sp, 8
+readint_reg:
     li		$v0, 5			# read_int
     syscall
-    # epilog
-    lw		$ra, 4($sp)
-    lw		$fp, 8($sp)
-    addi	$sp, $sp, 8
     jr		$ra
 	
 # End of predefined functions
@@ -0,0 +1,329 @@
+package yapl.ant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * ANT task evaluating all YAPL test cases of a test directory concurrently
+ * within the JVM running ANT.
+ * <p>
+ * Each <code>*.yapl</code> file is compiled by a shared instance of the
+ * reentrant compiler class (<code>YaplCompiler</code> of the compiler version
+ * under test, accessed by reflection so that this task does not depend on a
+ * particular version). The compiler output is written to
+ * <code>test.yapl.asm</code> and the compiler message to <code>test.yapl.log</code>,
+ * as done by the <code>compile-yapl</code> target.
+ * If <code>execute</code> is false, the compiler message is checked by
+ * {@link YaplBadMessageCondition}. Otherwise the generated code is executed
+ * by MARS (in a separate process) and its output, written to
+ * <code>test.yapl.execlog</code>, is compared to <code>test.yapl.true</code>.
+ * The optional attribute <code>options</code> passes compiler options
+ * (see {@link yapl.lib.CompilerOptions}), separated by white space.
+ * Options of a single test case may be appended by the file
+ * <code>test.yapl.options</code>, in the same format.
+ * </p>
+ * <pre>
+ * &lt;yapltest dir="testfiles/codegen_full" execute="true" marsjar="mars/mars.jar"
+ *     compiler="yapl.version.codegen.YaplCompiler"
+ *     predefinedsrc="..." predefinedasm="..." runtimelibsrc="..." runtimelibasm="..." gcasm="..."/&gt;
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class YaplTestTask extends Task
+{
+    /** Maximal execution time of a single MARS run in seconds. */
+    private static final int MarsTimeout = 60;
+
+    private File dir = null;
+    private boolean execute = false;
+    private File marsJar = null;
+    private String compilerClass = null;
+    private String predefinedSrc = null;
+    private String predefinedAsm = null;
+    private String runtimelibSrc = null;
+    private String runtimelibAsm = null;
+    private String gcAsm = null;
+    private String options = "";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean failOnError = false;
+
+    /** Compiler instance, its compile method and options, shared by all test cases. */
+    private Object compiler;
+    private Method compileMethod;
+    private Object compilerOptions;
+    private Class<?> optionsClass;
+
+    /** Outcome of a single test case. */
+    private static class Outcome
+    {
+        boolean passed;
+        String detail;
+        long nanos;
+    }
+
+    public void setDir(File dir)
+    {
+        this.dir = dir;
+    }
+
+    public void setExecute(boolean execute)
+    {
+        this.execute = execute;
+    }
+
+    public void setMarsJar(File marsJar)
+    {
+        this.marsJar = marsJar;
+    }
+
+    public void setCompiler(String compilerClass)
+    {
+        this.compilerClass = compilerClass;
+    }
+
+    public void setPredefinedSrc(String path)
+    {
+        this.predefinedSrc = path;
+    }
+
+    public void setPredefinedAsm(String path)
+    {
+        this.predefinedAsm = path;
+    }
+
+    public void setRuntimelibSrc(String path)
+    {
+        this.runtimelibSrc = path;
+    }
+
+    public void setRuntimelibAsm(String path)
+    {
+        this.runtimelibAsm = path;
+    }
+
+    public void setGcAsm(String path)
+    {
+        this.gcAsm = path;
+    }
+
+    public void setOptions(String options)
+    {
+        this.options = options;
+    }
+
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    public void setFailOnError(boolean failOnError)
+    {
+        this.failOnError = failOnError;
+    }
+
+    @Override
+    public void execute() throws BuildException
+    {
+        if (dir == null || compilerClass == null)
+            throw new BuildException("<yapltest>: 'dir' and 'compiler' attributes required!");
+        if (execute && marsJar == null)
+            throw new BuildException("<yapltest>: 'marsjar' attribute required if execute=\"true\"");
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".yapl"));
+        if (files == null)
+            throw new BuildException("cannot list directory " + dir);
+        Arrays.sort(files);
+        createCompiler();
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Outcome>> outcomes = new ArrayList<Future<Outcome>>();
+        for (final File yapl : files) {
+            outcomes.add(pool.submit(new Callable<Outcome>() {
+                public Outcome call()
+                {
+                    return evaluate(yapl);
+                }
+            }));
+        }
+        int npassed = 0;
+        try {
+            for (int i = 0; i < files.length; i++) {
+                Outcome o = outcomes.get(i).get();
+                log(String.format("%s: %s (%.1f ms)%s", files[i], o.passed ? "PASSED" : "FAILED",
+                        o.nanos / 1e6, o.detail == null ? "" : " - " + o.detail));
+                if (o.passed)
+                    npassed++;
+            }
+        } catch (InterruptedException e) {
+            throw new BuildException(e);
+        } catch (ExecutionException e) {
+            throw new BuildException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        log(String.format("Tests passed: %d/%d (%.1f s, %d threads)", npassed, files.length,
+                (System.nanoTime() - start) / 1e9, threads));
+        if (failOnError && npassed != files.length)
+            throw new BuildException((files.length - npassed) + " test(s) failed");
+    }
+
+    /** Instantiate the compiler class under test using the class loader of this task. */
+    private void createCompiler() throws BuildException
+    {
+        try {
+            Class<?> cls = Class.forName(compilerClass, true, getClass().getClassLoader());
+            Constructor<?> cons = cls.getConstructor(String.class, String.class, String.class, String.class,
+                    String.class);
+            compiler = cons.newInstance(predefinedSrc, predefinedAsm, runtimelibSrc, runtimelibAsm, gcAsm);
+            optionsClass = Class.forName("yapl.lib.CompilerOptions", true, cls.getClassLoader());
+            compilerOptions = createOptions(options);
+            compileMethod = cls.getMethod("compile", InputStream.class, PrintStream.class, optionsClass);
+        } catch (InvocationTargetException e) {
+            throw new BuildException("cannot instantiate compiler " + compilerClass + ": "
+                    + e.getCause().getMessage(), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new BuildException("cannot instantiate compiler " + compilerClass, e);
+        }
+    }
+
+    /** Create compiler options from white-space separated arguments. */
+    private Object createOptions(String options) throws ReflectiveOperationException
+    {
+        String[] args = options.trim().isEmpty() ? new String[0] : options.trim().split("\\s+");
+        return optionsClass.getConstructor(String[].class).newInstance((Object) args);
+    }
+
+    /** Return the compiler options of test case <code>yapl</code>, see <code>test.yapl.options</code>. */
+    private Object optionsFor(File yapl) throws IOException
+    {
+        File file = new File(yapl.getPath() + ".options");
+        if (!file.exists())
+            return compilerOptions;
+        try {
+            return createOptions(options + " " + new String(Files.readAllBytes(file.toPath())));
+        } catch (InvocationTargetException e) {
+            throw new BuildException(file + ": " + e.getCause().getMessage(), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /** Compile and evaluate a single test case. */
+    private Outcome evaluate(File yapl)
+    {
+        Outcome o = new Outcome();
+        long start = System.nanoTime();
+        String path = yapl.getPath();
+        try {
+            boolean compiledOK = compile(yapl, new File(path + ".asm"), new File(path + ".log"));
+            if (!execute) {
+                YaplBadMessageCondition cond = new YaplBadMessageCondition();
+                cond.setYapl(path);
+                cond.setLog(path + ".log");
+                o.passed = !cond.eval();
+            } else if (!compiledOK) {
+                o.detail = "compiler error, see " + yapl.getName() + ".log";
+            } else {
+                File execlog = new File(path + ".execlog");
+                if (!runMars(new File(path + ".asm"), execlog))
+                    o.detail = "MARS timed out";
+                else
+                    o.passed = sameText(execlog, new File(path + ".true"));
+            }
+        } catch (IOException e) {
+            o.detail = e.toString();
+        } catch (BuildException e) {
+            o.detail = e.getMessage();
+        }
+        o.nanos = System.nanoTime() - start;
+        return o;
+    }
+
+    /**
+     * Compile <code>yapl</code> to <code>asm</code>, writing the compiler message to <code>log</code>.
+     * @return <code>true</code> if compilation was successful.
+     */
+    private boolean compile(File yapl, File asm, File log) throws IOException
+    {
+        try (InputStream src = new FileInputStream(yapl);
+             PrintStream asmOut = new PrintStream(asm);
+             PrintStream logOut = new PrintStream(log)) {
+            Object result = compileMethod.invoke(compiler, src, asmOut, optionsFor(yapl));
+            result.getClass().getMethod("printMessage", PrintStream.class).invoke(result, logOut);
+            return (Boolean) result.getClass().getMethod("isOK").invoke(result);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new BuildException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * Execute <code>asm</code> by MARS, writing its output to <code>execlog</code>
+     * without the final line terminator.
+     * @return <code>false</code> if MARS did not terminate in time.
+     */
+    private boolean runMars(File asm, File execlog) throws IOException
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-jar", marsJar.getPath(), "nc", "sm", asm.getPath());
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(execlog);
+        Process p = pb.start();
+        p.getOutputStream().close();
+        try {
+            if (!p.waitFor(MarsTimeout, TimeUnit.SECONDS)) {
+                p.destroyForcibly();
+                return false;
+            }
+        } catch (InterruptedException e) {
+            p.destroyForcibly();
+            throw new BuildException(e);
+        }
+        String out = new String(Files.readAllBytes(execlog.toPath()));
+        if (out.endsWith("\n"))
+            out = out.substring(0, out.length() - (out.endsWith("\r\n") ? 2 : 1));
+        Files.write(execlog.toPath(), out.getBytes());
+        return true;
+    }
+
+    /** Compare two text files line by line, ignoring differences of line terminators. */
+    private static boolean sameText(File f1, File f2) throws IOException
+    {
+        try (BufferedReader r1 = new BufferedReader(new FileReader(f1));
+             BufferedReader r2 = new BufferedReader(new FileReader(f2))) {
+            String l1, l2;
+            do {
+                l1 = r1.readLine();
+                l2 = r2.readLine();
+                if (l1 == null ? l2 != null : !l1.equals(l2))
+                    return false;
+            } while (l1 != null);
+        }
+        return true;
+    }
+}
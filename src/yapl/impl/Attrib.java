@@ -1,5 +1,8 @@
 package yapl.impl;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import yapl.interfaces.Symbol;
 import yapl.lib.*;
 
@@ -17,7 +20,11 @@ public class Attrib implements yapl.interfaces.Attrib {
 	private boolean readonly = false;
 	private boolean global;
 	private int offset;
-	private byte register = -1;
+	private short register = -1;
+	private int relation;
+	private yapl.interfaces.Attrib rightOperand = null;
+	private List<String> falseLabels = null;
+	private List<String> trueLabels = null;
 	
 	/**
 	 * Create an attribute object of the given kind.
@@ -61,7 +68,8 @@ public class Attrib implements yapl.interfaces.Attrib {
 			break;
 		case Symbol.Variable:  // fall through
 		case Symbol.Parameter:
-			kind = MemoryOperand;
+			kind = (sym.getRegister() < 0) ? MemoryOperand : RegVariable;
+			register = sym.getRegister();
 			break;
 		case Symbol.Typename:
 			kind = RecordField;
@@ -137,13 +145,47 @@ public class Attrib implements yapl.interfaces.Attrib {
 	}
 
 	@Override
-	public byte getRegister() {
+	public short getRegister() {
 		return register;
 	}
 
 	@Override
-	public void setRegister(byte register) {
+	public void setRegister(short register) {
 		this.register = register;
 	}
 
+	@Override
+	public int getRelation() {
+		return relation;
+	}
+
+	@Override
+	public void setRelation(int relation) {
+		this.relation = relation;
+	}
+
+	@Override
+	public yapl.interfaces.Attrib getRightOperand() {
+		return rightOperand;
+	}
+
+	@Override
+	public void setRightOperand(yapl.interfaces.Attrib operand) {
+		rightOperand = operand;
+	}
+
+	@Override
+	public List<String> getFalseLabels() {
+		if (falseLabels == null)
+			falseLabels = new ArrayList<String>();
+		return falseLabels;
+	}
+
+	@Override
+	public List<String> getTrueLabels() {
+		if (trueLabels == null)
+			trueLabels = new ArrayList<String>();
+		return trueLabels;
+	}
+
 }
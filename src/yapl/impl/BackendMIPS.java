@@ -1,37 +1,91 @@
 package yapl.impl;
 
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
 
 import yapl.interfaces.BackendAsmRM;
+import yapl.lib.CompilerOptions;
+import yapl.lib.CompilerStatistics;
 
 /**
  * Implementation of the {@link BackendAsmRM} interface for generating
  * MIPS assembler code. The generated code is to be executed by the MIPS simulator
  * <a href="http://courses.missouristate.edu/KenVollmar/MARS/">MARS</a>.
  * <p>
+ * Instructions are not printed immediately, but collected as an in-memory
+ * instruction IR (see {@link MipsInstr}): one instruction list per procedure
+ * ({@link MipsProc}) and a separate list of static data directives.
+ * The assembler code is printed by {@link #finish()}.
+ * </p>
+ * <p>
  * The system property <code>yapl.predefined.asm</code> needs to be set
  * to the filename of the assembler code implementing the YAPL
  * predefined functions.
  * </p>
  * <p>
  * Activation record structure (stack frame) for function calls is given below. 
- * Note that the MIPS procedure call convention is violated in two aspects 
+ * Note that the MIPS procedure call convention is violated
  * (since we do not need to link with non-YAPL code):
- * (1) s-registers are treated as caller-saved, and 
- * (2) all procedure arguments are passed on the stack (as opposed to using 
- *     a-registers for the first 4 arguments).
+ * by default, all procedure arguments are passed on the stack (as opposed to using 
+ * a-registers for the first 4 arguments).
+ * </p>
+ * <p>
+ * If the optimization <code>regargs</code> is enabled, the first
+ * {@link #NumRegArgs} arguments are passed in <code>$a0 - $a3</code>
+ * instead, and the procedure is called at the label <em>name</em><code>_reg</code>.
+ * The caller still reserves the stack space of all arguments, where the
+ * callee may store register arguments. Each procedure label <em>name</em>
+ * remains an entry point for stack arguments: there, a stub loads the
+ * register arguments from the stack and falls through to <em>name</em><code>_reg</code>.
+ * The predefined procedures and the run-time library provide both entry points.
+ * </p>
+ * <p>
+ * Code is generated for virtual registers handed out by {@link #allocReg()},
+ * which are mapped to the {@link #usableRegs} by {@link MipsRegAlloc}
+ * before the code is printed. Values not fitting into registers are spilled
+ * to stack slots reserved on procedure entry. Before register allocation,
+ * small procedures may be inlined at their call sites by {@link MipsInline},
+ * and loops are optimized by {@link MipsLoopOpt}.
+ * Afterwards, tail calls release the stack frame before jumping to the callee
+ * (see {@link MipsTailCall}), and the stack frame layout below
+ * may be simplified by {@link MipsFrame} (leaf procedures,
+ * frame pointer omission, shrink-wrapping).
+ * </p>
+ * <p>
+ * If the optimization <code>heap</code> is enabled, records and arrays are
+ * allocated inline by advancing the heap pointer stored at {@link #heapPtr}
+ * within the current chunk of heap memory, which ends at {@link #heapEnd}.
+ * Only if the block does not fit, a new chunk of at least {@link #HeapChunk}
+ * bytes is requested by a single <code>sbrk</code> system call.
+ * Otherwise, each allocation is an <code>sbrk</code> system call.
+ * </p>
+ * <p>
+ * The opt-in optimization <code>gc</code> takes precedence: records and arrays
+ * are allocated by the mark-sweep garbage collector (see {@link MipsGcRuntime}),
+ * whose assembler code has to be passed to the constructor together with the
+ * run-time library, and which reclaims unreachable blocks. Each
+ * block is preceded by a header word describing its layout, global variables
+ * holding references are listed in the table <code>_gcRoots</code>, and the
+ * stack is scanned conservatively up to its address at program start.
+ * The parameter <code>gc.threshold</code> sets the minimal number of bytes
+ * allocated between two collections, emitted as data word
+ * <code>_gcMinThreshold</code>, and the part <code>gc.stats</code>
+ * prints heap and pause statistics at program exit if statistics have been
+ * requested (see {@link CompilerOptions#printStats()}), so that the output
+ * of the program is not changed otherwise.
  * </p>
  * <pre>
  * (stack, high addresses)
- * --- caller-saved registers: (order given by implementation)
- * 			$v0, $v1
- *          $a0 - $a3
- *          $t0 - $t9
- *          $s0 - $s7 (we *treat* them as caller-saved!)
+ * --- caller-saved registers live across the call (see {@link MipsRegAlloc})
+ * 			$t0 - $t9
  * --- procedure arguments:
  *          ...
  *          arg 2
@@ -40,6 +94,7 @@ import yapl.interfaces.BackendAsmRM;
  * --- callee-saved registers:
  * $fp ->   $fp        (<-- $sp of previous stack frame)
  *          $ra
+ * --- spill slots and callee-saved registers $s0 - $s6 (see {@link MipsRegAlloc})
  * --- local variables
  * $sp ->   (top of stack, MUST NOT be written to)
  * </pre>
@@ -52,36 +107,79 @@ public class BackendMIPS implements BackendAsmRM
 	private static final String StaticDataLabel = "staticData";
 	
 	/** Word size in bytes. */
-	private static final int WordSize = 4;
+	static final int WordSize = 4;
 	
 	/** Binary logarithm of {@link #WordSize}. */
-	private static final int LogWordSize = 2;
+	static final int LogWordSize = 2;
 	
+	/** Minimal size of a heap chunk in bytes. */
+	private static final int HeapChunk = 64 * 1024;
+
 	/** Maximal number of array dimensions. */
 	private static final int maxDims = 16;
 	
 	/** The register storing the static data base address. */
-	private static final byte RegStatic = 23;		// $s7
+	static final short RegStatic = 23;		// $s7
 	
 	/** The frame pointer register. */
-	private static final byte RegFP = 30;		    // $fp
+	static final short RegFP = 30;		    // $fp
 	
-	/** a0 register. */
-	private static final byte RegA0 = 4;
+	/** a0 register; the following registers up to $a3 hold register arguments. */
+	private static final short RegA0 = 4;
+
+	/** Maximal number of procedure arguments passed in registers. */
+	private static final int NumRegArgs = 4;
+
+	/** Suffix of procedure labels expecting arguments in registers. */
+	private static final String RegEntrySuffix = "_reg";
 	
 	/** v0 register. */
-	private static final byte RegV0 = 2;
+	static final short RegV0 = 2;
 	
 	/** Zero register. */
-	private static final byte RegZero = 0;
+	private static final short RegZero = 0;
+
+	/** The stack pointer register. */
+	static final short RegSP = 29;
+
+	/** The return address register. */
+	static final short RegRA = 31;
+
+	/**
+	 * Scratch register used within the instruction sequences of
+	 * {@link #mulConst}, {@link #divConst}, {@link #modConst},
+	 * {@link #branchIfCompareConst}, and tail calls; never allocated by {@link #allocReg()}.
+	 */
+	static final short RegTmp = 3;				// $v1
 	
-	/** Allocatable registers. */
-	private byte[] usableRegs =
+	/** Physical registers available to {@link MipsRegAlloc}. */
+	private short[] usableRegs =
 	{ 8, 9, 10, 11, 12, 13, 14, 15,
 	  16, 17, 18, 19, 20, 21, 22, 24, 25 };
 
 	/** The PrintStream where to send the assembler code to. */
 	private PrintStream out;
+
+	/** Assembler code injected before the generated code. */
+	private List<String> prelude = new ArrayList<String>();
+
+	/** Directives of the static data area. */
+	private List<MipsInstr> data = new ArrayList<MipsInstr>();
+
+	/** Procedures of the text segment, in program order. */
+	private List<MipsProc> procs = new ArrayList<MipsProc>();
+
+	/** The procedure currently being generated. */
+	private MipsProc proc = null;
+
+	/** Labels created so far, keyed by name. */
+	private HashMap<String, MipsLabel> labels = new HashMap<String, MipsLabel>();
+
+	/** Enabled optimizations. */
+	private CompilerOptions options;
+
+	/** Optimization statistics. */
+	private CompilerStatistics stats;
 	
 	/** The next free (non-negative) offset in the static data area. */
 	private int staticDataOffset = 0;
@@ -92,25 +190,53 @@ public class BackendMIPS implements BackendAsmRM
 	 */
 	private int stackOffset;
 	
-	/** The size of a procedure call frame on the stack in bytes. 
-	 * Includes caller-saved registers and procedure arguments.
-	 */
-	private int procFrameSize;
-	
-	/** Register allocation table. */
-	private boolean[] regsUsed = new boolean[32];
-	
-	/* Possible values of {@link #codeSegment}. */
-	public static final int SegmentNone = 0;
-	public static final int SegmentText = 1;
-	public static final int SegmentData = 2;
+	/** Registers saved by {@link #saveRegs(int)} and the size of the saved area. */
+	private static class SavedRegs {
+		final int frameSize;
+		final short[] regs;
+		final int[] serials;
+		final MipsProc.CallSaves saves = new MipsProc.CallSaves();
+		/** Virtual registers holding the register arguments, -1 if stored on stack. */
+		short[] args;
+		/** Number of arguments. */
+		int numArgs;
+		/** Stack pointer adjustment allocating the saved area, or <code>null</code>. */
+		MipsInstr push = null;
+
+		SavedRegs(int frameSize, short[] regs, int[] serials) {
+			this.frameSize = frameSize;
+			this.regs = regs;
+			this.serials = serials;
+		}
+	}
+
+	/** Procedure call frames being prepared (innermost first); calls may be nested in arguments. */
+	private Deque<SavedRegs> callFrames = new ArrayDeque<SavedRegs>();
+
+	/** The procedure call generated last, a tail call candidate (see {@link #tailCall(short)}). */
+	private SavedRegs lastCall = null;
+
+	/** Name of the procedure called by {@link #lastCall}. */
+	private String lastCallName;
+
+	/** Result register of {@link #lastCall}. */
+	private short lastCallReg;
+
+	/** Code size after {@link #lastCall}, to detect code generated in the meantime. */
+	private int lastCallEnd;
 	
-	/** Current code segment.
-	 * Possible values are: {@link #SegmentNone}, {@link #SegmentText},
-	 * {@link #SegmentData}.
-	 */
-	private int codeSegment = SegmentNone;
+	/** Virtual register allocation table, grown as needed. */
+	private boolean[] regsUsed = new boolean[2 * MipsRegAlloc.FirstVirtual];
+
+	/** Allocation serial number of each virtual register, to detect re-allocation. */
+	private int[] regSerials = new int[regsUsed.length];
+
+	/** One more than the highest virtual register allocated since {@link #freeAllReg()}. */
+	private int regsTop = MipsRegAlloc.FirstVirtual;
 
+	/** Number of virtual register allocations so far. */
+	private int nAllocs = 0;
+	
     /** Address of global variable storing the length of 1-dimensional arrays. */
     protected int dimAddr1;
     
@@ -123,6 +249,18 @@ public class BackendMIPS implements BackendAsmRM
     /** Current number of dimensions stored in array at {@link #dimAddr}. */
     protected int nDims;
 
+    /** Address of global variable storing the start address of free heap memory. */
+    protected int heapPtr;
+
+    /** Address of global variable storing the end address of the current heap chunk. */
+    protected int heapEnd;
+
+    /** Number of heap allocations generated by {@link #bumpAlloc(short, short, int)}. */
+    private int heapLabels = 0;
+
+    /** Static data offsets of global variables holding references, see {@link #addGlobalRoot(int)}. */
+    private List<Integer> gcRoots = new ArrayList<Integer>();
+
     /** Calculate the next word-aligned address greater or equal to
 	 * <code>addr</code>.
 	 */
@@ -134,78 +272,112 @@ public class BackendMIPS implements BackendAsmRM
 		return aligned;
 	}
 	
-	/** Emit <code>.text</code> or <code>.data</data> directive, 
-	 * if current code segment is different.
-	 * @param segment		one of {@link #SegmentNone}, {@link #SegmentText},
-	 *                      {@link #SegmentData}.
-	 */
-	private void ensureSegment(int segment)
+	/** Return the procedure currently being generated. */
+	private MipsProc currentProc()
 	{
-		if (codeSegment != segment) {
-			switch(segment) {
-			case SegmentText:
-				out.println(".text");
-				break;
-			case SegmentData:
-				out.println(".data");
-				break;
-			}
-			codeSegment = segment;
+		if (proc == null) {
+			proc = new MipsProc(null, false);
+			procs.add(proc);
 		}
+		return proc;
 	}
-	
+
+	/** Append an instruction to the current procedure. */
+	private void emit(MipsInstr instr)
+	{
+		currentProc().code.add(instr);
+	}
+
+	/** Start a new procedure (or the main program). */
+	private void startProc(String label, boolean isMain)
+	{
+		proc = new MipsProc(label(label), isMain);
+		procs.add(proc);
+		lastCall = null;
+		emit(MipsInstr.jump(MipsInstr.GLOBL, proc.label));
+		emit(MipsInstr.jump(MipsInstr.LABEL, proc.label));
+	}
+
+	/** Return the (unique) label object of the given name. */
+	MipsLabel label(String name)
+	{
+		MipsLabel label = labels.get(name);
+		if (label == null) {
+			label = new MipsLabel(name);
+			labels.put(name, label);
+		}
+		return label;
+	}
+
+	/** Emit <code>op $rd, $rs, $rt</code>. */
+	private void emitR(byte op, short rd, short rs, short rt)
+	{
+		emit(MipsInstr.r(op, rd, rs, rt));
+	}
+
     /**
      * Save used registers to stack.
      * The stack pointer is decreased by (<code>minWords</code> plus
      * the number of saved registers) words. The registers will be saved to
-     * high addresses of the allocated stack space.
+     * high addresses of the allocated stack space. Saves of registers
+     * not needed after the call are removed by {@link MipsRegAlloc}.
      * @param minWords    minimal number of words to allocate on stack.
-     * @return  the actual allocated stack space size in bytes.
+     * @return  the saved registers and the allocated stack space size in bytes.
      */
-    private int saveRegs(int minWords)
+    private SavedRegs saveRegs(int minWords)
     {
-        int words = minWords;
-        for (int i=0; i < usableRegs.length; i++) {
-            if (regsUsed[usableRegs[i]])
-                words++;
+        int n = 0;
+        short[] regs = new short[regsTop];
+        int[] serials = new int[regsTop];
+        for (int r = MipsRegAlloc.FirstVirtual; r < regsTop; r++) {
+            if (regsUsed[r]) {
+                regs[n] = (short) r;
+                serials[n++] = regSerials[r];
+            }
         }
-        int frameSize = words * WordSize;
+        int frameSize = (minWords + n) * WordSize;
+        SavedRegs saved = new SavedRegs(frameSize, Arrays.copyOf(regs, n), Arrays.copyOf(serials, n));
         if (frameSize > 0) {
             int offset = stackOffset;
             stackOffset -= frameSize;
-            out.println("    addi\t$sp, $sp, -"+ frameSize +"\t# saveRegs");
-            for (int i=0; i < usableRegs.length; i++) {
-                if (regsUsed[usableRegs[i]]) {
-                    out.println("    sw  \t$"+ usableRegs[i] +", "+ offset +"($fp)");
-                    offset -= WordSize;
-                }
+            saved.push = MipsInstr.i(MipsInstr.ADDI, RegSP, RegSP, -frameSize).withComment("saveRegs");
+            emit(saved.push);
+            for (int i=0; i < n; i++) {
+                MipsInstr store = MipsInstr.store(regs[i], offset, RegFP);
+                emit(store);
+                saved.saves.code.add(store);
+                offset -= WordSize;
             }
         }
-        return frameSize;
+        currentProc().callSaves.add(saved.saves);
+        return saved;
     }
     
     /**
-     * Restore used registers from stack.
-     * The number of bytes given by <code>freeStackSize</code> will be
-     * deallocated on the stack.
-     * @param freeStackSize     the number of bytes to deallocate on the stack;
-     *                          it must match the return value of the corresponding
+     * Restore registers saved by {@link #saveRegs(int)} from stack, and
+     * deallocate the stack space allocated there. Registers freed in the
+     * meantime are not restored.
+     * @param saved             the return value of the corresponding
      *                          {@link #saveRegs(int)} call.
      * @param dontLoad          number of single register NOT to load; specify -1 if all registers
      *                          in use should be loaded.
      */
-    private void restoreRegs(int freeStackSize, byte dontLoad)
+    private void restoreRegs(SavedRegs saved, short dontLoad)
     {
-        stackOffset += freeStackSize;
+        if (saved.frameSize == 0)
+            return;
+        stackOffset += saved.frameSize;
         int offset = stackOffset;
-        for (int i=0; i < usableRegs.length; i++) {
-            if (regsUsed[usableRegs[i]]) {
-                if (usableRegs[i] != dontLoad)
-                    out.println("    lw  \t$"+ usableRegs[i] +", "+ offset +"($fp)");
-                offset -= WordSize;
+        for (int i=0; i < saved.regs.length; i++) {
+            short r = saved.regs[i];
+            if (r != dontLoad && regsUsed[r] && regSerials[r] == saved.serials[i]) {
+                MipsInstr load = MipsInstr.load(MipsInstr.LW, r, offset, RegFP);
+                emit(load);
+                saved.saves.code.add(load);
             }
+            offset -= WordSize;
         }
-        out.println("    addi\t$sp, $sp, "+ freeStackSize +"\t# restoreRegs complete");
+        emit(MipsInstr.i(MipsInstr.ADDI, RegSP, RegSP, saved.frameSize).withComment("restoreRegs complete"));
     }
     
     /**
@@ -215,25 +387,31 @@ public class BackendMIPS implements BackendAsmRM
      */
     private void initRuntimeLib()
     {
-        byte reg = allocReg();
+        short reg = allocReg();
         loadConst(reg, maxDims);
         storeArrayDim(0, reg);
-        allocArray(reg);
+        allocArray(reg, false);
         storeWord(reg, dimAddr, true);
         freeReg(reg);
     }
 
     /**
-     * Inject content of assembler file into output stream.
-     * @param path           path to assembler file.
+     * Read the content of an assembler file, to be injected into the output
+     * stream by {@link #BackendMIPS(PrintStream, String[])}.
+     * @param path           path to assembler file (may be null or empty).
+     * @return the file content, or <code>null</code> if <code>path</code> is null or empty.
      * @throws IOException   if assembler file cannot be opened for reading.
      */
-    private void injectAsmFile(String path) throws IOException
+    public static String readAsmFile(String path) throws IOException
     {
+        if (path == null || path.length() == 0)
+            return null;
+        StringBuilder code = new StringBuilder();
         BufferedReader rd = new BufferedReader(new FileReader(path));
         for (String line = rd.readLine(); line != null; line = rd.readLine())
-            out.println(line);
+            code.append(line).append(System.lineSeparator());
         rd.close();
+        return code.toString();
     }
 
 	/** 
@@ -245,19 +423,53 @@ public class BackendMIPS implements BackendAsmRM
 	 * @throws IOException        if predefinedAsmFile or runtimelibAsmFile cannot be opened for reading.
 	 */
 	public BackendMIPS(PrintStream outstream, String predefinedAsmFile, String runtimelibAsmFile) throws IOException
+	{
+		this(outstream, new String[] { readAsmFile(predefinedAsmFile), readAsmFile(runtimelibAsmFile) });
+	}
+
+	/** 
+	 * Construct a new BackendMIPS instance writing to the given PrintStream.
+	 * The given (already loaded) assembler code, e.g. for predefined and runtime library
+	 * procedures, and some static data are emitted. This avoids re-reading assembler
+	 * files when compiling many programs in the same JVM.
+	 * @param outstream           where to write assembler code to.
+	 * @param asmCode             assembler code to inject, see {@link #readAsmFile(String)};
+	 *                            <code>null</code> elements are ignored.
+	 */
+	public BackendMIPS(PrintStream outstream, String[] asmCode)
+	{
+		this(outstream, asmCode, new CompilerOptions(), new CompilerStatistics());
+	}
+
+	/** 
+	 * Construct a new BackendMIPS instance writing to the given PrintStream,
+	 * applying the optimizations enabled by <code>options</code>.
+	 * @param outstream           where to write assembler code to.
+	 * @param asmCode             assembler code to inject, see {@link #readAsmFile(String)};
+	 *                            <code>null</code> elements are ignored.
+	 * @param options             enabled optimizations.
+	 * @param stats               where to collect optimization statistics.
+	 */
+	public BackendMIPS(PrintStream outstream, String[] asmCode, CompilerOptions options,
+			CompilerStatistics stats)
 	{
 		out = outstream;
+		this.options = options;
+		this.stats = stats;
 		freeAllReg();
-		comment("MIPS assembler code generated by the YAPL compiler");
-		comment("(C) 2011-2024 ITEC, Klagenfurt University (mario.taschwer@aau.at)");
-		if (predefinedAsmFile != null && predefinedAsmFile.length() > 0)
-		    injectAsmFile(predefinedAsmFile);
-		if (runtimelibAsmFile != null && runtimelibAsmFile.length() > 0)
-		    injectAsmFile(runtimelibAsmFile);
-		ensureSegment(SegmentData);
-		out.println(StaticDataLabel + ":");
+		prelude.add("# MIPS assembler code generated by the YAPL compiler" + System.lineSeparator());
+		prelude.add("# (C) 2011-2024 ITEC, Klagenfurt University (mario.taschwer@aau.at)" + System.lineSeparator());
+		for (String code : asmCode) {
+			if (code != null)
+				prelude.add(code);
+		}
 		this.dimAddr1 = allocStaticData(WordSize, "dimAddr1");
 		this.dimAddr = allocStaticData(WordSize, "dimAddr");
+		/* at fixed addresses, shared with the run-time library */
+		this.heapPtr = allocStaticData(WordSize, "heapPtr");
+		this.heapEnd = allocStaticData(WordSize, "heapEnd");
+		if (options.isEnabled("gc"))
+			addGlobalRoot(dimAddr);
 	}
 
     /**
@@ -273,6 +485,64 @@ public class BackendMIPS implements BackendAsmRM
         this(outstream, System.getProperty("yapl.predefined.asm"), System.getProperty("yapl.runtimelib.asm"));
     }
 
+    /** Allocate registers and apply the enabled optimization passes to all procedures. */
+    private void optimize()
+    {
+        if (options.isEnabled("inline"))
+            MipsInline.inline(procs, this, options, stats);
+        if (options.isEnabled("loops")) {
+            for (MipsProc p : procs)
+                MipsLoopOpt.optimize(p, options, stats);
+        }
+        for (MipsProc p : procs)
+            MipsRegAlloc.allocate(p, usableRegs, stats);
+        if (options.isEnabled("tailcall.other")) {
+            for (MipsProc p : procs)
+                MipsTailCall.optimize(p, stats);
+        }
+        if (options.isEnabled("frame")) {
+            for (MipsProc p : procs)
+                MipsFrame.optimize(p, options, stats);
+        }
+        if (options.isEnabled("peephole")) {
+            for (MipsProc p : procs)
+                MipsPeephole.optimize(p, options, stats);
+        }
+    }
+
+    /**
+     * Print the generated assembler code of a complete program: the injected
+     * assembler code, the static data area, and all procedures.
+     */
+    public void finish()
+    {
+        optimize();
+        if (options.isEnabled("gc")) {
+            data.add(MipsInstr.data(MipsInstr.ALIGN, LogWordSize));
+            data.add(MipsInstr.jump(MipsInstr.LABEL, label(MipsGcRuntime.Roots)));
+            data.add(MipsInstr.data(MipsInstr.WORD, gcRoots.size()).withComment("number of global roots"));
+            for (int addr : gcRoots)
+                data.add(MipsInstr.data(MipsInstr.WORD, addr));
+            data.add(MipsInstr.jump(MipsInstr.LABEL, label(MipsGcRuntime.MinThreshold)));
+            data.add(MipsInstr.data(MipsInstr.WORD,
+                    options.getParam("gc.threshold", MipsGcRuntime.DefaultThreshold)));
+        }
+        MipsPrinter.printProgram(out, prelude, label(StaticDataLabel), data, procs);
+        out.flush();
+    }
+
+    /**
+     * Print the text segment only, as needed for pre-compiled library code
+     * injected into other programs (see {@link #BackendMIPS(PrintStream, String[])}).
+     * The library code must not allocate static data.
+     */
+    public void finishLibrary()
+    {
+        optimize();
+        MipsPrinter.printText(out, procs);
+        out.flush();
+    }
+
     /*--- implementation constants ---*/
 
 	@Override
@@ -291,30 +561,43 @@ public class BackendMIPS implements BackendAsmRM
 	 * Mark all registers as free.
 	 */
 	private void freeAllReg() {
-		for (int r=0; r < regsUsed.length; r++)
+		for (int r=0; r < regsTop; r++)
 			regsUsed[r] = false;
+		regsTop = MipsRegAlloc.FirstVirtual;
 	}
 	
+    /**
+     * Allocate a virtual register, see {@link MipsRegAlloc}.
+     * @return the register number or -1 if all virtual registers are in use.
+     */
     @Override
-    public byte allocReg() {
-        byte r;
-        for (int i=0; i < usableRegs.length; i++) {
-            r = usableRegs[i];
-            if (!regsUsed[r]) {
-                regsUsed[r] = true;
-                return r;
+    public short allocReg() {
+        int r = MipsRegAlloc.FirstVirtual;
+        while (r < regsTop && regsUsed[r])
+            r++;
+        if (r > MipsRegAlloc.LastVirtual)
+            return -1;
+        if (r == regsTop) {
+            if (r == regsUsed.length) {
+                int length = Math.min(2 * regsUsed.length, MipsRegAlloc.LastVirtual + 1);
+                regsUsed = Arrays.copyOf(regsUsed, length);
+                regSerials = Arrays.copyOf(regSerials, length);
             }
+            regsTop++;
         }
-        return -1;
+        regsUsed[r] = true;
+        regSerials[r] = ++nAllocs;
+        currentProc().allocs.add(new int[] { currentProc().code.size(), r });
+        return (short) r;
     }
 
     @Override
-    public void freeReg(byte reg) {
+    public void freeReg(short reg) {
         regsUsed[reg] = false;
     }
 
     @Override
-    public byte zeroReg() {
+    public short zeroReg() {
         return 0;
     }
     
@@ -322,16 +605,12 @@ public class BackendMIPS implements BackendAsmRM
 
     @Override
 	public void comment(String comment) {
-		out.println("# " + comment);
+		emit(MipsInstr.commentLine(comment));
 	}
 
 	@Override
 	public void emitLabel(String label, String comment) {
-		out.print(label + ":");
-		if (comment != null) {
-			out.print("\t\t\t\t# " + comment);
-		}
-		out.println();
+		emit(MipsInstr.jump(MipsInstr.LABEL, label(label)).withComment(comment));
 	}
 
     /*--- compile-time memory allocation ---*/
@@ -342,20 +621,21 @@ public class BackendMIPS implements BackendAsmRM
 		 * must correspond to .align and .space directives
 		 */
 		int aligned = alignToWord(staticDataOffset);
-		ensureSegment(SegmentData);
-		out.println("    .align "+ LogWordSize);	// align next data on word boundary
-		out.println("    .space " + bytes + "\t# " + comment + " (offset = " + aligned + ")");
+		data.add(MipsInstr.data(MipsInstr.ALIGN, LogWordSize));	// align next data on word boundary
+		data.add(MipsInstr.data(MipsInstr.SPACE, bytes).withComment(comment + " (offset = " + aligned + ")"));
 		staticDataOffset = aligned + bytes;
 		return aligned;
 	}
 
+	@Override
+	public void addGlobalRoot(int addr) {
+		gcRoots.add(addr);
+	}
+
     @Override
     public int allocStringConstant(String string) {
         int addr = staticDataOffset;
-        int segment = codeSegment;
-        ensureSegment(SegmentData);
-        out.println("    .asciiz\t\"" + string + "\"\t# offset = " + addr);
-        ensureSegment(segment);
+        data.add(MipsInstr.asciiz(string, addr));
         staticDataOffset += string.length() + 1;    // w/o enclosing quotes, w/ null byte
         return addr;
     }
@@ -365,27 +645,36 @@ public class BackendMIPS implements BackendAsmRM
 		bytes = alignToWord(bytes);
 		stackOffset -= bytes;
 		int addr = stackOffset + WordSize;
-		out.print("    addi\t$sp, $sp, -" + bytes);
-		if (comment != null)
-			out.print("\t# " + comment + " (offset = " + addr + ")");
-		out.println();
+		emit(MipsInstr.i(MipsInstr.ADDI, RegSP, RegSP, -bytes)
+				.withComment(comment == null ? null : comment + " (offset = " + addr + ")"));
 		return addr;
 	}
 
     /*--- run-time memory allocation ---*/
 
     @Override
-	public void allocHeap(byte destReg, int bytes) {
-        int savedBytes = saveRegs(0);
+	public void allocHeap(short destReg, int bytes, int refBytes) {
+        if (options.isEnabled("gc")) {
+            short words = allocReg();
+            loadConst(words, bytes >> LogWordSize);
+            gcAlloc(destReg, words, MipsGcRuntime.recordHeader(bytes >> LogWordSize, refBytes >> LogWordSize));
+            freeReg(words);
+            return;
+        }
+        if (options.isEnabled("heap")) {
+            bumpAlloc(destReg, (short) -1, bytes);
+            return;
+        }
+        SavedRegs saved = saveRegs(0);
         loadConst(RegA0, bytes);
         loadConst(RegV0, 9);             // 'sbrk' system call code
-        out.println("    syscall\t\t# sbrk");
-        out.println("    move\t$"+ destReg +", $v0");
-        restoreRegs(savedBytes, destReg);
+        emit(MipsInstr.op(MipsInstr.SYSCALL).withComment("sbrk"));
+        emit(MipsInstr.move(destReg, RegV0));
+        restoreRegs(saved, destReg);
 	}
     
     @Override
-    public void storeArrayDim(int dim, byte lenReg)
+    public void storeArrayDim(int dim, short lenReg)
     {
         assert dim >= 0;
         // we assume that storeArrayDim() is called successively with
@@ -397,9 +686,9 @@ public class BackendMIPS implements BackendAsmRM
         }
         else if (dim > 0) {
             // store dimension length at dimAddr[dim]
-            byte baseReg = allocReg();
+            short baseReg = allocReg();
             loadWord(baseReg, dimAddr, true);
-            byte reg = allocReg();
+            short reg = allocReg();
             arrayOffsetConst(reg, baseReg, dim);
             storeWordReg(lenReg, reg);
             if (dim == 1) {
@@ -414,26 +703,61 @@ public class BackendMIPS implements BackendAsmRM
     }
 
 	@Override
-    public void allocArray(byte destReg)
+    public void allocArray(short destReg, boolean refElements)
     {
         assert nDims > 0;
-        if (nDims == 1) {
+        if (nDims == 1 && options.isEnabled("gc")) {
+            short words = allocReg();
+            loadWord(words, dimAddr1, true);
+            emit(MipsInstr.i(MipsInstr.ADDIU, words, words, 1));   // add array header size (1 word)
+            gcAlloc(destReg, words, MipsGcRuntime.arrayHeader(refElements, 1));
+            loadWord(words, dimAddr1, true);
+            storeWordReg(words, destReg);     // write array length
+            freeReg(words);
+        }
+        else if (nDims > 1 && options.isEnabled("gc")) {
+            // allocate rows recursively, each one with its own header
+            prepareProcCall(4);
+            short reg = allocReg();
+            loadWord(reg, dimAddr, true);
+            passArg(0, reg);
+            loadConst(reg, 0);               // dim = 0
+            passArg(1, reg);
+            loadConst(reg, nDims);
+            passArg(2, reg);
+            loadConst(reg, MipsGcRuntime.arrayHeader(refElements, 1));
+            passArg(3, reg);
+            freeReg(reg);
+            callProc(destReg, MipsGcRuntime.AllocArray);
+            stats.add("gc.allocs", 1);
+        }
+        else if (nDims == 1 && options.isEnabled("heap")) {
+            short size = allocReg();
+            loadWord(size, dimAddr1, true);
+            emit(MipsInstr.i(MipsInstr.ADDIU, size, size, 1));     // add array header size (1 word)
+            shiftLeft(size, size, LogWordSize);
+            bumpAlloc(destReg, size, 0);
+            loadWord(size, dimAddr1, true);
+            storeWordReg(size, destReg);     // write array length
+            freeReg(size);
+        }
+        else if (nDims == 1) {
             // allocate 1-dimensional array - MUST NOT call  _allocArray() in run-time library!
-            int savedBytes = saveRegs(0);
+            SavedRegs saved = saveRegs(0);
             loadWord(RegA0, dimAddr1, true);
             addConst(RegA0, RegA0, 1);       // add array header size (1 word)
             shiftLeft(RegA0, RegA0, LogWordSize);
             loadConst(RegV0, 9);             // 'sbrk' system call code
-            out.println("    syscall\t\t# sbrk");
+            emit(MipsInstr.op(MipsInstr.SYSCALL).withComment("sbrk"));
             loadWord(RegA0, dimAddr1, true);
             storeWordReg(RegA0, RegV0);      // write array length
-            out.println("    move\t$"+ destReg +", $v0");
-            restoreRegs(savedBytes, destReg);
+            emit(MipsInstr.move(destReg, RegV0));
+            restoreRegs(saved, destReg);
         }
         else if (nDims > 1) {
             // allocate multi-dimensional array - call _allocArray() in run-time library
             prepareProcCall(3);
-            byte reg = allocReg();
+            short reg = allocReg();
             loadWord(reg, dimAddr, true);
             passArg(0, reg);
             loadConst(reg, 0);               // dim = 0
@@ -445,71 +769,325 @@ public class BackendMIPS implements BackendAsmRM
         }
     }
 
+    @Override
+    public void allocDenseArray(short destReg, boolean refElements)
+    {
+        assert nDims > 0;
+        // a single block: nDims header words, then the product of all dimension lengths
+        if (options.isEnabled("gc")) {
+            short words = allocReg();
+            short dims = allocReg();
+            short len = allocReg();
+            loadWord(words, dimAddr1, true);
+            loadWord(dims, dimAddr, true);
+            for (int dim = 1; dim < nDims; dim++) {
+                loadWordReg(len, dims, (dim+1)*WordSize);
+                mul(words, words, len);
+            }
+            freeReg(dims);
+            emit(MipsInstr.i(MipsInstr.ADDIU, words, words, nDims));
+            gcAlloc(destReg, words, MipsGcRuntime.arrayHeader(refElements, nDims));
+            loadWord(len, dimAddr1, true);
+            storeWordReg(len, destReg);      // write dimension lengths
+            if (nDims > 1)
+                loadWord(words, dimAddr, true);
+            for (int dim = 1; dim < nDims; dim++) {
+                loadWordReg(len, words, (dim+1)*WordSize);
+                emit(MipsInstr.store(len, dim*WordSize, destReg));
+            }
+            freeReg(len);
+            freeReg(words);
+            return;
+        }
+        if (options.isEnabled("heap")) {
+            short size = allocReg();
+            short dims = allocReg();
+            short len = allocReg();
+            loadWord(size, dimAddr1, true);
+            loadWord(dims, dimAddr, true);
+            for (int dim = 1; dim < nDims; dim++) {
+                loadWordReg(len, dims, (dim+1)*WordSize);
+                mul(size, size, len);
+            }
+            emit(MipsInstr.i(MipsInstr.ADDIU, size, size, nDims));
+            shiftLeft(size, size, LogWordSize);
+            bumpAlloc(destReg, size, 0);
+            loadWord(len, dimAddr1, true);
+            storeWordReg(len, destReg);      // write dimension lengths
+            for (int dim = 1; dim < nDims; dim++) {
+                loadWordReg(len, dims, (dim+1)*WordSize);
+                emit(MipsInstr.store(len, dim*WordSize, destReg));
+            }
+            freeReg(len);
+            freeReg(dims);
+            freeReg(size);
+            return;
+        }
+        SavedRegs saved = saveRegs(0);
+        loadWord(RegA0, dimAddr1, true);
+        if (nDims > 1)
+            loadWord(RegV0, dimAddr, true);
+        for (int dim = 1; dim < nDims; dim++) {
+            loadWordReg(RegTmp, RegV0, (dim+1)*WordSize);
+            mul(RegA0, RegA0, RegTmp);
+        }
+        emit(MipsInstr.i(MipsInstr.ADDIU, RegA0, RegA0, nDims));
+        shiftLeft(RegA0, RegA0, LogWordSize);
+        loadConst(RegV0, 9);             // 'sbrk' system call code
+        emit(MipsInstr.op(MipsInstr.SYSCALL).withComment("sbrk"));
+        loadWord(RegA0, dimAddr1, true);
+        storeWordReg(RegA0, RegV0);      // write dimension lengths
+        if (nDims > 1)
+            loadWord(RegTmp, dimAddr, true);
+        for (int dim = 1; dim < nDims; dim++) {
+            loadWordReg(RegA0, RegTmp, (dim+1)*WordSize);
+            emit(MipsInstr.store(RegA0, dim*WordSize, RegV0));
+        }
+        emit(MipsInstr.move(destReg, RegV0));
+        restoreRegs(saved, destReg);
+    }
+
+    @Override
+    public void allocBitArray(short destReg)
+    {
+        assert nDims == 1;
+        // length word, followed by 32 elements per word
+        if (options.isEnabled("gc")) {
+            short words = allocReg();
+            loadWord(words, dimAddr1, true);
+            emit(MipsInstr.i(MipsInstr.ADDIU, words, words, 63));
+            emit(MipsInstr.i(MipsInstr.SRL, words, words, 5));
+            gcAlloc(destReg, words, MipsGcRuntime.bitArrayHeader());
+            loadWord(words, dimAddr1, true);
+            storeWordReg(words, destReg);     // write array length
+            freeReg(words);
+        }
+        else if (options.isEnabled("heap")) {
+            short size = allocReg();
+            loadWord(size, dimAddr1, true);
+            emit(MipsInstr.i(MipsInstr.ADDIU, size, size, 63));
+            emit(MipsInstr.i(MipsInstr.SRL, size, size, 5));
+            shiftLeft(size, size, LogWordSize);
+            bumpAlloc(destReg, size, 0);
+            loadWord(size, dimAddr1, true);
+            storeWordReg(size, destReg);     // write array length
+            freeReg(size);
+        }
+        else {
+            SavedRegs saved = saveRegs(0);
+            loadWord(RegA0, dimAddr1, true);
+            emit(MipsInstr.i(MipsInstr.ADDIU, RegA0, RegA0, 63));
+            emit(MipsInstr.i(MipsInstr.SRL, RegA0, RegA0, 5));
+            shiftLeft(RegA0, RegA0, LogWordSize);
+            loadConst(RegV0, 9);             // 'sbrk' system call code
+            emit(MipsInstr.op(MipsInstr.SYSCALL).withComment("sbrk"));
+            loadWord(RegA0, dimAddr1, true);
+            storeWordReg(RegA0, RegV0);      // write array length
+            emit(MipsInstr.move(destReg, RegV0));
+            restoreRegs(saved, destReg);
+        }
+        stats.add("bits.arrays", 1);
+    }
+
+    /**
+     * Allocate a zeroed heap block of <code>wordsReg</code> words, preceded by
+     * the given header word, by calling the garbage collector's allocation
+     * procedure (see {@link MipsGcRuntime}).
+     * @param destReg   register where to store the start address of the block.
+     */
+    private void gcAlloc(short destReg, short wordsReg, int header)
+    {
+        prepareProcCall(2);
+        passArg(0, wordsReg);
+        short reg = allocReg();
+        loadConst(reg, header);
+        passArg(1, reg);
+        freeReg(reg);
+        callProc(destReg, MipsGcRuntime.Alloc);
+        stats.add("gc.allocs", 1);
+    }
+
+    /**
+     * Allocate a heap block of <code>bytes</code> (if <code>sizeReg &lt; 0</code>)
+     * or <code>sizeReg</code> bytes by advancing the heap pointer stored at
+     * {@link #heapPtr}. If the block does not fit into the current heap chunk,
+     * a new chunk of at least {@link #HeapChunk} bytes is requested by an
+     * <code>sbrk</code> system call, and the block is allocated at its start.
+     * The rest of the old chunk is lost.
+     * @param destReg   register where to store the start address of the block.
+     */
+    private void bumpAlloc(short destReg, short sizeReg, int bytes)
+    {
+        String fits = (currentProc().label == null ? "" : currentProc().label.name) + "_heap" + heapLabels++;
+        short top = allocReg();
+        short end = allocReg();
+        loadWord(destReg, heapPtr, true);
+        if (sizeReg < 0)
+            emit(MipsInstr.i(MipsInstr.ADDIU, top, destReg, bytes));
+        else
+            emitR(MipsInstr.ADDU, top, destReg, sizeReg);
+        loadWord(end, heapEnd, true);
+        branchIfCompare(LessOrEqual, top, end, fits);
+        SavedRegs saved = saveRegs(0);
+        if (sizeReg < 0) {
+            loadConst(RegA0, Math.max(bytes, HeapChunk));
+        } else {
+            loadConst(RegA0, HeapChunk);
+            branchIfCompare(GreaterOrEqual, RegA0, sizeReg, fits + "_chunk");
+            move(RegA0, sizeReg);
+            emitLabel(fits + "_chunk", null);
+        }
+        loadConst(RegV0, 9);             // 'sbrk' system call code
+        emit(MipsInstr.op(MipsInstr.SYSCALL).withComment("sbrk"));
+        move(destReg, RegV0);
+        emitR(MipsInstr.ADDU, end, RegV0, RegA0);
+        storeWord(end, heapEnd, true);
+        restoreRegs(saved, destReg);
+        if (sizeReg < 0)
+            emit(MipsInstr.i(MipsInstr.ADDIU, top, destReg, bytes));
+        else
+            emitR(MipsInstr.ADDU, top, destReg, sizeReg);
+        emitLabel(fits, null);
+        storeWord(top, heapPtr, true);
+        freeReg(end);
+        freeReg(top);
+        stats.add("heap.inline", 1);
+    }
+
     /*--- load/store operations ---*/
 
     @Override
-	public void loadConst(byte reg, int value) {
+	public void loadConst(short reg, int value) {
 		/* pseudo-instruction 'li' supports 32-bit immediate operand */
-		out.println("    li  \t$" + reg + ", " + value);
+		emit(MipsInstr.li(reg, value));
+	}
+
+	@Override
+	public void move(short regDest, short regSrc) {
+		emit(MipsInstr.move(regDest, regSrc));
 	}
 
     @Override
-    public void loadAddress(byte reg, int addr, boolean isStatic)
+    public void loadAddress(short reg, int addr, boolean isStatic)
     {
-        int basereg = isStatic ? RegStatic : RegFP;
-        out.println("    la  \t$"+ reg +", "+ addr +"($"+ basereg +")");
+        emit(MipsInstr.load(MipsInstr.LA, reg, addr, isStatic ? RegStatic : RegFP));
     }
 
     @Override
-	public void loadWord(byte reg, int addr, boolean isStatic) {
-		int basereg = isStatic ? RegStatic : RegFP;
-		out.println("    lw  \t$" + reg + ", " + addr 
-					+ "($" + basereg + ")");
+	public void loadWord(short reg, int addr, boolean isStatic) {
+		emit(MipsInstr.load(MipsInstr.LW, reg, addr, isStatic ? RegStatic : RegFP));
 	}
 
     @Override
-	public void storeWord(byte reg, int addr, boolean isStatic) {
-		int basereg = isStatic ? RegStatic : RegFP;
-		out.println("    sw  \t$" + reg + ", " + addr 
-					+ "($" + basereg + ")");
+	public void storeWord(short reg, int addr, boolean isStatic) {
+		emit(MipsInstr.store(reg, addr, isStatic ? RegStatic : RegFP));
 	}
 
     @Override
-    public void loadWordReg(byte reg, byte addrReg)
+    public void loadWordReg(short reg, short addrReg)
     {
         loadWordReg(reg, addrReg, 0);
     }
 
     @Override
-	public void loadWordReg(byte reg, byte addrReg, int offset) 
+	public void loadWordReg(short reg, short addrReg, int offset) 
     {
-        out.println("    lw  \t$"+ reg +", "+ offset + "($"+ addrReg +")");
+        emit(MipsInstr.load(MipsInstr.LW, reg, offset, addrReg));
 	}
 
 	@Override
-    public void storeWordReg(byte reg, int addrReg)
+    public void storeWordReg(short reg, int addrReg)
+    {
+        emit(MipsInstr.store(reg, 0, (short) addrReg));
+    }
+
+    @Override
+    public void loadByteReg(short reg, short addrReg)
+    {
+        emit(MipsInstr.load(MipsInstr.LB, reg, 0, addrReg));
+    }
+
+    @Override
+    public void storeByteReg(short reg, short addrReg)
+    {
+        emit(MipsInstr.store(MipsInstr.SB, reg, 0, addrReg));
+    }
+
+    @Override
+    public void loadBitReg(short reg, short addrReg, short bit)
+    {
+        loadWordReg(reg, addrReg);
+        emitR(MipsInstr.SRLV, reg, reg, bit);
+        emit(MipsInstr.i(MipsInstr.ANDI, reg, reg, 1));
+    }
+
+    @Override
+    public void storeBitReg(short reg, short addrReg, short bit)
     {
-        out.println("    sw  \t$"+ reg +", 0($"+ addrReg +")");
+        // word := word + ((value - old bit) << bit), without branches
+        short word = allocReg();
+        short diff = allocReg();
+        loadWordReg(word, addrReg);
+        emitR(MipsInstr.SRLV, diff, word, bit);
+        emit(MipsInstr.i(MipsInstr.ANDI, diff, diff, 1));
+        emitR(MipsInstr.SUBU, diff, reg, diff);
+        emitR(MipsInstr.SLLV, diff, diff, bit);
+        emitR(MipsInstr.ADDU, word, word, diff);
+        storeWordReg(word, addrReg);
+        freeReg(diff);
+        freeReg(word);
     }
 
     @Override
-	public void arrayOffset(byte dest, byte baseAddr, byte index) {
-    	// add header (1 word)
-    	addConst(index, index, 1);
+	public void arrayOffset(short dest, short baseAddr, short index) {
+    	// add header (1 word); address arithmetic does not trap (see MipsLoopOpt)
+    	emit(MipsInstr.i(MipsInstr.ADDIU, index, index, 1));
         shiftLeft(index, index, LogWordSize);
-        add(dest, baseAddr, index);
+        emitR(MipsInstr.ADDU, dest, baseAddr, index);
 	}
 
-	private void arrayOffsetConst(byte dest, byte baseAddr, int index) {
+    @Override
+	public void arrayOffset(short dest, short baseAddr, short index, int dims) {
+    	// skip header of dimension lengths, as arrayOffset(byte, byte, byte)
+    	emit(MipsInstr.i(MipsInstr.ADDIU, index, index, dims));
+        shiftLeft(index, index, LogWordSize);
+        emitR(MipsInstr.ADDU, dest, baseAddr, index);
+	}
+
+    @Override
+    public void bitArrayOffset(short dest, short bit, short baseAddr, short index)
+    {
+        emit(MipsInstr.i(MipsInstr.ANDI, bit, index, 31));
+        emit(MipsInstr.i(MipsInstr.SRA, index, index, 5));
+        arrayOffset(dest, baseAddr, index);
+    }
+
+    @Override
+    public void arrayIndex(short index, short baseAddr, int dim, short subIndex)
+    {
+        short len = allocReg();           // a virtual register, such that MipsLoopOpt may hoist the load
+        loadWordReg(len, baseAddr, dim*WordSize);
+        mul(index, index, len);
+        emitR(MipsInstr.ADDU, index, index, subIndex);
+        freeReg(len);
+    }
+
+	private void arrayOffsetConst(short dest, short baseAddr, int index) {
 		addConst(dest, baseAddr, (index+1)*WordSize);
 	}
 
     @Override
-    public void arrayLength(byte dest, byte baseAddr)
+    public void arrayLength(short dest, short baseAddr)
     {
         loadWordReg(dest, baseAddr);
     }
 
+    @Override
+    public void arrayLength(short dest, short baseAddr, int dim)
+    {
+        loadWordReg(dest, baseAddr, dim*WordSize);
+    }
+
     /*--- run-time I/O operations ---*/
 
     @Override
@@ -517,55 +1095,219 @@ public class BackendMIPS implements BackendAsmRM
     {
         // call predefined procedure void write(char *s)
         prepareProcCall(1);
-        loadAddress(RegA0, addr, true);
-        passArg(0, RegA0);
-        callProc((byte) -1, "write");
+        short reg = allocReg();
+        loadAddress(reg, addr, true);
+        passArg(0, reg);
+        freeReg(reg);
+        callProc((short) -1, "write");
     }
 
     /*--- arithmetic operations ---*/
 
     @Override
-    public void neg(byte regDest, byte regX)
+    public void neg(short regDest, short regX)
     {
         sub(regDest, RegZero, regX);
     }
 
     @Override
-    public void add(byte regDest, byte regX, byte regY)
+    public void add(short regDest, short regX, short regY)
     {
-        out.println("    add \t$" + regDest + ", $" + regX + ", $" + regY);
+        emitR(MipsInstr.ADD, regDest, regX, regY);
     }
 
     @Override
-	public void addConst(byte regDest, byte regX, int value)
+	public void addConst(short regDest, short regX, int value)
     {
-        out.println("    addi\t$"+ regDest +", $"+ regX +", "+ value);
+        emit(MipsInstr.i(MipsInstr.ADDI, regDest, regX, value));
     }
     
     @Override
-    public void sub(byte regDest, byte regX, byte regY)
+    public void sub(short regDest, short regX, short regY)
     {
-        out.println("    sub \t$" + regDest + ", $" + regX + ", $" + regY);
+        emitR(MipsInstr.SUB, regDest, regX, regY);
     }
 
     @Override
-    public void mul(byte regDest, byte regX, byte regY)
+    public void mul(short regDest, short regX, short regY)
     {
-        out.println("    mul \t$" + regDest + ", $" + regX + ", $" + regY);
+        emitR(MipsInstr.MUL, regDest, regX, regY);
     }
     
     @Override
-    public void div(byte regDest, byte regX, byte regY)
+    public void div(short regDest, short regX, short regY)
     {
-        out.println("    div \t$" + regX + ", $" + regY);
-        out.println("    mflo\t$" + regDest);
+        emit(MipsInstr.div(regX, regY));
+        emit(MipsInstr.mfx(MipsInstr.MFLO, regDest));
     }
 
     @Override
-    public void mod(byte regDest, byte regX, byte regY)
+    public void mod(short regDest, short regX, short regY)
     {
-        out.println("    div \t$" + regX + ", $" + regY);
-        out.println("    mfhi\t$" + regDest);
+        emit(MipsInstr.div(regX, regY));
+        emit(MipsInstr.mfx(MipsInstr.MFHI, regDest));
+    }
+
+    @Override
+    public void mulConst(short regDest, short regX, int value)
+    {
+        long abs = Math.abs((long) value);
+        int p = 63 - Long.numberOfLeadingZeros(abs);
+        if (value == 0) {
+            emit(MipsInstr.li(regDest, 0));
+            return;
+        } else if (abs == 1L << p) {
+            // power of 2
+            if (p == 0)
+                emit(MipsInstr.move(regDest, regX));
+            else
+                shiftLeft(regDest, regX, p);
+        } else if (Long.bitCount(abs) == 2) {
+            // 2^p + 2^q
+            int q = Long.numberOfTrailingZeros(abs);
+            shiftLeft(RegTmp, regX, p);
+            if (q > 0) {
+                shiftLeft(regDest, regX, q);
+                regX = regDest;
+            }
+            emitR(MipsInstr.ADDU, regDest, RegTmp, regX);
+        } else if (Long.bitCount(abs + (abs & -abs)) == 1) {
+            // 2^(p+1) - 2^q
+            int q = Long.numberOfTrailingZeros(abs);
+            shiftLeft(RegTmp, regX, p + 1);
+            if (q > 0) {
+                shiftLeft(regDest, regX, q);
+                regX = regDest;
+            }
+            emitR(MipsInstr.SUBU, regDest, RegTmp, regX);
+        } else {
+            emit(MipsInstr.li(RegTmp, value));
+            mul(regDest, regX, RegTmp);
+            return;
+        }
+        if (value < 0)
+            emitR(MipsInstr.SUBU, regDest, RegZero, regDest);
+    }
+
+    @Override
+    public void divConst(short regDest, short regX, int value)
+    {
+        long abs = Math.abs((long) value);
+        int k = 63 - Long.numberOfLeadingZeros(abs);
+        if (value == 0) {
+            emit(MipsInstr.li(RegTmp, value));
+            div(regDest, regX, RegTmp);
+            return;
+        } else if (abs == 1L << k) {
+            if (k == 0) {
+                emit(MipsInstr.move(regDest, regX));
+            } else {
+                // round towards zero: add 2^k - 1 to negative dividends
+                roundingBias(regX, k);
+                emitR(MipsInstr.ADDU, RegTmp, regX, RegTmp);
+                emit(MipsInstr.i(MipsInstr.SRA, regDest, RegTmp, k));
+            }
+        } else {
+            // multiply by magic number, see H. S. Warren: Hacker's Delight, ch. 10
+            int[] magic = magicNumber(value);
+            emit(MipsInstr.li(RegTmp, magic[0]));
+            emit(MipsInstr.mult(regX, RegTmp));
+            emit(MipsInstr.mfx(MipsInstr.MFHI, RegTmp));
+            if (value > 0 && magic[0] < 0)
+                emitR(MipsInstr.ADDU, RegTmp, RegTmp, regX);
+            else if (value < 0 && magic[0] > 0)
+                emitR(MipsInstr.SUBU, RegTmp, RegTmp, regX);
+            if (magic[1] > 0)
+                emit(MipsInstr.i(MipsInstr.SRA, RegTmp, RegTmp, magic[1]));
+            // add 1 to negative quotients
+            emit(MipsInstr.i(MipsInstr.SRL, regDest, RegTmp, 31));
+            emitR(MipsInstr.ADDU, regDest, regDest, RegTmp);
+            return;
+        }
+        if (value < 0)
+            emitR(MipsInstr.SUBU, regDest, RegZero, regDest);
+    }
+
+    @Override
+    public void modConst(short regDest, short regX, int value)
+    {
+        long abs = Math.abs((long) value);
+        int k = 63 - Long.numberOfLeadingZeros(abs);
+        if (value == 0) {
+            emit(MipsInstr.li(RegTmp, value));
+            mod(regDest, regX, RegTmp);
+        } else if (abs == 1L << k) {
+            if (k == 0) {
+                emit(MipsInstr.li(regDest, 0));
+            } else {
+                // regX - (regX / 2^k) * 2^k
+                roundingBias(regX, k);
+                emitR(MipsInstr.ADDU, RegTmp, regX, RegTmp);
+                emit(MipsInstr.i(MipsInstr.SRA, RegTmp, RegTmp, k));
+                shiftLeft(RegTmp, RegTmp, k);
+                emitR(MipsInstr.SUBU, regDest, regX, RegTmp);
+            }
+        } else {
+            // regX - (regX / value) * value, computing the quotient into a free register
+            short q = allocReg();
+            if (q < 0) {
+                emit(MipsInstr.li(RegTmp, value));
+                mod(regDest, regX, RegTmp);
+                return;
+            }
+            divConst(q, regX, value);
+            mulConst(q, q, value);
+            emitR(MipsInstr.SUBU, regDest, regX, q);
+            freeReg(q);
+        }
+    }
+
+    /**
+     * Load <code>2^k - 1</code> into {@link #RegTmp} if <code>regX</code> is
+     * negative, 0 otherwise (<code>1 &lt;= k &lt;= 31</code>).
+     */
+    private void roundingBias(short regX, int k)
+    {
+        if (k == 1) {
+            emit(MipsInstr.i(MipsInstr.SRL, RegTmp, regX, 31));
+        } else {
+            emit(MipsInstr.i(MipsInstr.SRA, RegTmp, regX, k - 1));
+            emit(MipsInstr.i(MipsInstr.SRL, RegTmp, RegTmp, 32 - k));
+        }
+    }
+
+    /**
+     * Compute the magic number and shift amount for signed division by
+     * <code>d</code>, where <code>|d| &gt;= 2</code> is not a power of 2
+     * (H. S. Warren: Hacker's Delight, 2nd ed., figure 10-1).
+     * @return array <code>{ magic, shift }</code>.
+     */
+    static int[] magicNumber(int d)
+    {
+        final long two31 = 0x80000000L;
+        long ad = Math.abs((long) d);
+        long t = two31 + (d >>> 31);
+        long anc = t - 1 - t % ad;		// absolute value of nc
+        int p = 31;
+        long q1 = two31 / anc, r1 = two31 - q1 * anc;
+        long q2 = two31 / ad, r2 = two31 - q2 * ad;
+        long delta;
+        do {
+            p++;
+            q1 = 2 * q1; r1 = 2 * r1;
+            if (r1 >= anc) {
+                q1++;
+                r1 -= anc;
+            }
+            q2 = 2 * q2; r2 = 2 * r2;
+            if (r2 >= ad) {
+                q2++;
+                r2 -= ad;
+            }
+            delta = ad - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+        int magic = (int) (q2 + 1);
+        return new int[] { (d < 0) ? -magic : magic, p - 32 };
     }
 
     /**
@@ -575,65 +1317,96 @@ public class BackendMIPS implements BackendAsmRM
      * @param regSrc     source register.
      * @param numBits    number of bits to shift.
      */
-    private void shiftLeft(byte regDest, byte regSrc, int numBits)
+    private void shiftLeft(short regDest, short regSrc, int numBits)
     {
-        out.println("    sll \t$"+ regDest +", $"+ regSrc +", "+ numBits);
+        emit(MipsInstr.i(MipsInstr.SLL, regDest, regSrc, numBits));
     }
 
     /*--- comparison operations ---*/
 
     @Override
-    public void isLess(byte regDest, byte regX, byte regY)
+    public void isLess(short regDest, short regX, short regY)
     {
-        out.println("    slt \t$" + regDest + ", $" + regX + ", $" + regY);
+        emitR(MipsInstr.SLT, regDest, regX, regY);
     }
     
     @Override
-    public void isLessOrEqual(byte regDest, byte regX, byte regY)
+    public void isLessOrEqual(short regDest, short regX, short regY)
     {
-        out.println("    sle \t$" + regDest + ", $" + regX + ", $" + regY);
+        emitR(MipsInstr.SLE, regDest, regX, regY);
     }
     
     @Override
-    public void isEqual(byte regDest, byte regX, byte regY)
+    public void isEqual(short regDest, short regX, short regY)
     {
-        out.println("    seq \t$" + regDest + ", $" + regX + ", $" + regY);
+        emitR(MipsInstr.SEQ, regDest, regX, regY);
     }
 
     /*--- logical operations ---*/
 
     @Override
-    public void not(byte regDest, byte regSrc)
+    public void not(short regDest, short regSrc)
     {
-        out.println("    xori\t$" + regDest + ", $" + regSrc + ", 1");
+        emit(MipsInstr.i(MipsInstr.XORI, regDest, regSrc, 1));
     }
     
     @Override
-    public void and(byte regDest, byte regX, byte regY)
+    public void and(short regDest, short regX, short regY)
     {
-        out.println("    and \t$" + regDest + ", $" + regX + ", $" + regY);
+        emitR(MipsInstr.AND, regDest, regX, regY);
     }
 
     @Override
-    public void or(byte regDest, byte regX, byte regY)
+    public void or(short regDest, short regX, short regY)
     {
-        out.println("    or  \t$" + regDest + ", $" + regX + ", $" + regY);
+        emitR(MipsInstr.OR, regDest, regX, regY);
     }
 
     /*--- jump instructions ---*/
 
     @Override
-    public void branchIf(byte reg, boolean value, String label) {
-        if (value) {
-            out.println("    bnez\t$" + reg + ", "+ label);
+    public void branchIf(short reg, boolean value, String label) {
+        emit(MipsInstr.branch(value ? MipsInstr.BNEZ : MipsInstr.BEQZ, reg, label(label)));
+    }
+
+    /** Compare-and-branch opcodes indexed by relation (see {@link BackendAsmRM}). */
+    private static final byte[] BranchOps = { MipsInstr.BLT, MipsInstr.BLE,
+            MipsInstr.BGT, MipsInstr.BGE, MipsInstr.BEQ, MipsInstr.BNE };
+
+    @Override
+    public void branchIfCompare(int relation, short regX, short regY, String label) {
+        emit(MipsInstr.branch(BranchOps[relation], regX, regY, label(label)));
+    }
+
+    @Override
+    public void branchIfCompareConst(int relation, short regX, int value, String label) {
+        if (value == 0) {
+            branchIfCompare(relation, regX, RegZero, label);
+            return;
+        }
+        /* x <= c  <=>  x < c+1,  x > c  <=>  x >= c+1 */
+        if ((relation == LessOrEqual || relation == Greater) && value != Integer.MAX_VALUE) {
+            relation = (relation == LessOrEqual) ? Less : GreaterOrEqual;
+            value++;
+        }
+        if ((relation == Less || relation == GreaterOrEqual)
+                && value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(MipsInstr.i(MipsInstr.SLTI, RegTmp, regX, value));
+            branchIf(RegTmp, relation == Less, label);
         } else {
-            out.println("    beqz\t$" + reg + ", "+ label);
+            emit(MipsInstr.li(RegTmp, value));
+            branchIfCompare(relation, regX, RegTmp, label);
         }
     }
 
     @Override
     public void jump(String label) {
-        out.println("    j   \t" + label);
+        emit(MipsInstr.jump(MipsInstr.J, label(label)));
+    }
+
+    @Override
+    public void markLoop(String startLabel, String endLabel) {
+        currentProc().loops.add(new MipsProc.Loop(label(startLabel), label(endLabel)));
     }
 
     /* --- procedure calls --- */
@@ -641,13 +1414,17 @@ public class BackendMIPS implements BackendAsmRM
     @Override
     public void enterMain()
     {
-        ensureSegment(SegmentText);
-        out.println(".globl main");
-        out.println("main:");
-        out.println("    move\t$fp, $sp");
-        out.println("    la  \t$" + RegStatic + ", " + StaticDataLabel
-                + "\t# pointer to static data");
+        startProc("main", true);
+        emit(MipsInstr.move(RegFP, RegSP));
+        emit(MipsInstr.la(RegStatic, label(StaticDataLabel)).withComment("pointer to static data"));
         stackOffset = 0;
+        if (options.isEnabled("gc")) {
+            short reg = allocReg();
+            emit(MipsInstr.la(reg, label(MipsGcRuntime.StackTop)));
+            emit(MipsInstr.store(RegSP, 0, reg).withComment("stack bottom for the garbage collector"));
+            freeReg(reg);
+        }
+        reserveSpillArea();
         freeAllReg();
         initRuntimeLib();
     }
@@ -655,63 +1432,208 @@ public class BackendMIPS implements BackendAsmRM
     @Override
     public void exitMain(String label)
     {
-        out.println(label + ":");
-        out.println("    li  \t$v0, 10\t# exit system call");
-        out.println("    syscall");
+        emitLabel(label, null);
+        if (options.isEnabled("gc.stats") && options.printStats()) {
+            prepareProcCall(0);
+            callProc((short) -1, MipsGcRuntime.Stats);
+        }
+        emit(MipsInstr.li(RegV0, 10).withComment("exit system call"));
+        emit(MipsInstr.op(MipsInstr.SYSCALL));
+        proc = null;
     }
 
     @Override
     public void enterProc(String label, int nParams) {
 		int offset = 2 * WordSize;
-		ensureSegment(SegmentText);
-		out.println(".globl "+ label);
-		out.println(label + ":");
+		startProc(label, false);
+		proc.numParams = nParams;
+		if (regArgs()) {
+			for (int i = 0; i < nParams && i < NumRegArgs; i++)
+				emit(MipsInstr.load(MipsInstr.LW, (short) (RegA0 + i), paramOffset(i), RegSP)
+						.withComment(i == 0 ? "entry for stack arguments" : null));
+			MipsLabel regEntry = label(label + RegEntrySuffix);
+			emit(MipsInstr.jump(MipsInstr.GLOBL, regEntry));
+			emit(MipsInstr.jump(MipsInstr.LABEL, regEntry));
+		}
 		stackOffset = -offset;
-		out.println("    addi\t$sp, $sp, -" + offset);
-		out.println("    sw  \t$fp, " + offset + "($sp)");
-		out.println("    addi\t$fp, $sp, " + offset);
-		out.println("    sw  \t$ra, -4($fp)");
+		proc.prologue.add(MipsInstr.i(MipsInstr.ADDI, RegSP, RegSP, -offset));
+		proc.prologue.add(MipsInstr.store(RegFP, offset, RegSP));
+		proc.prologue.add(MipsInstr.i(MipsInstr.ADDI, RegFP, RegSP, offset));
+		proc.prologue.add(MipsInstr.store(RegRA, -4, RegFP));
+		for (MipsInstr i : proc.prologue)
+			emit(i);
+		reserveSpillArea();
 		freeAllReg();
 	}
 
     @Override
 	public void exitProc(String label) {
-		out.println(label + ":");
-		out.println("    lw  \t$ra, -4($fp)");
-		out.println("    move\t$sp, $fp");
-		out.println("    lw  \t$fp, 0($fp)");
-		out.println("    jr  \t$ra");
+		tailCall((short) -1);
+		emitLabel(label, null);
+		proc.exitLabel = label(label);
+		proc.epilogue.add(MipsInstr.load(MipsInstr.LW, RegRA, -4, RegFP));
+		proc.epilogue.add(MipsInstr.move(RegSP, RegFP));
+		proc.epilogue.add(MipsInstr.load(MipsInstr.LW, RegFP, 0, RegFP));
+		for (MipsInstr i : proc.epilogue)
+			emit(i);
+		emit(MipsInstr.jr(RegRA));
+		proc = null;
 		/* no need to reset stackOffset */
 	}
 
     @Override
-	public void returnFromProc(String label, byte reg) {
+	public void returnFromProc(String label, short reg) {
+		if (tailCall(reg))
+			return;
 		if (reg >= 0) {
-			out.println("    move\t$v0, $" + reg);
+			emit(MipsInstr.move(RegV0, reg));
 		}
-		out.println("    j   \t" + label);
+		jump(label);
 	}
 
+    /**
+     * Emit a placeholder for the stack space of spill slots, to be sized by
+     * {@link MipsRegAlloc}. Spill slots start at the current stack offset.
+     */
+    private void reserveSpillArea()
+    {
+        proc.frameBase = stackOffset;
+        proc.spillArea = MipsInstr.i(MipsInstr.ADDI, RegSP, RegSP, 0).withComment("spill slots");
+        emit(proc.spillArea);
+    }
+
+    /** Return <code>true</code> if procedure arguments are passed in registers. */
+    private boolean regArgs()
+    {
+        return options.isEnabled("regargs");
+    }
+
     @Override
 	public void prepareProcCall(int numArgs) {
-		procFrameSize = saveRegs(numArgs);
+		SavedRegs saved = saveRegs(numArgs);
+		saved.args = new short[Math.min(numArgs, NumRegArgs)];
+		saved.numArgs = numArgs;
+		Arrays.fill(saved.args, (short) -1);
+		callFrames.push(saved);
 	}
 
+    /**
+     * {@inheritDoc}
+     * Register arguments are kept in a new virtual register until
+     * {@link #callProc(short, String)} moves them to <code>$a0 - $a3</code>,
+     * because evaluating further arguments may involve procedure calls.
+     */
     @Override
-    public void passArg(int arg, byte reg) {
-		out.println("    sw  \t$" + reg + ", " + (arg+1) * WordSize 
-				+ "($sp)" + "\t# arg " + arg);
+    public void passArg(int arg, short reg) {
+		if (regArgs() && arg < NumRegArgs) {
+			short argReg = allocReg();
+			if (argReg >= 0) {
+				emit(MipsInstr.move(argReg, reg).withComment("arg " + arg));
+				callFrames.peek().args[arg] = argReg;
+				return;
+			}
+		}
+		emit(MipsInstr.store(reg, (arg+1) * WordSize, RegSP).withComment("arg " + arg));
 	}
 
     @Override
-    public void callProc(byte reg, String name) {
-		out.println("    jal \t" + name);
+    public void callProc(short reg, String name) {
+		SavedRegs saved = callFrames.pop();
+		String callee = name;
+		if (regArgs()) {
+			for (int i = 0; i < saved.args.length; i++) {
+				if (saved.args[i] >= 0) {
+					emit(MipsInstr.move((short) (RegA0 + i), saved.args[i]));
+					freeReg(saved.args[i]);
+					stats.add("regargs.args", 1);
+				} else {
+					// no virtual register left, argument has been stored on stack
+					emit(MipsInstr.load(MipsInstr.LW, (short) (RegA0 + i), (i+1) * WordSize, RegSP));
+				}
+			}
+			name += RegEntrySuffix;
+		}
+		saved.saves.call = MipsInstr.jump(MipsInstr.JAL, label(name));
+		saved.saves.spOffset = stackOffset;
+		saved.saves.inUse = Arrays.copyOf(regsUsed, regsTop);
+		emit(saved.saves.call);
 		if (reg >= 0)
-			out.println("    add \t$" + reg + ", $v0, $zero");
-		if (procFrameSize > 0) {
-		    restoreRegs(procFrameSize, reg);
-		    procFrameSize = 0;
+			emitR(MipsInstr.ADD, reg, RegV0, RegZero);
+		restoreRegs(saved, reg);
+		lastCall = saved;
+		lastCallName = callee;
+		lastCallReg = reg;
+		lastCallEnd = proc.code.size();
+	}
+
+    /**
+     * Handle a return (of <code>reg</code>) directly following the procedure
+     * call generated last as a tail call, if the optimization <code>tailcall</code>
+     * is enabled. A self tail call (part <code>tailcall.self</code>) is replaced
+     * by passing the arguments in place of the incoming ones and jumping back to
+     * the start of the procedure body, reusing the stack frame. Tail calls of other
+     * procedures (part <code>tailcall.other</code>) are recorded in
+     * {@link MipsProc#tailCalls}, to be replaced by jumps by {@link MipsTailCall}.
+     * @return <code>true</code> if the call has been replaced by a jump to the
+     *         procedure body, hence the return is not needed.
+     */
+    private boolean tailCall(short reg)
+    {
+		SavedRegs call = lastCall;
+		lastCall = null;
+		if (call == null || call.saves.call == null || lastCallEnd != proc.code.size() || lastCallReg != reg)
+			return false;
+		int firstStackArg = regArgs() ? NumRegArgs : 0;
+		if (!lastCallName.equals(proc.label.name)) {
+			if (options.isEnabled("tailcall.other")) {
+				int[] stackArgs = new int[Math.max(call.numArgs - firstStackArg, 0)];
+				for (int i = 0; i < stackArgs.length; i++)
+					stackArgs[i] = paramOffset(firstStackArg + i);
+				proc.tailCalls.add(new MipsProc.TailCall(call.saves.call, call.numArgs, stackArgs, call.push));
+			}
+			return false;
 		}
+		if (!options.isEnabled("tailcall.self") || call.numArgs != proc.numParams)
+			return false;
+		/* drop the call and the register restores after it */
+		int k = proc.code.indexOf(call.saves.call);
+		proc.code.subList(k, proc.code.size()).clear();
+		while (!proc.allocs.isEmpty() && proc.allocs.get(proc.allocs.size() - 1)[0] > k)
+			proc.allocs.remove(proc.allocs.size() - 1);
+		call.saves.call = null;
+		int spOffset = call.saves.spOffset;
+		boolean stackArgs = call.numArgs > firstStackArg;
+		for (short arg : call.args)
+			stackArgs |= (arg < 0);
+		if (!stackArgs && call.push != null) {
+			/* the saved area is not needed any more */
+			int pos = proc.code.indexOf(call.push);
+			proc.code.remove(pos);
+			for (int[] a : proc.allocs) {
+				if (a[0] > pos)
+					a[0]--;
+			}
+			spOffset += call.frameSize;
+		}
+		if (proc.tailLoop == null) {
+			proc.tailLoop = label(proc.label.name + "_tail");
+			int pos = proc.code.indexOf(proc.spillArea) + 1;
+			proc.code.add(pos, MipsInstr.jump(MipsInstr.LABEL, proc.tailLoop));
+			for (int[] a : proc.allocs) {
+				if (a[0] >= pos)
+					a[0]++;
+			}
+		}
+		/* stack arguments replace the incoming ones; the body reloads the parameters */
+		for (int i = firstStackArg; i < call.numArgs; i++) {
+			emit(MipsInstr.load(MipsInstr.LW, RegTmp, paramOffset(i), RegSP));
+			emit(MipsInstr.store(RegTmp, paramOffset(i), RegFP));
+		}
+		if (spOffset != proc.frameBase)
+			emit(MipsInstr.i(MipsInstr.ADDI, RegSP, RegSP, proc.frameBase - spOffset));
+		emit(MipsInstr.jump(MipsInstr.J, proc.tailLoop).withComment("tail call"));
+		stats.add("tailcall.self", 1);
+		return true;
 	}
 
     @Override
@@ -719,4 +1641,9 @@ public class BackendMIPS implements BackendAsmRM
 		return (index+1) * WordSize;
 	}
 
+    @Override
+    public short paramRegister(int index) {
+		return (regArgs() && index < NumRegArgs) ? (short) (RegA0 + index) : -1;
+	}
+
 }
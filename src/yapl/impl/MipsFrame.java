@@ -0,0 +1,332 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import yapl.lib.CompilerOptions;
+import yapl.lib.CompilerStatistics;
+
+/**
+ * Stack frame optimizations on the MIPS instruction IR of a single procedure,
+ * applied after register allocation (see {@link MipsRegAlloc}).
+ * Each optimization may be disabled by the compiler option
+ * <code>-fno-frame.</code><em>name</em>:
+ * <dl>
+ * <dt><code>leaf</code></dt>
+ * <dd>A procedure without calls (a leaf procedure) does not save and restore
+ * <code>$ra</code>. Tail calls (see {@link MipsTailCall}) are jumps, not calls.</dd>
+ * <dt><code>omit-fp</code></dt>
+ * <dd>A leaf procedure addresses its stack frame relative to <code>$sp</code>
+ * instead of <code>$fp</code>, if all stack pointer adjustments are static.
+ * The stack space of the whole procedure is then allocated at once, and
+ * <code>$fp</code> is neither set up nor saved.</dd>
+ * <dt><code>shrink-wrap</code></dt>
+ * <dd>Code at the procedure entry not needing the stack frame, up to and
+ * including an early return, is moved before the frame setup; the early
+ * return then jumps back to the caller immediately. This is repeated as long
+ * as possible, e.g. for a sequence of base cases of a recursive procedure.</dd>
+ * </dl>
+ * The number of optimized procedures is reported as statistics
+ * <code>frame.</code><em>name</em>.
+ *
+ * @version $Id$
+ */
+public class MipsFrame {
+
+	private static final long SP = MipsLiveness.bit(BackendMIPS.RegSP);
+	private static final long FP = MipsLiveness.bit(BackendMIPS.RegFP);
+	private static final long RA = MipsLiveness.bit(BackendMIPS.RegRA);
+
+	/** Frame offset of the saved <code>$ra</code> and <code>$fp</code> below the incoming stack pointer. */
+	private static final int LinkBytes = 8;
+
+	private MipsProc proc;
+	private ArrayList<MipsInstr> code;
+
+	private MipsFrame(MipsProc proc) {
+		this.proc = proc;
+		this.code = proc.code;
+	}
+
+	/**
+	 * Optimize the stack frame of a single procedure.
+	 * @param proc      the procedure to optimize (modified in place).
+	 * @param options   compiler options for enabling single optimizations.
+	 * @param stats     where to count optimized procedures.
+	 */
+	public static void optimize(MipsProc proc, CompilerOptions options, CompilerStatistics stats) {
+		if (proc.isMain || proc.prologue.isEmpty() || proc.epilogue.isEmpty())
+			return;
+		MipsFrame f = new MipsFrame(proc);
+		if (f.isLeaf()) {
+			if (options.isEnabled("frame.leaf")) {
+				f.removeLink();
+				stats.add("frame.leaf", 1);
+			}
+			if (options.isEnabled("frame.omit-fp") && f.omitFramePointer())
+				stats.add("frame.omit-fp", 1);
+		}
+		if (options.isEnabled("frame.shrink-wrap")) {
+			int n = 0;
+			while (f.shrinkWrap())
+				n++;
+			if (n > 0)
+				stats.add("frame.shrink-wrap", 1);
+		}
+	}
+
+	/** Return <code>true</code> if the procedure does not call other procedures. */
+	private boolean isLeaf() {
+		for (MipsInstr i : code) {
+			if (i.op == MipsInstr.JAL)
+				return false;
+		}
+		return true;
+	}
+
+	/** Remove save and restores of <code>$ra</code> (the epilogue may be repeated before tail calls). */
+	private void removeLink() {
+		remove(proc.prologue, find(proc.prologue, MipsInstr.SW, BackendMIPS.RegRA));
+		MipsInstr load;
+		while ((load = find(proc.epilogue, MipsInstr.LW, BackendMIPS.RegRA)) != null)
+			remove(proc.epilogue, load);
+	}
+
+	/** Return the load or store of <code>reg</code> in <code>list</code>, or <code>null</code>. */
+	private static MipsInstr find(ArrayList<MipsInstr> list, byte op, short reg) {
+		for (MipsInstr i : list) {
+			if (i.op == op && (op == MipsInstr.SW ? i.rt : i.rd) == reg)
+				return i;
+		}
+		return null;
+	}
+
+	/** Remove <code>instr</code> (if not <code>null</code>) from <code>list</code> and the code. */
+	private void remove(ArrayList<MipsInstr> list, MipsInstr instr) {
+		if (instr == null)
+			return;
+		list.remove(instr);
+		code.remove(instr);
+	}
+
+	private boolean isFrameCode(MipsInstr i) {
+		return proc.prologue.contains(i) || proc.epilogue.contains(i);
+	}
+
+	private static boolean isSPAdjust(MipsInstr i) {
+		return i.op == MipsInstr.ADDI && i.rd == BackendMIPS.RegSP && i.rs == BackendMIPS.RegSP;
+	}
+
+	/** Return <code>true</code> if <code>i</code> leaves the procedure, by a return or a tail call. */
+	private boolean isExit(MipsInstr i, HashSet<MipsLabel> labels) {
+		return i.op == MipsInstr.JR || (i.op == MipsInstr.J && !labels.contains(i.label));
+	}
+
+	/**
+	 * Return <code>true</code> if <code>i</code> resets the stack pointer
+	 * before a self tail call, to its value at {@link MipsProc#tailLoop}.
+	 */
+	private boolean isTailReset(int k) {
+		MipsInstr i = code.get(k);
+		if (proc.tailLoop == null || !isSPAdjust(i))
+			return false;
+		for (int n = k + 1; n < code.size(); n++) {
+			MipsInstr next = code.get(n);
+			if (next.op != MipsInstr.COMMENT)
+				return next.op == MipsInstr.J && next.label == proc.tailLoop;
+		}
+		return false;
+	}
+
+	private static boolean isFPAccess(MipsInstr i) {
+		return (i.op == MipsInstr.LW || i.op == MipsInstr.SW || i.op == MipsInstr.LA)
+				&& i.rs == BackendMIPS.RegFP && i.label == null;
+	}
+
+	/**
+	 * Replace frame pointer relative addressing by stack pointer relative
+	 * addressing, and allocate the stack frame at procedure entry.
+	 * @return <code>false</code> if the stack layout is not static.
+	 */
+	private boolean omitFramePointer() {
+		int start = code.indexOf(proc.prologue.get(0));
+		HashSet<MipsLabel> labels = new HashSet<MipsLabel>();
+		for (MipsInstr i : code) {
+			if (i.op == MipsInstr.LABEL)
+				labels.add(i.label);
+		}
+		int depth = 0;
+		int maxDepth = LinkBytes;
+		for (int k = start; k < code.size(); k++) {
+			MipsInstr i = code.get(k);
+			if (isFrameCode(i) || isExit(i, labels) || isTailReset(k))
+				continue;
+			long regs = MipsLiveness.uses(i) | MipsLiveness.defs(i);
+			if (isSPAdjust(i)) {
+				depth -= i.imm;
+				maxDepth = Math.max(maxDepth, depth + LinkBytes);
+			} else if (isFPAccess(i)) {
+				if (i.imm <= 0 && i.imm > -LinkBytes)
+					return false;		// link area
+			} else if ((regs & (SP | FP)) != 0) {
+				return false;
+			}
+		}
+		/* locals move up into the link area, which is not needed any more */
+		int frameSize = maxDepth - LinkBytes;
+		MipsInstr entry = MipsInstr.i(MipsInstr.ADDI, BackendMIPS.RegSP, BackendMIPS.RegSP, -frameSize)
+				.withComment("frame");
+		ArrayList<MipsInstr> exits = new ArrayList<MipsInstr>();
+		ArrayList<MipsInstr> result = new ArrayList<MipsInstr>(code.size());
+		for (int k = 0; k < code.size(); k++) {
+			MipsInstr i = code.get(k);
+			if (k == start && frameSize > 0)
+				result.add(entry);
+			if (k < start) {
+				result.add(i);
+			} else if (isExit(i, labels)) {
+				if (frameSize > 0) {
+					exits.add(MipsInstr.i(MipsInstr.ADDI, BackendMIPS.RegSP, BackendMIPS.RegSP, frameSize));
+					result.add(exits.get(exits.size() - 1));
+				}
+				result.add(i);
+			} else if (!isFrameCode(i) && !isSPAdjust(i)) {
+				if (isFPAccess(i)) {
+					i.rs = BackendMIPS.RegSP;
+					i.imm += (i.imm < 0) ? frameSize + LinkBytes : frameSize;
+				}
+				result.add(i);
+			}
+		}
+		proc.prologue.clear();
+		proc.epilogue.clear();
+		if (frameSize > 0)
+			proc.prologue.add(entry);
+		proc.epilogue.addAll(exits);
+		proc.spillArea = null;
+		code.clear();
+		code.addAll(result);
+		return true;
+	}
+
+	/**
+	 * Move the frame setup behind the first early return, if the code before
+	 * does not need the stack frame.
+	 * @return <code>true</code> if the code has been changed.
+	 */
+	private boolean shrinkWrap() {
+		/* the frame setup: prologue and callee-saved register saves, in a row */
+		HashSet<MipsInstr> setup = new HashSet<MipsInstr>(proc.prologue);
+		for (MipsInstr i : proc.calleeSaves) {
+			if (i.op == MipsInstr.SW)
+				setup.add(i);
+		}
+		if (proc.spillArea != null)
+			setup.add(proc.spillArea);
+		if (setup.isEmpty())
+			return false;
+		int first = code.size();
+		int last = -1;
+		for (MipsInstr i : setup) {
+			int k = code.indexOf(i);
+			if (k < 0)
+				continue;
+			first = Math.min(first, k);
+			last = Math.max(last, k);
+		}
+		if (last < 0)
+			return false;
+		for (int k = first; k <= last; k++) {
+			if (!setup.contains(code.get(k)) && code.get(k).op != MipsInstr.COMMENT)
+				return false;
+		}
+		/* registers the frame setup depends on or preserves */
+		long savedRegs = 0;
+		for (MipsInstr i : proc.calleeSaves)
+			savedRegs |= MipsLiveness.bit(i.op == MipsInstr.SW ? i.rt : i.rd);
+		long frameRegs = SP | FP | RA | savedRegs;
+		/* code not needing the frame, with branches to a single label, up to an early return;
+		 * copies to callee-saved registers are sunk behind the frame setup,
+		 * and their destination is replaced by their source up to there */
+		MipsLabel target = null;
+		ArrayList<MipsInstr> branches = new ArrayList<MipsInstr>();
+		ArrayList<MipsInstr> sunk = new ArrayList<MipsInstr>();
+		short[] copyOf = new short[32];
+		long copies = 0;			// destinations of sunk copies
+		long copyRegs = 0;			// destinations and sources of sunk copies
+		int ret = -1;
+		for (int k = last + 1; k < code.size() && ret < 0; k++) {
+			MipsInstr i = code.get(k);
+			if (i.op == MipsInstr.COMMENT)
+				continue;
+			if (i.op == MipsInstr.J && i.label == proc.exitLabel) {
+				ret = k;
+				break;
+			}
+			if (i.op == MipsInstr.LABEL || i.op == MipsInstr.JAL || i.op == MipsInstr.JR || i.op == MipsInstr.J)
+				return false;
+			long uses = MipsLiveness.uses(i);
+			long defs = MipsLiveness.defs(i);
+			if (i.op == MipsInstr.MOVE && (MipsLiveness.bit(i.rd) & savedRegs & ~copyRegs) != 0
+					&& (MipsLiveness.bit(i.rs) & (frameRegs | copyRegs)) == 0) {
+				sunk.add(i);
+				copyOf[i.rd] = i.rs;
+				copies |= MipsLiveness.bit(i.rd);
+				copyRegs |= MipsLiveness.bit(i.rd) | MipsLiveness.bit(i.rs);
+				continue;
+			}
+			long explicit = MipsLiveness.bit(i.rs) | MipsLiveness.bit(i.rt);
+			if ((defs & copyRegs) != 0 || (uses & copies & ~explicit) != 0
+					|| ((uses & ~copies | defs) & frameRegs) != 0)
+				return false;
+			if (MipsLiveness.isBranch(i)) {
+				if (target != null && i.label != target)
+					return false;
+				target = i.label;
+				branches.add(i);
+			}
+		}
+		if (ret < 0 || target == null)
+			return false;
+		/* unreachable code up to the branch target, which must be in the group of labels
+		 * following the early return; these labels must be reached by the branches only */
+		int labels = ret + 1;
+		HashSet<MipsInstr> dead = new HashSet<MipsInstr>();
+		while (labels < code.size() && code.get(labels).op != MipsInstr.LABEL)
+			dead.add(code.get(labels++));
+		HashSet<MipsLabel> group = new HashSet<MipsLabel>();
+		int end = labels;
+		for (; end < code.size(); end++) {
+			MipsInstr i = code.get(end);
+			if (i.op == MipsInstr.LABEL)
+				group.add(i.label);
+			else if (i.op != MipsInstr.COMMENT)
+				break;
+		}
+		if (!group.contains(target))
+			return false;
+		for (MipsInstr i : code) {
+			if (i.op != MipsInstr.LABEL && group.contains(i.label) && !branches.contains(i) && !dead.contains(i))
+				return false;
+		}
+		ArrayList<MipsInstr> result = new ArrayList<MipsInstr>(code.size());
+		result.addAll(code.subList(0, first));
+		for (MipsInstr i : code.subList(last + 1, ret)) {
+			if (sunk.contains(i))
+				continue;
+			if ((MipsLiveness.bit(i.rs) & copies) != 0)
+				i.rs = copyOf[i.rs];
+			if ((MipsLiveness.bit(i.rt) & copies) != 0)
+				i.rt = copyOf[i.rt];
+			result.add(i);
+		}
+		result.add(MipsInstr.jr(BackendMIPS.RegRA).withComment("early return"));
+		result.addAll(code.subList(labels, end));
+		result.addAll(code.subList(first, last + 1));
+		result.addAll(sunk);
+		result.addAll(code.subList(end, code.size()));
+		code.clear();
+		code.addAll(result);
+		return true;
+	}
+}
@@ -0,0 +1,96 @@
+package yapl.impl;
+
+/**
+ * Object layout and entry points of the mark-sweep garbage collector
+ * (optimization <code>gc</code>). The collector itself is the MIPS assembler
+ * file <code>gc.asm</code> (system property <code>yapl.gc.asm</code>), which
+ * is injected into the output like the run-time library.
+ * <p>
+ * Every heap object is preceded by a header word describing its layout:
+ * </p>
+ * <pre>
+ * bit  0        mark bit (set during a collection only)
+ * bits 1-2      kind: 0 = record, 1 = array, 2 = free block
+ * record        bits 3-15: number of fields, bits 16-31: number of reference
+ *               fields, which precede all other fields
+ * array         bit 3: elements are references, bits 4-8: number of dimension
+ *               length words at the start of the array; the number of
+ *               elements is their product; bit 9: elements are bits, 32 per
+ *               word (one-dimensional arrays only)
+ * free block    bits 3-31: number of words following the header
+ * </pre>
+ * <p>
+ * <code>_gcAlloc(words, header)</code> allocates a zeroed object from a free
+ * list (first fit), or by advancing a heap pointer within heap memory
+ * requested by <code>sbrk</code> (which must be contiguous). If the heap
+ * would have to grow, and more bytes than the threshold have been allocated
+ * since the last collection, the heap is collected first:
+ * </p>
+ * <ul>
+ * <li>Global variables holding references are precise roots, listed by
+ *     the table <code>_gcRoots</code> (see {@link BackendMIPS#addGlobalRoot(int)}).</li>
+ * <li>The stack, including the saved callee-saved registers, is scanned
+ *     conservatively: each word pointing into (or just past) an object marks it.
+ *     Candidate words are sorted and matched against the objects in a single
+ *     walk over the heap.</li>
+ * <li>References within objects are found by their headers.</li>
+ * <li>Unmarked objects are swept into the free list, merging adjacent free blocks.</li>
+ * </ul>
+ * <p>
+ * The stack is not scanned with precise root maps: after register
+ * allocation, inlining, tail calls and frame pointer omission, a reference
+ * may live in any register, spill slot, or callee-saved register saved by
+ * another procedure, and the untyped instruction IR does not tell which.
+ * As the collector never moves objects, a word mistaken for a reference
+ * only keeps an unreachable object alive until it is overwritten.
+ * </p>
+ * <p>
+ * The threshold is the live heap size after the last collection, but at
+ * least the compiler parameter <code>gc.threshold</code> (in bytes), which
+ * the program provides as data word <code>_gcMinThreshold</code>.
+ * <code>_gcStats</code> prints heap size and pause statistics.
+ * </p>
+ *
+ * @version $Id$
+ */
+final class MipsGcRuntime {
+
+	/** Default minimal number of bytes allocated between two collections. */
+	static final int DefaultThreshold = 64 * 1024;
+
+	/** Name of the allocation procedure. */
+	static final String Alloc = "_gcAlloc";
+
+	/** Name of the procedure allocating multi-dimensional arrays of arrays. */
+	static final String AllocArray = "_gcAllocArray";
+
+	/** Name of the procedure printing statistics. */
+	static final String Stats = "_gcStats";
+
+	/** Name of the global variable holding the stack address at program start. */
+	static final String StackTop = "_gcStackTop";
+
+	/** Name of the table of global roots: number of roots, then their static data offsets. */
+	static final String Roots = "_gcRoots";
+
+	/** Name of the data word holding the minimal number of bytes allocated between two collections. */
+	static final String MinThreshold = "_gcMinThreshold";
+
+	private MipsGcRuntime() {
+	}
+
+	/** Return the header of a record of <code>words</code> fields, the first <code>refs</code> of them references. */
+	static int recordHeader(int words, int refs) {
+		return (words << 3) | (refs << 16);
+	}
+
+	/** Return the header of an array with <code>dims</code> dimension length words. */
+	static int arrayHeader(boolean refElements, int dims) {
+		return 2 | (refElements ? 8 : 0) | (dims << 4);
+	}
+
+	/** Return the header of a one-dimensional array of bits, see {@link BackendMIPS#allocBitArray(short)}. */
+	static int bitArrayHeader() {
+		return arrayHeader(false, 1) | (1 << 9);
+	}
+}
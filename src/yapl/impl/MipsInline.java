@@ -0,0 +1,228 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import yapl.lib.CompilerOptions;
+import yapl.lib.CompilerStatistics;
+
+/**
+ * Procedure inliner on the MIPS instruction IR, applied to the whole program
+ * before register allocation (see {@link MipsRegAlloc}).
+ * <p>
+ * A call is replaced by a copy of the callee's body (without prologue and
+ * epilogue), if the callee is a leaf procedure (hence not recursive) whose
+ * body does not use the stack except for reading and writing its parameters,
+ * and the body is small: at most <code>inline.size</code> instructions, or
+ * four times as many if the call is the only call of the callee. The size
+ * limit is set by the compiler option <code>-finline.size=</code><em>n</em>
+ * (default {@link #DefaultSize}). Procedures are processed in program order,
+ * so a procedure whose calls have all been inlined may be inlined itself.
+ * </p>
+ * <p>
+ * The virtual registers of the copy are renamed to registers not allocated
+ * at the call; parameters passed on the stack are accessed in the argument
+ * area of the caller's frame. Return statements jump to the end of the copy,
+ * leaving the result in <code>$v0</code> as before. Loops of the copy are
+ * added to the loops of the caller (see {@link MipsProc#loops}).
+ * </p>
+ * <p>
+ * Each inlined call is reported as statistics
+ * <code>inline.site.</code><em>caller</em><code>.</code><em>callee</em>;
+ * <code>inline.calls</code> counts all inlined calls, and
+ * <code>inline.saved</code> estimates the number of instructions saved per
+ * execution of all inlined calls (call, return, prologue, and epilogue).
+ * </p>
+ *
+ * @version $Id$
+ */
+public class MipsInline {
+
+	/** Default size limit of inlined procedure bodies, in instructions. */
+	public static final int DefaultSize = 16;
+
+	/** The inlinable part of a procedure. */
+	private static class Body {
+		final MipsProc proc;
+		final List<MipsInstr> code;
+		/** Number of instructions (without labels and comments). */
+		int size = 0;
+		/** Virtual register allocations, as in {@link MipsProc#allocs}, relative to the body. */
+		final ArrayList<int[]> allocs = new ArrayList<int[]>();
+
+		Body(MipsProc proc, List<MipsInstr> code) {
+			this.proc = proc;
+			this.code = code;
+		}
+	}
+
+	private final BackendMIPS backend;
+
+	/** Procedures by their entry labels. */
+	private HashMap<MipsLabel, MipsProc> procOf = new HashMap<MipsLabel, MipsProc>();
+
+	/** Number of calls of each procedure. */
+	private HashMap<MipsProc, Integer> calls = new HashMap<MipsProc, Integer>();
+
+	/** Number of copies made so far, to create unique labels. */
+	private int copies = 0;
+
+	private MipsInline(BackendMIPS backend) {
+		this.backend = backend;
+	}
+
+	/**
+	 * Inline calls in all procedures.
+	 * @param procs     the procedures of the program (modified in place).
+	 * @param backend   the back end, for creating labels.
+	 * @param options   compiler options (size limit).
+	 * @param stats     where to report inlined calls.
+	 */
+	public static void inline(List<MipsProc> procs, BackendMIPS backend, CompilerOptions options,
+			CompilerStatistics stats) {
+		MipsInline in = new MipsInline(backend);
+		int limit = options.getParam("inline.size", DefaultSize);
+		for (MipsProc p : procs) {
+			if (p.isMain || p.prologue.isEmpty())
+				continue;
+			for (MipsInstr i : p.code) {
+				if (i == p.prologue.get(0))
+					break;
+				if (i.op == MipsInstr.LABEL)
+					in.procOf.put(i.label, p);
+			}
+		}
+		for (MipsProc p : procs) {
+			for (MipsInstr i : p.code) {
+				MipsProc callee = (i.op == MipsInstr.JAL) ? in.procOf.get(i.label) : null;
+				if (callee != null)
+					in.calls.put(callee, in.calls.containsKey(callee) ? in.calls.get(callee) + 1 : 1);
+			}
+		}
+		for (MipsProc p : procs) {
+			for (MipsProc.CallSaves site : p.callSaves) {
+				MipsProc callee = (site.call == null) ? null : in.procOf.get(site.call.label);
+				if (callee == null || callee == p)
+					continue;
+				Body body = in.body(callee);
+				if (body == null || body.size > (in.calls.get(callee) == 1 ? 4 * limit : limit))
+					continue;
+				if (in.inline(p, site, body)) {
+					stats.add("inline.site." + p + "." + callee, 1);
+					stats.add("inline.calls", 1);
+					stats.add("inline.saved", 2 + callee.prologue.size() + callee.epilogue.size());
+				}
+			}
+		}
+	}
+
+	/** Return the inlinable body of a procedure, or <code>null</code> if it cannot be inlined. */
+	private Body body(MipsProc proc) {
+		if (proc.exitLabel == null || proc.spillArea == null)
+			return null;
+		int start = proc.code.indexOf(proc.spillArea) + 1;
+		int end = -1;
+		ArrayList<MipsLabel> labels = new ArrayList<MipsLabel>();
+		for (int k = start; k < proc.code.size() && end < 0; k++) {
+			MipsInstr i = proc.code.get(k);
+			if (i.op == MipsInstr.LABEL && i.label == proc.exitLabel)
+				end = k;
+			else if (i.op == MipsInstr.LABEL)
+				labels.add(i.label);
+		}
+		if (start <= 0 || end < 0)
+			return null;
+		Body body = new Body(proc, proc.code.subList(start, end));
+		long frame = MipsLiveness.bit(BackendMIPS.RegSP) | MipsLiveness.bit(BackendMIPS.RegFP);
+		for (MipsInstr i : body.code) {
+			if (i.op == MipsInstr.JAL || i.op == MipsInstr.JR)
+				return null;
+			if ((i.op == MipsInstr.J || MipsLiveness.isBranch(i))
+					&& i.label != proc.exitLabel && !labels.contains(i.label))
+				return null;
+			boolean param = (i.op == MipsInstr.LW || i.op == MipsInstr.SW || i.op == MipsInstr.LA)
+					&& i.rs == BackendMIPS.RegFP && i.label == null && i.imm > 0;
+			long regs = MipsLiveness.uses(i) | MipsLiveness.defs(i);
+			if (!param && (regs & frame) != 0)
+				return null;
+			if (i.op != MipsInstr.LABEL && i.op != MipsInstr.COMMENT)
+				body.size++;
+		}
+		for (int[] a : proc.allocs) {
+			if (a[0] >= start && a[0] < end)
+				body.allocs.add(new int[] { a[0] - start, a[1] });
+			else if (a[0] < start || a[0] >= end)
+				return null;
+		}
+		return body;
+	}
+
+	/**
+	 * Replace the call of <code>site</code> in <code>proc</code> by a copy of <code>body</code>.
+	 * @return <code>false</code> if there are not enough free virtual registers.
+	 */
+	private boolean inline(MipsProc proc, MipsProc.CallSaves site, Body body) {
+		/* rename virtual registers */
+		int limit = MipsRegAlloc.FirstVirtual;
+		for (int[] a : body.allocs)
+			limit = Math.max(limit, a[1] + 1);
+		short[] rename = new short[limit];
+		int free = MipsRegAlloc.FirstVirtual;
+		for (int[] a : body.allocs) {
+			if (rename[a[1]] != 0)
+				continue;
+			while (free <= MipsRegAlloc.LastVirtual && free < site.inUse.length && site.inUse[free])
+				free++;
+			if (free > MipsRegAlloc.LastVirtual)
+				return false;
+			rename[a[1]] = (short) free++;
+		}
+		/* copy the body with fresh labels */
+		copies++;
+		HashMap<MipsLabel, MipsLabel> labels = new HashMap<MipsLabel, MipsLabel>();
+		MipsLabel exit = backend.label(body.proc.exitLabel.name + "_" + copies);
+		labels.put(body.proc.exitLabel, exit);
+		ArrayList<MipsInstr> copy = new ArrayList<MipsInstr>(body.code.size() + 1);
+		for (MipsInstr i : body.code) {
+			MipsInstr c = i.copy();
+			if (MipsRegAlloc.isVirtual(c.rd))
+				c.rd = rename[c.rd];
+			if (MipsRegAlloc.isVirtual(c.rs))
+				c.rs = rename[c.rs];
+			if (MipsRegAlloc.isVirtual(c.rt))
+				c.rt = rename[c.rt];
+			if (c.rs == BackendMIPS.RegFP && c.label == null)
+				c.imm += site.spOffset;		// parameter in the caller's argument area
+			if (c.label != null && c.op != MipsInstr.LA) {
+				if (!labels.containsKey(c.label))
+					labels.put(c.label, backend.label(c.label.name + "_" + copies));
+				c.label = labels.get(c.label);
+			}
+			copy.add(c);
+		}
+		copy.add(MipsInstr.jump(MipsInstr.LABEL, exit).withComment("end of inlined " + body.proc));
+		int pos = 0;
+		for (MipsProc.Loop loop : body.proc.loops) {
+			if (labels.containsKey(loop.start) && labels.containsKey(loop.end))
+				proc.loops.add(pos++, new MipsProc.Loop(labels.get(loop.start), labels.get(loop.end)));
+		}
+		copy.get(0).text = (copy.get(0).text == null ? "" : copy.get(0).text + ", ") + "inlined " + body.proc;
+		/* replace the call, and update register allocation positions */
+		int k = proc.code.indexOf(site.call);
+		proc.code.remove(k);
+		proc.code.addAll(k, copy);
+		ArrayList<int[]> allocs = new ArrayList<int[]>(proc.allocs.size() + body.allocs.size());
+		int n = 0;
+		while (n < proc.allocs.size() && proc.allocs.get(n)[0] <= k)
+			allocs.add(proc.allocs.get(n++));
+		for (int[] a : body.allocs)
+			allocs.add(new int[] { k + a[0], rename[a[1]] });
+		for (; n < proc.allocs.size(); n++)
+			allocs.add(new int[] { proc.allocs.get(n)[0] + copy.size() - 1, proc.allocs.get(n)[1] });
+		proc.allocs.clear();
+		proc.allocs.addAll(allocs);
+		site.call = null;
+		return true;
+	}
+}
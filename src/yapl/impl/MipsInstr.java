@@ -0,0 +1,271 @@
+package yapl.impl;
+
+/**
+ * A single MIPS instruction, pseudo-instruction, or assembler directive of the
+ * in-memory instruction IR built by {@link BackendMIPS}.
+ * <p>
+ * The opcode is encoded as a byte, register operands as shorts: physical
+ * registers 0-31, followed by virtual registers up to
+ * {@link MipsRegAlloc#LastVirtual} (<code>Short.MAX_VALUE</code>), -1 if
+ * unused. Register operands follow the MIPS instruction formats:
+ * </p>
+ * <pre>
+ * R-type    ADD, ADDU, SUB, SUBU, MUL, SLT, SLE,
+ *           SEQ, AND, OR, SLLV, SRLV                rd, rs, rt
+ *           DIV, MULT                               rs, rt       (result in lo/hi)
+ *           MFLO, MFHI                              rd
+ *           MOVE                                    rd, rs
+ *           JR                                      rs
+ * I-type    ADDI, ADDIU, XORI, ANDI, SLL, SRL, SRA  rd, rs, imm
+ *           LI                                      rd, imm
+ *           LW, LA                                  rd, imm(rs)  or  LA rd, label
+ *           LB                                      rd, imm(rs)
+ *           SW, SB                                  rt, imm(rs)
+ *           SLTI                                    rd, rs, imm
+ *           BEQZ, BNEZ                              rs, label
+ *           BEQ, BNE, BLT, BGE, BLE, BGT            rs, rt, label
+ * J-type    J, JAL                                  label
+ * other     SYSCALL, LABEL label, GLOBL label, COMMENT text
+ * data      ALIGN imm, SPACE imm, WORD imm, ASCIIZ text (at static data offset imm)
+ * </pre>
+ * <p>
+ * Unused register operands are -1. Each instruction may carry a comment,
+ * printed after the instruction by {@link MipsPrinter}.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class MipsInstr {
+
+	/* opcodes: directives and pseudo-operations */
+	public static final byte LABEL = 0;
+	public static final byte COMMENT = 1;
+	public static final byte GLOBL = 2;
+	public static final byte ALIGN = 3;
+	public static final byte SPACE = 4;
+	public static final byte ASCIIZ = 5;
+	/* opcodes: load/store */
+	public static final byte LI = 6;
+	public static final byte LA = 7;
+	public static final byte LW = 8;
+	public static final byte SW = 9;
+	public static final byte MOVE = 10;
+	/* opcodes: arithmetic and logical */
+	public static final byte ADD = 11;
+	public static final byte ADDI = 12;
+	public static final byte SUB = 13;
+	public static final byte MUL = 14;
+	public static final byte DIV = 15;
+	public static final byte MFLO = 16;
+	public static final byte MFHI = 17;
+	public static final byte SLL = 18;
+	public static final byte SLT = 19;
+	public static final byte SLE = 20;
+	public static final byte SEQ = 21;
+	public static final byte XORI = 22;
+	public static final byte AND = 23;
+	public static final byte OR = 24;
+	/* opcodes: control flow */
+	public static final byte BEQZ = 25;
+	public static final byte BNEZ = 26;
+	public static final byte J = 27;
+	public static final byte JAL = 28;
+	public static final byte JR = 29;
+	public static final byte SYSCALL = 30;
+	/* opcodes: arithmetic without overflow traps, shifts, multiply high */
+	public static final byte SRA = 31;
+	public static final byte SRL = 32;
+	public static final byte MULT = 33;
+	public static final byte ADDU = 34;
+	public static final byte SUBU = 35;
+	/* opcodes: compare and branch */
+	public static final byte SLTI = 36;
+	public static final byte BEQ = 37;
+	public static final byte BNE = 38;
+	public static final byte BLT = 39;
+	public static final byte BGE = 40;
+	public static final byte BLE = 41;
+	public static final byte BGT = 42;
+	/* opcodes: immediate arithmetic without overflow traps */
+	public static final byte ADDIU = 43;
+	/* opcodes: data directives */
+	public static final byte WORD = 44;
+	/* opcodes: byte load/store */
+	public static final byte LB = 45;
+	public static final byte SB = 46;
+	/* opcodes: bit operations */
+	public static final byte SLLV = 47;
+	public static final byte SRLV = 48;
+	public static final byte ANDI = 49;
+
+	/** Mnemonics indexed by opcode, padded to 4 characters where applicable. */
+	static final String[] Names = {
+		"", "", ".globl", ".align", ".space", ".asciiz",
+		"li  ", "la  ", "lw  ", "sw  ", "move",
+		"add ", "addi", "sub ", "mul ", "div ", "mflo", "mfhi", "sll ",
+		"slt ", "sle ", "seq ", "xori", "and ", "or  ",
+		"beqz", "bnez", "j   ", "jal ", "jr  ", "syscall",
+		"sra ", "srl ", "mult", "addu", "subu",
+		"slti", "beq ", "bne ", "blt ", "bge ", "ble ", "bgt ",
+		"addiu", ".word", "lb  ", "sb  ", "sllv", "srlv", "andi"
+	};
+
+	public byte op;
+	public short rd = -1;
+	public short rs = -1;
+	public short rt = -1;
+	public int imm;
+	public MipsLabel label;
+
+	/** Comment, or the text of COMMENT and ASCIIZ. */
+	public String text;
+
+	private MipsInstr(byte op) {
+		this.op = op;
+	}
+
+	/** Attach a comment to this instruction and return it. */
+	public MipsInstr withComment(String comment) {
+		this.text = comment;
+		return this;
+	}
+
+	/** Return a copy of this instruction. */
+	public MipsInstr copy() {
+		MipsInstr i = new MipsInstr(op);
+		i.rd = rd;
+		i.rs = rs;
+		i.rt = rt;
+		i.imm = imm;
+		i.label = label;
+		i.text = text;
+		return i;
+	}
+
+	/*--- factory methods ---*/
+
+	/** Instruction without operands, e.g. SYSCALL. */
+	public static MipsInstr op(byte op) {
+		return new MipsInstr(op);
+	}
+
+	/** R-type instruction <code>op rd, rs, rt</code>. */
+	public static MipsInstr r(byte op, short rd, short rs, short rt) {
+		MipsInstr i = new MipsInstr(op);
+		i.rd = rd;
+		i.rs = rs;
+		i.rt = rt;
+		return i;
+	}
+
+	/** I-type instruction <code>op rd, rs, imm</code>. */
+	public static MipsInstr i(byte op, short rd, short rs, int imm) {
+		MipsInstr i = new MipsInstr(op);
+		i.rd = rd;
+		i.rs = rs;
+		i.imm = imm;
+		return i;
+	}
+
+	public static MipsInstr li(short rd, int imm) {
+		return i(LI, rd, (short) -1, imm);
+	}
+
+	public static MipsInstr move(short rd, short rs) {
+		return r(MOVE, rd, rs, (short) -1);
+	}
+
+	/** <code>LW rd, imm(rs)</code>, <code>LB rd, imm(rs)</code> or <code>LA rd, imm(rs)</code>. */
+	public static MipsInstr load(byte op, short rd, int imm, short rs) {
+		return i(op, rd, rs, imm);
+	}
+
+	/** <code>LA rd, label</code>. */
+	public static MipsInstr la(short rd, MipsLabel label) {
+		MipsInstr i = new MipsInstr(LA);
+		i.rd = rd;
+		i.label = label;
+		return i;
+	}
+
+	/** <code>SW rt, imm(rs)</code>. */
+	public static MipsInstr store(short rt, int imm, short rs) {
+		return store(SW, rt, imm, rs);
+	}
+
+	/** <code>SW rt, imm(rs)</code> or <code>SB rt, imm(rs)</code>. */
+	public static MipsInstr store(byte op, short rt, int imm, short rs) {
+		MipsInstr i = new MipsInstr(op);
+		i.rt = rt;
+		i.rs = rs;
+		i.imm = imm;
+		return i;
+	}
+
+	/** <code>DIV rs, rt</code>. */
+	public static MipsInstr div(short rs, short rt) {
+		return r(DIV, (short) -1, rs, rt);
+	}
+
+	/** <code>MULT rs, rt</code>. */
+	public static MipsInstr mult(short rs, short rt) {
+		return r(MULT, (short) -1, rs, rt);
+	}
+
+	/** <code>MFLO rd</code> or <code>MFHI rd</code>. */
+	public static MipsInstr mfx(byte op, short rd) {
+		return r(op, rd, (short) -1, (short) -1);
+	}
+
+	/** Compare-and-branch instruction <code>op rs, rt, label</code> (e.g. <code>BLT</code>). */
+	public static MipsInstr branch(byte op, short rs, short rt, MipsLabel label) {
+		MipsInstr i = branch(op, rs, label);
+		i.rt = rt;
+		return i;
+	}
+
+	/** <code>BEQZ rs, label</code> or <code>BNEZ rs, label</code>. */
+	public static MipsInstr branch(byte op, short rs, MipsLabel label) {
+		MipsInstr i = new MipsInstr(op);
+		i.rs = rs;
+		i.label = label;
+		return i;
+	}
+
+	/** <code>J label</code>, <code>JAL label</code>, <code>LABEL label</code>, or <code>GLOBL label</code>. */
+	public static MipsInstr jump(byte op, MipsLabel label) {
+		MipsInstr i = new MipsInstr(op);
+		i.label = label;
+		return i;
+	}
+
+	public static MipsInstr jr(short rs) {
+		return r(JR, (short) -1, rs, (short) -1);
+	}
+
+	/** A comment line. */
+	public static MipsInstr commentLine(String text) {
+		return new MipsInstr(COMMENT).withComment(text);
+	}
+
+	/** Data directive <code>ALIGN imm</code>, <code>SPACE imm</code> or <code>WORD imm</code>. */
+	public static MipsInstr data(byte op, int imm) {
+		MipsInstr i = new MipsInstr(op);
+		i.imm = imm;
+		return i;
+	}
+
+	/** Data directive for a string constant at offset <code>offset</code> of the static data area. */
+	public static MipsInstr asciiz(String string, int offset) {
+		MipsInstr i = new MipsInstr(ASCIIZ);
+		i.text = string;
+		i.imm = offset;
+		return i;
+	}
+
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		MipsPrinter.append(buf, this);
+		return buf.toString();
+	}
+}
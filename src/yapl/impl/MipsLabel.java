@@ -0,0 +1,22 @@
+package yapl.impl;
+
+/**
+ * A label of the MIPS instruction IR (see {@link MipsInstr}).
+ * Labels are interned by {@link BackendMIPS}, so two labels of the same
+ * name are the same object and may be compared by identity.
+ *
+ * @version $Id$
+ */
+public final class MipsLabel {
+
+	/** The label name as printed to the assembler code. */
+	public final String name;
+
+	public MipsLabel(String name) {
+		this.name = name;
+	}
+
+	public String toString() {
+		return name;
+	}
+}
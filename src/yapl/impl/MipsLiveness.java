@@ -0,0 +1,190 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Register liveness analysis on the MIPS instruction IR of a single procedure.
+ * Register sets are represented as bit masks (bit <em>r</em> for register
+ * <em>r</em>, plus pseudo registers {@link #HI} and {@link #LO}).
+ * <p>
+ * Procedure calls follow the YAPL calling convention (see {@link BackendMIPS}):
+ * a call uses the stack, frame, and static data pointers and the argument
+ * registers, and destroys all other registers except <code>$s0 - $s7</code>,
+ * which are preserved by the callee (hence live at a procedure return).
+ * A jump to a label outside the procedure is a tail call (see {@link MipsTailCall}),
+ * using the registers of both a call and a return except <code>$v0</code>.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class MipsLiveness {
+
+	/** Pseudo register numbers of the multiply/divide result registers. */
+	public static final int HI = 32;
+	public static final int LO = 33;
+
+	/** All registers. */
+	public static final long All = -1L;
+
+	/* fixed registers */
+	private static final long V0 = 1L << 2;
+	private static final long Args = 0xF0L;				// $a0 - $a3
+	static final long Pointers = (1L << 23) | (1L << 29) | (1L << 30);	// $s7, $sp, $fp
+	private static final long RA = 1L << 31;
+	private static final long CalleeSaved = 0xFF0000L;		// $s0 - $s7
+
+	/** Registers used by a procedure call. */
+	private static final long CallUses = Pointers | Args;
+
+	/** Registers destroyed by a procedure call. */
+	private static final long CallDefs = ~(CalleeSaved | Pointers | 1L) & ((1L << 34) - 1);
+
+	/** Registers live at a procedure return. */
+	private static final long ReturnUses = V0 | CalleeSaved | Pointers | RA;
+
+	/** Registers used by a tail call. */
+	private static final long TailCallUses = CallUses | CalleeSaved | RA;
+
+	/** Return the register set containing only <code>reg</code> (empty if <code>reg &lt; 0</code>). */
+	public static long bit(int reg) {
+		return (reg < 0) ? 0 : 1L << reg;
+	}
+
+	/** Return the registers read by an instruction. */
+	public static long uses(MipsInstr i) {
+		switch (i.op) {
+		case MipsInstr.LI:
+		case MipsInstr.LABEL:
+		case MipsInstr.COMMENT:
+		case MipsInstr.GLOBL:
+		case MipsInstr.J:
+			return 0;
+		case MipsInstr.MFLO:
+			return bit(LO);
+		case MipsInstr.MFHI:
+			return bit(HI);
+		case MipsInstr.SYSCALL:
+			return V0 | Args;
+		case MipsInstr.JAL:
+			return CallUses;
+		case MipsInstr.JR:
+			return bit(i.rs) | ReturnUses;
+		default:
+			return bit(i.rs) | bit(i.rt);
+		}
+	}
+
+	/** Return the registers written by an instruction. */
+	public static long defs(MipsInstr i) {
+		switch (i.op) {
+		case MipsInstr.DIV:
+		case MipsInstr.MULT:
+			return bit(HI) | bit(LO);
+		case MipsInstr.SYSCALL:
+			return V0;
+		case MipsInstr.JAL:
+			return CallDefs;
+		default:
+			return bit(i.rd);
+		}
+	}
+
+	/** Return <code>true</code> if the instruction transfers control. */
+	public static boolean isJump(MipsInstr i) {
+		switch (i.op) {
+		case MipsInstr.J:
+		case MipsInstr.JR:
+		case MipsInstr.JAL:
+			return true;
+		default:
+			return isBranch(i);
+		}
+	}
+
+	/** Return <code>true</code> if the instruction is a conditional branch. */
+	public static boolean isBranch(MipsInstr i) {
+		switch (i.op) {
+		case MipsInstr.BEQZ:
+		case MipsInstr.BNEZ:
+		case MipsInstr.BEQ:
+		case MipsInstr.BNE:
+		case MipsInstr.BLT:
+		case MipsInstr.BGE:
+		case MipsInstr.BLE:
+		case MipsInstr.BGT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Return <code>true</code> if the instruction has no effect other than
+	 * writing the registers given by {@link #defs(MipsInstr)}.
+	 */
+	public static boolean isPure(MipsInstr i) {
+		switch (i.op) {
+		case MipsInstr.SW:
+		case MipsInstr.SB:
+		case MipsInstr.SYSCALL:
+		case MipsInstr.LABEL:
+		case MipsInstr.COMMENT:
+		case MipsInstr.GLOBL:
+			return false;
+		default:
+			return !isJump(i);
+		}
+	}
+
+	/**
+	 * Compute the registers live after each instruction of <code>code</code>.
+	 * @param isMain   <code>true</code> if the code is the main program, which
+	 *                 does not return to a caller.
+	 * @return array of register sets indexed like <code>code</code>.
+	 */
+	public static long[] liveOut(ArrayList<MipsInstr> code, boolean isMain) {
+		int n = code.size();
+		HashMap<MipsLabel, Integer> labelPos = new HashMap<MipsLabel, Integer>();
+		for (int k = 0; k < n; k++) {
+			if (code.get(k).op == MipsInstr.LABEL)
+				labelPos.put(code.get(k).label, k);
+		}
+		long exit = isMain ? 0 : ReturnUses;
+		long[] liveIn = new long[n + 1];
+		long[] liveOut = new long[n];
+		liveIn[n] = exit;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = n - 1; k >= 0; k--) {
+				MipsInstr i = code.get(k);
+				long out;
+				switch (i.op) {
+				case MipsInstr.J:
+					out = target(labelPos, liveIn, i.label);
+					break;
+				case MipsInstr.JR:
+					out = exit;
+					break;
+				default:
+					out = liveIn[k + 1];
+					if (isBranch(i))
+						out |= target(labelPos, liveIn, i.label);
+				}
+				long in = uses(i) | (out & ~defs(i));
+				if (out != liveOut[k] || in != liveIn[k]) {
+					liveOut[k] = out;
+					liveIn[k] = in;
+					changed = true;
+				}
+			}
+		}
+		return liveOut;
+	}
+
+	private static long target(HashMap<MipsLabel, Integer> labelPos, long[] liveIn, MipsLabel label) {
+		Integer pos = labelPos.get(label);
+		return (pos == null) ? TailCallUses : liveIn[pos];
+	}
+}
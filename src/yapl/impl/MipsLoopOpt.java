@@ -0,0 +1,1017 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import yapl.lib.CompilerOptions;
+import yapl.lib.CompilerStatistics;
+
+/**
+ * Loop optimizations on the MIPS instruction IR of a single procedure,
+ * applied before register allocation (see {@link MipsRegAlloc}) to the loops
+ * recorded in {@link MipsProc#loops}, inner loops first.
+ * <p>
+ * <em>Induction-variable strength reduction</em> (<code>loops.ivsr</code>)
+ * finds induction variables, i.e. values defined once within the loop by
+ * adding a constant to themselves (e.g. <code>i := i + 1</code>). An array
+ * element address computed from an induction variable by
+ * {@link BackendMIPS#arrayOffset(short, short, short)} with an invariant array
+ * base address is replaced by a pointer, as is the element address of a dense
+ * array (see {@link BackendMIPS#arrayOffset(short, short, short, int)}) whose
+ * linear index is an invariant value plus an induction variable. The pointer
+ * is initialized in a preheader
+ * inserted before the loop start label and advanced by each definition of
+ * the induction variable. If the induction variable is used otherwise only to
+ * compare it with the length of such an array, starting at a small constant
+ * and counting upwards, the comparison is replaced by a pointer comparison
+ * with the end of the array, and the variable is removed
+ * (<code>loops.ivsr.counters</code>). Instructions made dead by the
+ * replacements are removed.
+ * </p>
+ * <p>
+ * <em>Loop-invariant code motion</em> (<code>loops.licm</code>) moves the
+ * computation of a value into a preheader inserted before the loop start
+ * label, if the value is computed within the loop from invariant operands
+ * only, and is neither used before its computation in the loop nor after the
+ * loop. Typical invariant values are array lengths, variables not assigned in
+ * the loop, and addresses of array elements with invariant indexes. The
+ * hoisted value is renamed to a virtual register not used elsewhere, which
+ * stays allocated throughout the loop.
+ * </p>
+ * <p>
+ * A load is invariant if no store in the loop may write the loaded word.
+ * Addresses relative to <code>$s7</code> (static data) and <code>$fp</code>
+ * (stack frame), directly or by <code>la</code>, are distinguished by their
+ * offsets; all other addresses point to the heap, where any store (e.g.
+ * through a <code>ref</code> parameter) and any system call may write the
+ * loaded word. Array lengths, i.e. words at a constant offset of a pointer
+ * loaded from memory, are an exception: assuming array indexes within bounds,
+ * stores to array elements never write them. Since a called procedure may write any
+ * global variable or heap object, and values live across calls must be saved
+ * around each call, loops containing procedure calls are not optimized.
+ * Instructions which may trap (overflow, invalid heap addresses) are only
+ * moved from the part of the loop condition executed before its first branch,
+ * except for array length loads from a pointer already dereferenced there.
+ * </p>
+ * <p>
+ * The numbers of replaced element addresses, removed induction variables, and
+ * hoisted instructions are reported as statistics <code>loops.ivsr</code>,
+ * <code>loops.ivsr.counters</code>, and <code>loops.licm</code>.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class MipsLoopOpt {
+
+	/* kinds of memory addresses */
+	private static final int Static = 0;
+	private static final int Frame = 1;
+	private static final int Heap = 2;
+	private static final int Unknown = 3;
+	/** Word at a constant offset of a pointer loaded from memory, i.e. an array length or a record field. */
+	private static final int Header = 4;
+	/** Pointer loaded from memory (for {@link #pointer(int, int, int)} only). */
+	private static final int Object = 5;
+
+	/** A memory address: a kind, and the offset from the base register for {@link #Static} and {@link #Frame}. */
+	private static class Address {
+		final int kind;
+		final int offset;
+
+		Address(int kind, int offset) {
+			this.kind = kind;
+			this.offset = offset;
+		}
+	}
+
+	private static final Address UnknownAddress = new Address(Unknown, 0);
+	private static final Address HeapAddress = new Address(Heap, 0);
+	private static final Address HeaderAddress = new Address(Header, 0);
+	private static final Address ObjectAddress = new Address(Object, 0);
+
+	/** Maximal length of the definition chains followed by {@link #address(int, int)}. */
+	private static final int MaxDepth = 8;
+
+	/** Maximal increment of an induction variable, such that the pointer increment fits into an immediate operand. */
+	private static final int MaxStep = Short.MAX_VALUE / BackendMIPS.WordSize;
+
+	/** Maximal initial value of a removed induction variable, such that pointers cannot overflow. */
+	private static final int MaxInit = Short.MAX_VALUE;
+
+	/** An induction variable of the current loop. */
+	private static class Induction {
+		/** Position of the single definition within the loop. */
+		final int def;
+
+		/** The register holding the variable. */
+		final short reg;
+
+		/** The constant added by the definition. */
+		final int step;
+
+		/** Positions of the instructions computing the definition, including {@link #def}. */
+		final ArrayList<Integer> chain;
+
+		/** Pointer registers replacing element addresses, by key of the array base address (see {@link MipsLoopOpt#invariant(int, int, int)}). */
+		final HashMap<String, Short> pointers = new HashMap<String, Short>();
+
+		/** Positions of address computations replaced by pointers, which may use the variable. */
+		final HashSet<Integer> replaced = new HashSet<Integer>();
+
+		Induction(int def, short reg, int step, ArrayList<Integer> chain) {
+			this.def = def;
+			this.reg = reg;
+			this.step = step;
+			this.chain = chain;
+		}
+	}
+
+	private final MipsProc proc;
+	private final ArrayList<MipsInstr> code;
+
+	/** Registers holding pointers to array elements, created by {@link #reduce(MipsProc.Loop, boolean)}. */
+	private final HashSet<Short> pointers;
+
+	/** Values of the <code>rd, rs, rt</code> operands of each instruction (-1 if not virtual), see {@link MipsRegAlloc}. */
+	private int[][] values;
+	private int nValues = 0;
+
+	/** Number of definitions of each value. */
+	private int[] numDefs;
+
+	/** Values live before each instruction. */
+	private BitSet[] liveIn;
+
+	private HashMap<MipsLabel, Integer> labelPos = new HashMap<MipsLabel, Integer>();
+
+	/* the current loop: code positions of the start and end labels, end of the loop condition prefix */
+	private int start, end, header;
+
+	/** Definitions of each value within the current loop. */
+	private HashMap<Integer, ArrayList<Integer>> loopDefs = new HashMap<Integer, ArrayList<Integer>>();
+
+	/** Values occurring outside of the current loop. */
+	private BitSet outside = new BitSet();
+
+	/** Values live at the exits of the current loop. */
+	private BitSet exitLive = new BitSet();
+
+	/* stores in the current loop */
+	private HashSet<Integer> staticStores = new HashSet<Integer>();
+	private HashSet<Integer> frameStores = new HashSet<Integer>();
+	private boolean heapStores = false;
+	private boolean headerStores = false;
+	private boolean unknownStores = false;
+
+	/** Virtual registers not used by the procedure below {@link #nextFree}, and the ones allocated in the preheader. */
+	private ArrayList<Short> free = new ArrayList<Short>();
+	private ArrayList<Short> fresh = new ArrayList<Short>();
+
+	/** First virtual register above all registers used by the procedure and not allocated in the preheader. */
+	private int nextFree;
+
+	/** Registers holding invariant values computed in the preheader, by key (see {@link #invariant(int, int, int)}). */
+	private HashMap<String, Short> clones = new HashMap<String, Short>();
+
+	private MipsLoopOpt(MipsProc proc, HashSet<Short> pointers) {
+		this.proc = proc;
+		this.code = proc.code;
+		this.pointers = pointers;
+		numberValues();
+		computeLiveness();
+	}
+
+	/**
+	 * Optimize all loops of a procedure.
+	 * @param proc      the procedure (modified in place).
+	 * @param options   compiler options (enabled parts).
+	 * @param stats     where to count replaced and hoisted instructions.
+	 */
+	public static void optimize(MipsProc proc, CompilerOptions options, CompilerStatistics stats) {
+		if (proc.allocs.isEmpty())
+			return;
+		HashSet<Short> pointers = new HashSet<Short>();
+		for (MipsProc.Loop loop : proc.loops) {
+			if (options.isEnabled("loops.ivsr")) {
+				int[] n = new MipsLoopOpt(proc, pointers).reduce(loop, options.isEnabled("loops.ivsr.counters"));
+				if (n[0] > 0) {
+					while (new MipsLoopOpt(proc, pointers).removeDeadCode() > 0)
+						;
+					stats.add("loops.ivsr", n[0]);
+				}
+				if (n[1] > 0)
+					stats.add("loops.ivsr.counters", n[1]);
+			}
+			int n = options.isEnabled("loops.licm") ? new MipsLoopOpt(proc, pointers).hoist(loop) : 0;
+			if (n > 0)
+				stats.add("loops.licm", n);
+		}
+	}
+
+	/** Split virtual registers into values and number them, as {@link MipsRegAlloc} does. */
+	private void numberValues() {
+		int[] current = new int[proc.registerLimit()];
+		Arrays.fill(current, -1);
+		values = new int[code.size()][];
+		int e = 0;
+		for (int k = 0; k < code.size(); k++) {
+			while (e < proc.allocs.size() && proc.allocs.get(e)[0] <= k)
+				current[proc.allocs.get(e++)[1]] = nValues++;
+			MipsInstr i = code.get(k);
+			values[k] = new int[] { value(current, i.rd), value(current, i.rs), value(current, i.rt) };
+			if (i.op == MipsInstr.LABEL)
+				labelPos.put(i.label, k);
+		}
+		numDefs = new int[nValues];
+		for (int[] v : values) {
+			if (v[0] >= 0)
+				numDefs[v[0]]++;
+		}
+	}
+
+	private static int value(int[] current, short reg) {
+		return MipsRegAlloc.isVirtual(reg) && reg < current.length ? current[reg] : -1;
+	}
+
+	/** Compute the values live before each instruction. */
+	private void computeLiveness() {
+		int n = code.size();
+		liveIn = new BitSet[n + 1];
+		for (int k = 0; k <= n; k++)
+			liveIn[k] = new BitSet();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = n - 1; k >= 0; k--) {
+				MipsInstr i = code.get(k);
+				BitSet in = new BitSet();
+				if (i.op != MipsInstr.J && i.op != MipsInstr.JR)
+					in.or(liveIn[k + 1]);
+				if (i.op == MipsInstr.J || MipsLiveness.isBranch(i))
+					in.or(liveAt(i.label));
+				int[] v = values[k];
+				if (v[0] >= 0)
+					in.clear(v[0]);
+				if (v[1] >= 0)
+					in.set(v[1]);
+				if (v[2] >= 0)
+					in.set(v[2]);
+				if (!in.equals(liveIn[k])) {
+					liveIn[k] = in;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/** Return the values live at a label (none for labels outside the procedure). */
+	private BitSet liveAt(MipsLabel label) {
+		Integer pos = labelPos.get(label);
+		return (pos == null) ? new BitSet() : liveIn[pos];
+	}
+
+	/** Return <code>true</code> if the instruction ends a basic block or starts a new one. */
+	private static boolean isBlockBoundary(MipsInstr i) {
+		return i.op == MipsInstr.LABEL || MipsLiveness.isJump(i);
+	}
+
+	/** Return <code>true</code> if the instruction at position <code>k</code> reads value <code>v</code>. */
+	private boolean reads(int k, int v) {
+		return values[k][1] == v || values[k][2] == v;
+	}
+
+	/**
+	 * Find the loop and collect its definitions and stores.
+	 * @return <code>false</code> if the loop cannot be optimized.
+	 */
+	private boolean analyze(MipsProc.Loop loop) {
+		Integer s = labelPos.get(loop.start), e = labelPos.get(loop.end);
+		if (s == null || e == null || s >= e)
+			return false;
+		start = s;
+		end = e;
+		/* a single entry at the start label */
+		for (int k = 0; k < code.size(); k++) {
+			MipsInstr i = code.get(k);
+			if ((i.op == MipsInstr.J || MipsLiveness.isBranch(i)) && (k < start || k >= end)) {
+				Integer target = labelPos.get(i.label);
+				if (target != null && target > start && target < end)
+					return false;
+			}
+		}
+		for (int k = 0; k < code.size(); k++) {
+			for (int v : (k <= start || k >= end) ? values[k] : MipsRegAlloc.NoValues) {
+				if (v >= 0)
+					outside.set(v);
+			}
+		}
+		header = -1;
+		for (int k = start + 1; k < end; k++) {
+			MipsInstr i = code.get(k);
+			if (i.op == MipsInstr.JAL || i.op == MipsInstr.JR)
+				return false;
+			if (header < 0 && (isBlockBoundary(i) || i.op == MipsInstr.SW || i.op == MipsInstr.SB
+					|| i.op == MipsInstr.SYSCALL))
+				header = k;
+			Integer target = (i.op == MipsInstr.J || MipsLiveness.isBranch(i)) ? labelPos.get(i.label) : null;
+			if (target != null && (target < start || target >= end))
+				exitLive.or(liveIn[target]);
+			if (values[k][0] >= 0) {
+				if (!loopDefs.containsKey(values[k][0]))
+					loopDefs.put(values[k][0], new ArrayList<Integer>());
+				loopDefs.get(values[k][0]).add(k);
+			}
+			if (i.op == MipsInstr.SYSCALL)
+				heapStores = headerStores = true;
+			if (i.op != MipsInstr.SW && i.op != MipsInstr.SB)
+				continue;
+			Address a = address(k, MaxDepth);
+			// a byte store modifies the word containing it
+			int word = a.offset & -BackendMIPS.WordSize;
+			if (a.kind == Static)
+				staticStores.add(word);
+			else if (a.kind == Frame)
+				frameStores.add(word);
+			else if (a.kind == Heap || a.kind == Header) {
+				heapStores = true;
+				if (!isElementStore(k))
+					headerStores = true;
+			} else
+				unknownStores = true;
+		}
+		return true;
+	}
+
+	/** Return <code>true</code> if the store at position <code>k</code> writes an array element. */
+	private boolean isElementStore(int k) {
+		MipsInstr i = code.get(k);
+		return i.imm == 0 && (pointers.contains(i.rs) || (values[k][1] >= 0 && arrayOffset(values[k][1], k) != null));
+	}
+
+	/** Return the address accessed by the load or store instruction at position <code>k</code>. */
+	private Address address(int k, int depth) {
+		MipsInstr i = code.get(k);
+		if (i.label != null)
+			return UnknownAddress;
+		if (i.rs == BackendMIPS.RegStatic)
+			return new Address(Static, i.imm);
+		if (i.rs == BackendMIPS.RegFP)
+			return new Address(Frame, i.imm);
+		if (pointers.contains(i.rs))
+			return HeapAddress;
+		int[] offset = (i.imm == 0 && values[k][1] >= 0) ? arrayOffset(values[k][1], k) : null;
+		if (offset != null) {
+			int kind = pointer(values[offset[2]][1], offset[2], depth).kind;
+			if (kind == Object || kind == Heap)
+				return HeapAddress;		// array element, whatever the index is
+		}
+		Address base = pointer(values[k][1], k, depth);
+		if (base.kind == Object)
+			return HeaderAddress;
+		return (base.kind == Static || base.kind == Frame) ? new Address(base.kind, base.offset + i.imm) : base;
+	}
+
+	/**
+	 * Return where the value <code>v</code>, used at position <code>k</code>,
+	 * points to: addresses in the static data area or stack frame are only
+	 * computed by <code>la</code>, values loaded from memory are pointers to
+	 * heap objects (or integers), and all other values are addresses within
+	 * heap objects (or integers).
+	 */
+	private Address pointer(int v, int k, int depth) {
+		int d = (v < 0 || depth == 0) ? -1 : reachingDef(v, k);
+		if (d < 0)
+			return UnknownAddress;
+		MipsInstr i = code.get(d);
+		switch (i.op) {
+		case MipsInstr.LA:
+			return address(d, depth - 1);
+		case MipsInstr.LW:
+			return ObjectAddress;
+		case MipsInstr.MOVE:
+			return pointer(values[d][1], d, depth - 1);
+		default:
+			for (short r : new short[] { i.rs, i.rt }) {
+				if (r == BackendMIPS.RegStatic || r == BackendMIPS.RegFP || r == BackendMIPS.RegSP)
+					return UnknownAddress;
+			}
+			for (int j = 1; j <= 2; j++) {
+				if (values[d][j] < 0)
+					continue;
+				int kind = pointer(values[d][j], d, depth - 1).kind;
+				if (kind != Heap && kind != Object)
+					return UnknownAddress;
+			}
+			return HeapAddress;
+		}
+	}
+
+	/**
+	 * Return the position of the definition of value <code>v</code> reaching
+	 * position <code>k</code>: the last one in the same basic block, or the
+	 * only definition of <code>v</code>; -1 if unknown.
+	 */
+	private int reachingDef(int v, int k) {
+		int d = blockDef(v, k);
+		if (d >= 0 || numDefs[v] != 1)
+			return d;
+		for (d = 0; d < code.size(); d++) {
+			if (values[d][0] == v)
+				return d;
+		}
+		return -1;
+	}
+
+	/** Return the position of the last definition of value <code>v</code> before position <code>k</code> in the same basic block, or -1. */
+	private int blockDef(int v, int k) {
+		for (int d = k - 1; d >= 0 && !isBlockBoundary(code.get(d)); d--) {
+			if (values[d][0] == v)
+				return d;
+		}
+		return -1;
+	}
+
+	/**
+	 * Follow the copies of value <code>v</code> used at position <code>k</code>
+	 * within a basic block.
+	 * @param chain  where to add the positions of the copy instructions.
+	 * @return the copied value, and the position where the copy reads it
+	 *         (<code>v</code> and <code>k</code> if there is no copy).
+	 */
+	private int[] resolve(int v, int k, Collection<Integer> chain) {
+		for (int d = blockDef(v, k); d >= 0 && code.get(d).op == MipsInstr.MOVE && values[d][1] >= 0; d = blockDef(v, k)) {
+			chain.add(d);
+			v = values[d][1];
+			k = d;
+		}
+		return new int[] { v, k };
+	}
+
+	/**
+	 * Match the address computation of {@link BackendMIPS#arrayOffset(short, short, short, int)}
+	 * for value <code>a</code> used at position <code>k</code>:
+	 * <code>addiu t, x, dims ; sll t, t, 2 ; addu a, base, t</code> within a basic block.
+	 * @return the positions of the three instructions, or <code>null</code>.
+	 */
+	private int[] arrayOffset(int a, int k) {
+		int add = blockDef(a, k);
+		if (add < 0 || code.get(add).op != MipsInstr.ADDU || values[add][1] < 0 || values[add][2] < 0)
+			return null;
+		int shift = blockDef(values[add][2], add);
+		if (shift < 0 || code.get(shift).op != MipsInstr.SLL || code.get(shift).imm != BackendMIPS.LogWordSize
+				|| values[shift][1] < 0)
+			return null;
+		int inc = blockDef(values[shift][1], shift);
+		if (inc < 0 || code.get(inc).op != MipsInstr.ADDIU || code.get(inc).imm < 1 || values[inc][1] < 0)
+			return null;
+		return new int[] { inc, shift, add };
+	}
+
+	/**
+	 * Return <code>true</code> if the values defined at <code>positions</code>
+	 * (ending with <code>last</code>) are only used by these instructions and
+	 * by operand <code>j</code> of <code>last</code> (any operand if
+	 * <code>j &lt; 0</code>), and are dead after <code>last</code>.
+	 */
+	private boolean isConfined(Collection<Integer> positions, int last, int j) {
+		for (int x : positions) {
+			int w = values[x][0];
+			if (x == last || w < 0)
+				continue;
+			boolean killed = false;
+			for (int y = x + 1; y <= last && !killed; y++) {
+				for (int o = 1; o <= 2; o++) {
+					if (values[y][o] == w && (y == last ? j >= 0 && j != o : !positions.contains(y)))
+						return false;
+				}
+				killed = values[y][0] == w && (y == last || !positions.contains(y));
+			}
+			if (!killed && liveIn[last + 1].get(w))
+				return false;
+		}
+		return true;
+	}
+
+	/** Find the virtual registers not used by the procedure. */
+	private void freeRegisters() {
+		nextFree = proc.registerLimit();
+		boolean[] used = new boolean[nextFree];
+		for (int[] a : proc.allocs)
+			used[a[1]] = true;
+		free = new ArrayList<Short>();
+		for (int r = MipsRegAlloc.FirstVirtual; r < nextFree; r++) {
+			if (!used[r])
+				free.add((short) r);
+		}
+	}
+
+	/** Return the number of virtual registers not used by the procedure. */
+	private int freeCount() {
+		return free.size() + MipsRegAlloc.LastVirtual + 1 - nextFree;
+	}
+
+	/** Allocate a virtual register not used by the procedure at the start of the preheader. */
+	private short freshRegister() {
+		short r = free.isEmpty() ? (short) nextFree++ : free.remove(0);
+		fresh.add(r);
+		return r;
+	}
+
+	/**
+	 * Return a key identifying the value <code>v</code> used at position
+	 * <code>k</code> within the current loop, if it is invariant: the value
+	 * is not defined in the loop, or it is defined in the same basic block by
+	 * an instruction which may be moved to the preheader (see
+	 * {@link #canMove(int)}) and has invariant operands.
+	 * @return the key, or <code>null</code> if the value is not invariant.
+	 */
+	private String invariant(int v, int k, int depth) {
+		if (!loopDefs.containsKey(v))
+			return liveIn[start].get(v) ? "v" + v : null;
+		int d = blockDef(v, k);
+		if (d < 0 || depth == 0 || !canMove(d))
+			return null;
+		MipsInstr i = code.get(d);
+		StringBuilder key = new StringBuilder(MipsInstr.Names[i.op].trim()).append('(');
+		short[] regs = { i.rs, i.rt };
+		for (int j = 1; j <= 2; j++) {
+			short r = regs[j - 1];
+			if (values[d][j] >= 0) {
+				String operand = invariant(values[d][j], d, depth - 1);
+				if (operand == null)
+					return null;
+				key.append(operand);
+			} else if (r > 0 && r != BackendMIPS.RegStatic && r != BackendMIPS.RegFP) {
+				return null;
+			} else {
+				key.append('$').append(r);
+			}
+			key.append(',');
+		}
+		key.append(i.imm);
+		if (i.label != null)
+			key.append(',').append(i.label.name);
+		return key.append(')').toString();
+	}
+
+	/**
+	 * Append instructions computing the invariant value <code>v</code>, used
+	 * at position <code>k</code> in register <code>reg</code>, to the preheader.
+	 * @return the register holding the value in the preheader.
+	 */
+	private short clone(int v, int k, short reg, ArrayList<MipsInstr> preheader) {
+		if (!loopDefs.containsKey(v))
+			return reg;
+		String key = invariant(v, k, MaxDepth);
+		Short r = clones.get(key);
+		if (r != null)
+			return r;
+		int d = blockDef(v, k);
+		MipsInstr c = code.get(d).copy();
+		if (values[d][1] >= 0)
+			c.rs = clone(values[d][1], d, c.rs, preheader);
+		if (values[d][2] >= 0)
+			c.rt = clone(values[d][2], d, c.rt, preheader);
+		c.rd = freshRegister();
+		c.text = null;
+		preheader.add(c);
+		clones.put(key, c.rd);
+		return c.rd;
+	}
+
+	/**
+	 * Return the induction variable defined by value <code>v</code>: the value
+	 * is live at the loop start, and defined once within the loop by
+	 * <code>addi v, v, step</code> (possibly through copies).
+	 * @return the induction variable, or <code>null</code>.
+	 */
+	private Induction induction(int v) {
+		ArrayList<Integer> defs = loopDefs.get(v);
+		if (defs.size() != 1 || !liveIn[start].get(v))
+			return null;
+		int def = defs.get(0);
+		ArrayList<Integer> chain = new ArrayList<Integer>();
+		chain.add(def);
+		int add = def;
+		if (code.get(def).op == MipsInstr.MOVE && values[def][1] >= 0) {
+			add = blockDef(values[def][1], def);
+			if (add < 0)
+				return null;
+			chain.add(add);
+		}
+		MipsInstr i = code.get(add);
+		if ((i.op != MipsInstr.ADDI && i.op != MipsInstr.ADDIU) || values[add][1] < 0
+				|| i.imm == 0 || Math.abs(i.imm) > MaxStep)
+			return null;
+		if (resolve(values[add][1], add, chain)[0] != v)
+			return null;
+		return new Induction(def, code.get(def).rd, i.imm, chain);
+	}
+
+	/**
+	 * Replace element addresses computed from induction variables of a loop
+	 * by pointers, and induction variables only compared with array lengths
+	 * by pointer comparisons.
+	 * @param counters  whether to remove induction variables.
+	 * @return the numbers of replaced element addresses and removed induction variables.
+	 */
+	private int[] reduce(MipsProc.Loop loop, boolean counters) {
+		int[] n = { 0, 0 };
+		if (!analyze(loop))
+			return n;
+		HashMap<Integer, Induction> ivs = new HashMap<Integer, Induction>();
+		for (int v : loopDefs.keySet()) {
+			Induction iv = induction(v);
+			if (iv != null)
+				ivs.put(v, iv);
+		}
+		if (ivs.isEmpty())
+			return n;
+		freeRegisters();
+		ArrayList<MipsInstr> preheader = new ArrayList<MipsInstr>();
+		HashMap<Integer, ArrayList<MipsInstr>> after = new HashMap<Integer, ArrayList<MipsInstr>>();
+		for (int k = start + 1; k < end && freeCount() > MaxDepth + 2; k++) {
+			MipsInstr i = code.get(k);
+			if ((i.op != MipsInstr.LW && i.op != MipsInstr.SW) || i.label != null || i.imm != 0 || values[k][1] < 0)
+				continue;
+			int[] offset = arrayOffset(values[k][1], k);
+			if (offset == null)
+				continue;
+			ArrayList<Integer> chain = new ArrayList<Integer>();
+			int[] x = resolve(values[offset[0]][1], offset[0], chain);
+			Induction iv = ivs.get(x[0]);
+			int base = values[offset[2]][1];
+			String key = invariant(base, offset[2], MaxDepth);
+			int dims = code.get(offset[0]).imm;
+			/* linear index of a dense array element: invariant + induction variable */
+			int add = (iv == null && key != null && freeCount() > 2 * MaxDepth + 2) ? blockDef(x[0], x[1]) : -1;
+			int side = 0;
+			if (add >= 0 && code.get(add).op == MipsInstr.ADDU && values[add][1] >= 0 && values[add][2] >= 0) {
+				for (int j = 1; j <= 2 && iv == null; j++) {
+					ArrayList<Integer> c = new ArrayList<Integer>();
+					int[] y = resolve(values[add][j], add, c);
+					String addend = invariant(values[add][3 - j], add, MaxDepth);
+					if (ivs.containsKey(y[0]) && addend != null) {
+						iv = ivs.get(y[0]);
+						x = y;
+						side = 3 - j;
+						key += "+" + addend;
+						chain.add(add);
+						chain.addAll(c);
+					}
+				}
+			}
+			if (iv == null || key == null || (x[1] < iv.def && iv.def < k))
+				continue;
+			if (dims != 1)
+				key += "#" + dims;		// no array length at offset 0, see replaceCounter()
+			Short p = iv.pointers.get(key);
+			if (p == null) {
+				/* p := base + (i + dims) * 4, advanced by each definition of i */
+				short b = clone(base, offset[2], code.get(offset[2]).rs, preheader);
+				short t = freshRegister();
+				p = freshRegister();
+				if (side > 0) {
+					MipsInstr a = code.get(add);
+					short addend = clone(values[add][side], add, (side == 1) ? a.rs : a.rt, preheader);
+					preheader.add(MipsInstr.r(MipsInstr.ADDU, t, iv.reg, addend));
+					preheader.add(MipsInstr.i(MipsInstr.ADDIU, t, t, dims));
+				} else
+					preheader.add(MipsInstr.i(MipsInstr.ADDIU, t, iv.reg, dims));
+				preheader.add(MipsInstr.i(MipsInstr.SLL, t, t, BackendMIPS.LogWordSize));
+				preheader.add(MipsInstr.r(MipsInstr.ADDU, p, b, t));
+				iv.pointers.put(key, p);
+				pointers.add(p);
+				if (!after.containsKey(iv.def))
+					after.put(iv.def, new ArrayList<MipsInstr>());
+				after.get(iv.def).add(MipsInstr.i(MipsInstr.ADDIU, p, p, iv.step * BackendMIPS.WordSize));
+			}
+			chain.addAll(Arrays.asList(offset[0], offset[1], offset[2]));
+			if (isConfined(chain, k, 1))
+				iv.replaced.addAll(chain);
+			i.rs = p;
+			n[0]++;
+		}
+		if (n[0] == 0)
+			return n;
+		boolean[] removed = new boolean[code.size()];
+		if (counters) {
+			for (int v : ivs.keySet()) {
+				Induction iv = ivs.get(v);
+				if (!iv.pointers.isEmpty() && freeCount() > 2 * MaxDepth + 2 && replaceCounter(v, iv, preheader)) {
+					removed[iv.def] = true;
+					n[1]++;
+				}
+			}
+		}
+		preheader.get(0).text = "preheader of " + loop.start.name;
+		rewrite(start, preheader, removed, after);
+		return n;
+	}
+
+	/**
+	 * Replace the comparison of induction variable <code>v</code> with the
+	 * length of an array, whose elements are accessed by a pointer, by a
+	 * comparison of the pointer with the end of the array, if the induction
+	 * variable is not used otherwise.
+	 * @return <code>true</code> if the comparison has been replaced, and the
+	 *         definition of the induction variable may be removed.
+	 */
+	private boolean replaceCounter(int v, Induction iv, ArrayList<MipsInstr> preheader) {
+		if (iv.step <= 0 || exitLive.get(v) || !isConfined(iv.chain, iv.def, -1) || !startsSmall(v))
+			return false;
+		/* the only comparison, with the length of an array whose base address is a pointer key */
+		int branch = -1, side = 0;
+		HashSet<Integer> allowed = new HashSet<Integer>(iv.replaced);
+		allowed.addAll(iv.chain);
+		for (int k = start + 1; k < end; k++) {
+			MipsInstr i = code.get(k);
+			if (!MipsLiveness.isBranch(i) || values[k][1] < 0 || values[k][2] < 0)
+				continue;
+			for (int j = 1; j <= 2; j++) {
+				ArrayList<Integer> chain = new ArrayList<Integer>();
+				int[] x = resolve(values[k][j], k, chain);
+				if (x[0] != v)
+					continue;
+				if (branch >= 0 || (x[1] < iv.def && iv.def < k) || !isConfined(chain, k, j))
+					return false;
+				allowed.addAll(chain);
+				allowed.add(k);
+				branch = k;
+				side = j;
+			}
+		}
+		for (int k = start + 1; k < end; k++) {
+			if (reads(k, v) && !allowed.contains(k))
+				return false;
+		}
+		if (branch < 0)
+			return false;
+		MipsInstr cmp = code.get(branch);
+		int length = values[branch][3 - side];
+		int load = blockDef(length, branch);
+		if (load < 0 || code.get(load).op != MipsInstr.LW || code.get(load).imm != 0 || code.get(load).label != null
+				|| values[load][1] < 0 || invariant(length, branch, MaxDepth) == null)
+			return false;
+		Short p = iv.pointers.get(invariant(values[load][1], load, MaxDepth));
+		if (p == null)
+			return false;
+		/* end := base + (length + 1) * 4 */
+		short len = clone(length, branch, (side == 1) ? cmp.rt : cmp.rs, preheader);
+		short b = clone(values[load][1], load, code.get(load).rs, preheader);
+		short t = freshRegister();
+		short e = freshRegister();
+		preheader.add(MipsInstr.i(MipsInstr.ADDIU, t, len, 1));
+		preheader.add(MipsInstr.i(MipsInstr.SLL, t, t, BackendMIPS.LogWordSize));
+		preheader.add(MipsInstr.r(MipsInstr.ADDU, e, b, t));
+		if (side == 1) {
+			cmp.rs = p;
+			cmp.rt = e;
+		} else {
+			cmp.rs = e;
+			cmp.rt = p;
+		}
+		return true;
+	}
+
+	/** Return <code>true</code> if value <code>v</code> is set to a small non-negative constant right before the loop. */
+	private boolean startsSmall(int v) {
+		int d = blockDef(v, start);
+		return d >= 0 && code.get(d).op == MipsInstr.LI && code.get(d).imm >= 0 && code.get(d).imm <= MaxInit;
+	}
+
+	/**
+	 * Remove pure instructions defining values which are not used afterwards.
+	 * @return the number of removed instructions.
+	 */
+	private int removeDeadCode() {
+		boolean[] removed = new boolean[code.size()];
+		int n = 0;
+		for (int k = 0; k < code.size(); k++) {
+			int v = values[k][0];
+			if (v >= 0 && MipsLiveness.isPure(code.get(k)) && !liveIn[k + 1].get(v)) {
+				removed[k] = true;
+				n++;
+			}
+		}
+		if (n > 0)
+			rewrite(0, new ArrayList<MipsInstr>(), removed, new HashMap<Integer, ArrayList<MipsInstr>>());
+		return n;
+	}
+
+	/**
+	 * Move the invariant values of a loop into a preheader.
+	 * @return the number of hoisted instructions.
+	 */
+	private int hoist(MipsProc.Loop loop) {
+		if (!analyze(loop))
+			return 0;
+		freeRegisters();
+		/* hoisted definitions of each value, found in order of their dependencies */
+		int[] hoisted = new int[nValues];
+		short[] rename = new short[nValues];
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int v : loopDefs.keySet()) {
+				if (!isChain(v) || (hoisted[v] == 0 && freeCount() == 0))
+					continue;
+				int limit = loopDefs.get(v).size() - (exitLive.get(v) || liveIn[start].get(v) ? 1 : 0);
+				while (hoisted[v] < limit && canHoist(loopDefs.get(v).get(hoisted[v]), v, hoisted)) {
+					if (hoisted[v]++ == 0)
+						rename[v] = freshRegister();
+					changed = true;
+				}
+			}
+		}
+		if (fresh.isEmpty())
+			return 0;
+		/* rename hoisted values, and move their definitions */
+		boolean[] moved = new boolean[code.size()];
+		ArrayList<MipsInstr> preheader = new ArrayList<MipsInstr>();
+		for (int k = start + 1; k < end; k++) {
+			MipsInstr i = code.get(k);
+			int[] v = values[k];
+			if (v[0] >= 0 && isHoisted(k, v[0], hoisted)) {
+				i.rd = rename[v[0]];
+				moved[k] = true;
+				preheader.add(i);
+			}
+			if (v[1] >= 0 && isRenamedUse(k, v[1], hoisted))
+				i.rs = rename[v[1]];
+			if (v[2] >= 0 && isRenamedUse(k, v[2], hoisted))
+				i.rt = rename[v[2]];
+		}
+		preheader.get(0).text = (preheader.get(0).text == null ? "" : preheader.get(0).text + ", ")
+				+ "preheader of " + loop.start.name;
+		rewrite(start, preheader, moved, new HashMap<Integer, ArrayList<MipsInstr>>());
+		return preheader.size();
+	}
+
+	/**
+	 * Replace the code of the procedure, and update the positions of register allocations.
+	 * @param at          where to insert the preheader, which allocates the {@link #fresh} registers.
+	 * @param preheader   the instructions to insert before position <code>at</code>.
+	 * @param removed     the positions of instructions to remove.
+	 * @param after       instructions to insert after the given positions.
+	 */
+	private void rewrite(int at, ArrayList<MipsInstr> preheader, boolean[] removed,
+			HashMap<Integer, ArrayList<MipsInstr>> after) {
+		int[] position = new int[code.size() + 1];
+		int first = 0;
+		ArrayList<MipsInstr> result = new ArrayList<MipsInstr>(code.size() + preheader.size());
+		for (int k = 0; k <= code.size(); k++) {
+			if (k == at) {
+				first = result.size();
+				result.addAll(preheader);
+			}
+			position[k] = result.size();
+			if (k < code.size() && !removed[k])
+				result.add(code.get(k));
+			if (after.containsKey(k))
+				result.addAll(after.get(k));
+		}
+		ArrayList<int[]> allocs = new ArrayList<int[]>(proc.allocs.size() + fresh.size());
+		for (int[] a : proc.allocs)
+			allocs.add(new int[] { position[a[0]], a[1] });
+		for (short r : fresh)
+			allocs.add(new int[] { first, r });
+		Collections.sort(allocs, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a[0], b[0]);
+			}
+		});
+		code.clear();
+		code.addAll(result);
+		proc.allocs.clear();
+		proc.allocs.addAll(allocs);
+	}
+
+	/** Return <code>true</code> if the definition of value <code>v</code> at position <code>k</code> is hoisted. */
+	private boolean isHoisted(int k, int v, int[] hoisted) {
+		return hoisted[v] > 0 && k <= loopDefs.get(v).get(hoisted[v] - 1);
+	}
+
+	/**
+	 * Return <code>true</code> if the use of value <code>v</code> at position
+	 * <code>k</code> reads the hoisted value: all uses if all definitions are
+	 * hoisted, otherwise the uses up to the first definition not hoisted.
+	 */
+	private boolean isRenamedUse(int k, int v, int[] hoisted) {
+		ArrayList<Integer> defs = loopDefs.get(v);
+		return hoisted[v] > 0 && (hoisted[v] == defs.size() || k <= defs.get(hoisted[v]));
+	}
+
+	/**
+	 * Return <code>true</code> if the definitions of value <code>v</code> form
+	 * a chain within a basic block of the current loop: each definition but the
+	 * first may read the previous one, and there are no other uses in between.
+	 * The value is not used before the chain or outside of the loop.
+	 */
+	private boolean isChain(int v) {
+		ArrayList<Integer> defs = loopDefs.get(v);
+		int first = defs.get(0), last = defs.get(defs.size() - 1);
+		if (numDefs[v] != defs.size() || liveIn[first].get(v) || outside.get(v))
+			return false;
+		for (int k = first + 1; k < last; k++) {
+			MipsInstr i = code.get(k);
+			if (values[k][0] != v && (isBlockBoundary(i) || values[k][1] == v || values[k][2] == v))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Return <code>true</code> if the definition of value <code>v</code> at
+	 * position <code>k</code> may be moved to the preheader, given the
+	 * definitions <code>hoisted</code> already (including the previous
+	 * definitions of <code>v</code>).
+	 */
+	private boolean canHoist(int k, int v, int[] hoisted) {
+		for (int j = 1; j <= 2; j++) {
+			int u = values[k][j];
+			if (u >= 0 && u != v && loopDefs.containsKey(u) && hoisted[u] < loopDefs.get(u).size())
+				return false;
+		}
+		MipsInstr i = code.get(k);
+		for (short r : new short[] { i.rs, i.rt }) {
+			if (r > 0 && r != BackendMIPS.RegStatic && r != BackendMIPS.RegFP && !MipsRegAlloc.isVirtual(r))
+				return false;
+		}
+		return canMove(k);
+	}
+
+	/**
+	 * Return <code>true</code> if the invariant base address of the load at
+	 * position <code>k</code> is dereferenced before the first branch of the
+	 * loop, so that the load cannot trap in the preheader unless the loop would.
+	 */
+	private boolean isDereferenced(int k) {
+		String key = (values[k][1] >= 0) ? invariant(values[k][1], k, MaxDepth - 1) : null;
+		if (key == null)
+			return false;
+		for (int d = start + 1; d < header; d++) {
+			MipsInstr i = code.get(d);
+			if ((i.op == MipsInstr.LW || i.op == MipsInstr.SW) && i.label == null && values[d][1] >= 0
+					&& key.equals(invariant(values[d][1], d, MaxDepth - 1)))
+				return true;
+		}
+		return false;
+	}
+
+	/** Return <code>true</code> if the instruction at position <code>k</code> may be executed in the preheader. */
+	private boolean canMove(int k) {
+		MipsInstr i = code.get(k);
+		switch (i.op) {
+		case MipsInstr.LI:
+		case MipsInstr.LA:
+		case MipsInstr.MOVE:
+		case MipsInstr.ADDU:
+		case MipsInstr.ADDIU:
+		case MipsInstr.SUBU:
+		case MipsInstr.MUL:
+		case MipsInstr.SLL:
+		case MipsInstr.SRL:
+		case MipsInstr.SRA:
+		case MipsInstr.SLLV:
+		case MipsInstr.SRLV:
+		case MipsInstr.AND:
+		case MipsInstr.OR:
+		case MipsInstr.XORI:
+		case MipsInstr.ANDI:
+		case MipsInstr.SLT:
+		case MipsInstr.SLTI:
+		case MipsInstr.SLE:
+		case MipsInstr.SEQ:
+			return true;
+		case MipsInstr.ADD:
+		case MipsInstr.ADDI:
+		case MipsInstr.SUB:
+			return k < header;			// may trap on overflow
+		case MipsInstr.LW:
+			if (unknownStores)
+				return false;
+			Address a = address(k, MaxDepth);
+			switch (a.kind) {
+			case Static:
+				return !staticStores.contains(a.offset);
+			case Frame:
+				return !frameStores.contains(a.offset);
+			case Heap:
+				return !heapStores && k < header;		// may trap on invalid addresses
+			case Header:
+				return !headerStores && (k < header || isDereferenced(k));
+			default:
+				return false;
+			}
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+
+import yapl.lib.CompilerOptions;
+import yapl.lib.CompilerStatistics;
+
+/**
+ * Peephole optimizer on the MIPS instruction IR of a single procedure.
+ * <p>
+ * The optimizer slides over the instruction list and tries each rule of
+ * {@link #Rules} at each position until no rule applies any more. Rules
+ * look at a small window starting at the current position; rules replacing
+ * a register by another one additionally consult {@link MipsLiveness}.
+ * Each rule may be disabled by the compiler option
+ * <code>-fno-peephole.</code><em>name</em>.
+ * The number of applications of each rule and the number of removed
+ * instructions are reported as statistics <code>peephole.</code><em>name</em>
+ * and <code>peephole.removed</code>.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class MipsPeephole {
+
+	/** A rewriting rule applied at a position of an instruction list. */
+	protected abstract static class Rule {
+		public final String name;
+
+		Rule(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Try to apply the rule at position <code>k</code> of <code>p.code</code>.
+		 * @return <code>true</code> if the code has been changed.
+		 */
+		abstract boolean apply(MipsPeephole p, int k);
+	}
+
+	/** The rule table. */
+	protected static final Rule[] Rules = {
+		/* sw $t, k($b) ; lw $d, k($b)  ==>  sw $t, k($b) ; move $d, $t */
+		new Rule("store-load") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr sw = p.code.get(k);
+				MipsInstr lw = p.next(k);
+				if (sw.op != MipsInstr.SW || lw == null || lw.op != MipsInstr.LW || lw.label != null
+						|| lw.rs != sw.rs || lw.imm != sw.imm)
+					return false;
+				p.replace(lw, MipsInstr.move(lw.rd, sw.rt));
+				return true;
+			}
+		},
+		/* addi $d, $s, 0  ==>  move $d, $s */
+		new Rule("addi-zero") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr i = p.code.get(k);
+				if (i.op != MipsInstr.ADDI || i.imm != 0)
+					return false;
+				p.replace(i, MipsInstr.move(i.rd, i.rs));
+				return true;
+			}
+		},
+		/* move $r, $r  ==>  (nothing) */
+		new Rule("self-move") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr i = p.code.get(k);
+				if (i.op != MipsInstr.MOVE || i.rd != i.rs)
+					return false;
+				p.remove(k);
+				return true;
+			}
+		},
+		/* add $d, $v0, $zero (after jal) ; ... op $d ...  ==>  ... op $v0 ... */
+		new Rule("call-result") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr i = p.code.get(k);
+				if (i.op != MipsInstr.ADD || i.rs != BackendMIPS.RegV0 || i.rt != 0)
+					return false;
+				return p.propagateCopy(k, i.rd, i.rs);
+			}
+		},
+		/* li $d, 0 ; ... op $d ...  ==>  ... op $zero ... */
+		new Rule("li-zero") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr i = p.code.get(k);
+				if (i.op != MipsInstr.LI || i.imm != 0)
+					return false;
+				return p.propagateCopy(k, i.rd, (short) 0);
+			}
+		},
+		/* move $d, $s ; ... op $d ...  ==>  ... op $s ... */
+		new Rule("copy") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr i = p.code.get(k);
+				if (i.op != MipsInstr.MOVE)
+					return false;
+				return p.propagateCopy(k, i.rd, i.rs);
+			}
+		},
+		/* op $t, ... ; ... ; move $d, $t  ==>  op $d, ... ; ...
+		 * (if $t is dead afterwards, and the instructions in between
+		 * are in the same basic block and neither use nor write $t or $d) */
+		new Rule("move-def") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr m = p.code.get(k);
+				if (m.op != MipsInstr.MOVE || m.rd == m.rs)
+					return false;
+				long t = MipsLiveness.bit(m.rs);
+				long d = MipsLiveness.bit(m.rd);
+				if (((p.liveOut()[k] | MipsLiveness.Pointers) & t) != 0)
+					return false;
+				for (int n = k - 1; n >= 0; n--) {
+					MipsInstr i = p.code.get(n);
+					if (i.op == MipsInstr.LABEL || MipsLiveness.isJump(i))
+						return false;
+					long defs = MipsLiveness.defs(i);
+					if ((defs & t) != 0) {
+						if (!MipsLiveness.isPure(i) || defs != t)
+							return false;
+						i.rd = m.rd;
+						p.remove(k);
+						return true;
+					}
+					if (((MipsLiveness.uses(i) | defs) & (t | d)) != 0)
+						return false;
+				}
+				return false;
+			}
+		},
+		/* j L ; L:  ==>  L: */
+		new Rule("jump-next") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr j = p.code.get(k);
+				if (j.op != MipsInstr.J)
+					return false;
+				for (int n = k + 1; n < p.code.size(); n++) {
+					MipsInstr l = p.code.get(n);
+					if (l.op == MipsInstr.LABEL && l.label == j.label) {
+						p.remove(k);
+						return true;
+					}
+					if (l.op != MipsInstr.LABEL && l.op != MipsInstr.COMMENT)
+						break;
+				}
+				return false;
+			}
+		},
+		/* addi $sp, $sp, a ; addi $sp, $sp, b  ==>  addi $sp, $sp, a+b */
+		new Rule("sp-merge") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr i1 = p.code.get(k);
+				MipsInstr i2 = p.next(k);
+				if (!isSPAdjust(i1) || i2 == null || !isSPAdjust(i2))
+					return false;
+				i1.imm += i2.imm;
+				if (i1.text == null)
+					i1.text = i2.text;
+				else if (i2.text != null)
+					i1.text = i1.text + ", " + i2.text;
+				p.remove(p.code.indexOf(i2));
+				if (i1.imm == 0)
+					p.remove(k);
+				return true;
+			}
+		},
+		/* pure instruction writing a dead register  ==>  (nothing)
+		 * (stack, frame, and static data pointers are never considered dead) */
+		new Rule("dead-def") {
+			boolean apply(MipsPeephole p, int k) {
+				MipsInstr i = p.code.get(k);
+				long defs = MipsLiveness.defs(i);
+				if (!MipsLiveness.isPure(i) || (defs & (p.liveOut()[k] | MipsLiveness.Pointers)) != 0)
+					return false;
+				p.remove(k);
+				return true;
+			}
+		},
+	};
+
+	private static boolean isSPAdjust(MipsInstr i) {
+		return i.op == MipsInstr.ADDI && i.rd == BackendMIPS.RegSP && i.rs == BackendMIPS.RegSP;
+	}
+
+	/** The code being optimized. */
+	protected ArrayList<MipsInstr> code;
+
+	private boolean isMain;
+	private long[] liveOut = null;
+
+	private MipsPeephole(MipsProc proc) {
+		this.code = proc.code;
+		this.isMain = proc.isMain;
+	}
+
+	/**
+	 * Optimize the code of a single procedure.
+	 * @param proc      the procedure to optimize (modified in place).
+	 * @param options   compiler options for enabling single rules.
+	 * @param stats     where to count rule applications.
+	 */
+	public static void optimize(MipsProc proc, CompilerOptions options, CompilerStatistics stats) {
+		MipsPeephole p = new MipsPeephole(proc);
+		int size = proc.code.size();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Rule rule : Rules) {
+				if (!options.isEnabled("peephole." + rule.name))
+					continue;
+				for (int k = 0; k < p.code.size(); k++) {
+					if (rule.apply(p, k)) {
+						stats.add("peephole." + rule.name, 1);
+						changed = true;
+					}
+				}
+			}
+		}
+		stats.add("peephole.removed", size - proc.code.size());
+	}
+
+	/** Return the liveness information of the current code. */
+	long[] liveOut() {
+		if (liveOut == null)
+			liveOut = MipsLiveness.liveOut(code, isMain);
+		return liveOut;
+	}
+
+	/** Return the instruction following position <code>k</code>, ignoring comments. */
+	MipsInstr next(int k) {
+		for (int n = k + 1; n < code.size(); n++) {
+			if (code.get(n).op != MipsInstr.COMMENT)
+				return code.get(n);
+		}
+		return null;
+	}
+
+	void remove(int k) {
+		code.remove(k);
+		liveOut = null;
+	}
+
+	void replace(MipsInstr old, MipsInstr instr) {
+		instr.text = old.text;
+		code.set(code.indexOf(old), instr);
+		liveOut = null;
+	}
+
+	/**
+	 * Replace the single use of <code>dest</code> following the copy instruction
+	 * at position <code>k</code> by <code>src</code>, and remove the copy.
+	 * Requires that the use is in the same basic block, <code>src</code> is
+	 * not redefined before the use, and <code>dest</code> is dead after the use.
+	 */
+	boolean propagateCopy(int k, short dest, short src) {
+		long destBit = MipsLiveness.bit(dest);
+		long srcBit = MipsLiveness.bit(src);
+		if (dest == src || dest == 0 || (destBit & MipsLiveness.Pointers) != 0)
+			return false;
+		for (int n = k + 1; n < code.size(); n++) {
+			MipsInstr i = code.get(n);
+			if (i.op == MipsInstr.LABEL)
+				return false;
+			boolean explicitUse = i.rs == dest || (i.rt == dest && i.op != MipsInstr.LI);
+			if ((MipsLiveness.uses(i) & destBit) != 0) {
+				if (!explicitUse || i.op == MipsInstr.JR)
+					return false;
+				if ((liveOut()[n] & destBit) != 0 && (MipsLiveness.defs(i) & destBit) == 0)
+					return false;
+				if (i.rs == dest)
+					i.rs = src;
+				if (i.rt == dest)
+					i.rt = src;
+				remove(k);
+				return true;
+			}
+			if ((MipsLiveness.defs(i) & (destBit | srcBit)) != 0 || MipsLiveness.isJump(i))
+				return false;
+		}
+		return false;
+	}
+}
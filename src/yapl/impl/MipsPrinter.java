@@ -0,0 +1,196 @@
+package yapl.impl;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Renders the MIPS instruction IR (see {@link MipsInstr}) as assembler
+ * code for the MARS simulator.
+ *
+ * @version $Id$
+ */
+public class MipsPrinter {
+
+	/** Line terminator, as used by {@link PrintStream#println()}. */
+	private static final String EOL = System.lineSeparator();
+
+	/** Register names printed symbolically; all others are printed by number. */
+	private static final String[] RegNames = new String[32];
+	static {
+		RegNames[0] = "$zero";
+		RegNames[2] = "$v0";
+		RegNames[3] = "$v1";
+		RegNames[4] = "$a0";
+		RegNames[5] = "$a1";
+		RegNames[6] = "$a2";
+		RegNames[7] = "$a3";
+		RegNames[29] = "$sp";
+		RegNames[30] = "$fp";
+		RegNames[31] = "$ra";
+	}
+
+	private static void appendReg(StringBuilder buf, short reg) {
+		if (reg >= 0 && reg < RegNames.length && RegNames[reg] != null)
+			buf.append(RegNames[reg]);
+		else
+			buf.append('$').append(reg);
+	}
+
+	/** Append <code>instr</code> as a single line (without line terminator) to <code>buf</code>. */
+	static void append(StringBuilder buf, MipsInstr instr) {
+		switch (instr.op) {
+		case MipsInstr.LABEL:
+			buf.append(instr.label.name).append(':');
+			if (instr.text != null)
+				buf.append("\t\t\t\t# ").append(instr.text);
+			return;
+		case MipsInstr.COMMENT:
+			buf.append("# ").append(instr.text);
+			return;
+		case MipsInstr.GLOBL:
+			buf.append(".globl ").append(instr.label.name);
+			return;
+		case MipsInstr.ASCIIZ:
+			buf.append("    .asciiz\t\"").append(instr.text).append("\"\t# offset = ").append(instr.imm);
+			return;
+		case MipsInstr.ALIGN:
+		case MipsInstr.SPACE:
+		case MipsInstr.WORD:
+			buf.append("    ").append(MipsInstr.Names[instr.op]).append(' ').append(instr.imm);
+			break;
+		case MipsInstr.SYSCALL:
+			buf.append("    syscall");
+			if (instr.text != null)
+				buf.append("\t\t# ").append(instr.text);
+			return;
+		default:
+			buf.append("    ").append(MipsInstr.Names[instr.op]).append('\t');
+			appendOperands(buf, instr);
+		}
+		if (instr.text != null)
+			buf.append("\t# ").append(instr.text);
+	}
+
+	private static void appendOperands(StringBuilder buf, MipsInstr instr) {
+		switch (instr.op) {
+		case MipsInstr.LI:
+			appendReg(buf, instr.rd);
+			buf.append(", ").append(instr.imm);
+			break;
+		case MipsInstr.LA:
+		case MipsInstr.LW:
+		case MipsInstr.LB:
+			appendReg(buf, instr.rd);
+			if (instr.label != null) {
+				buf.append(", ").append(instr.label.name);
+			} else {
+				buf.append(", ").append(instr.imm).append('(');
+				appendReg(buf, instr.rs);
+				buf.append(')');
+			}
+			break;
+		case MipsInstr.SW:
+		case MipsInstr.SB:
+			appendReg(buf, instr.rt);
+			buf.append(", ").append(instr.imm).append('(');
+			appendReg(buf, instr.rs);
+			buf.append(')');
+			break;
+		case MipsInstr.MOVE:
+			appendReg(buf, instr.rd);
+			buf.append(", ");
+			appendReg(buf, instr.rs);
+			break;
+		case MipsInstr.ADDI:
+		case MipsInstr.ADDIU:
+		case MipsInstr.XORI:
+		case MipsInstr.ANDI:
+		case MipsInstr.SLL:
+		case MipsInstr.SRL:
+		case MipsInstr.SRA:
+		case MipsInstr.SLTI:
+			appendReg(buf, instr.rd);
+			buf.append(", ");
+			appendReg(buf, instr.rs);
+			buf.append(", ").append(instr.imm);
+			break;
+		case MipsInstr.DIV:
+		case MipsInstr.MULT:
+			appendReg(buf, instr.rs);
+			buf.append(", ");
+			appendReg(buf, instr.rt);
+			break;
+		case MipsInstr.MFLO:
+		case MipsInstr.MFHI:
+			appendReg(buf, instr.rd);
+			break;
+		case MipsInstr.BEQZ:
+		case MipsInstr.BNEZ:
+			appendReg(buf, instr.rs);
+			buf.append(", ").append(instr.label.name);
+			break;
+		case MipsInstr.BEQ:
+		case MipsInstr.BNE:
+		case MipsInstr.BLT:
+		case MipsInstr.BGE:
+		case MipsInstr.BLE:
+		case MipsInstr.BGT:
+			appendReg(buf, instr.rs);
+			buf.append(", ");
+			appendReg(buf, instr.rt);
+			buf.append(", ").append(instr.label.name);
+			break;
+		case MipsInstr.J:
+		case MipsInstr.JAL:
+			buf.append(instr.label.name);
+			break;
+		case MipsInstr.JR:
+			appendReg(buf, instr.rs);
+			break;
+		default:	// R-type
+			appendReg(buf, instr.rd);
+			buf.append(", ");
+			appendReg(buf, instr.rs);
+			buf.append(", ");
+			appendReg(buf, instr.rt);
+		}
+	}
+
+	/** Append each instruction of <code>code</code> as a separate line to <code>buf</code>. */
+	public static void append(StringBuilder buf, List<MipsInstr> code) {
+		for (MipsInstr instr : code) {
+			append(buf, instr);
+			buf.append(EOL);
+		}
+	}
+
+	/**
+	 * Print the text segment consisting of the given procedures.
+	 */
+	public static void printText(PrintStream out, List<MipsProc> procs) {
+		StringBuilder buf = new StringBuilder(4096);
+		buf.append(".text").append(EOL);
+		for (MipsProc proc : procs)
+			append(buf, proc.code);
+		out.print(buf);
+	}
+
+	/**
+	 * Print a complete program.
+	 * @param out           where to print the assembler code to.
+	 * @param prelude       assembler code to be printed first (unchanged).
+	 * @param dataLabel     label marking the start of the static data area.
+	 * @param data          data directives of the static data area.
+	 * @param procs         procedures (and main program) of the text segment.
+	 */
+	public static void printProgram(PrintStream out, List<String> prelude, MipsLabel dataLabel,
+			List<MipsInstr> data, List<MipsProc> procs) {
+		for (String code : prelude)
+			out.print(code);
+		StringBuilder buf = new StringBuilder(4096);
+		buf.append(".data").append(EOL).append(dataLabel.name).append(':').append(EOL);
+		append(buf, data);
+		out.print(buf);
+		printText(out, procs);
+	}
+}
@@ -0,0 +1,139 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+
+/**
+ * Instruction list of a single procedure (or the main program) in the
+ * MIPS instruction IR. Code emitted outside of a procedure (e.g. comments
+ * between procedures) is kept in units without a name.
+ *
+ * @version $Id$
+ */
+public class MipsProc {
+
+	/** The procedure label, or <code>null</code> for code outside of procedures. */
+	public final MipsLabel label;
+
+	/** <code>true</code> iff this unit holds the main program. */
+	public final boolean isMain;
+
+	/** The instructions in program order. */
+	public final ArrayList<MipsInstr> code = new ArrayList<MipsInstr>();
+
+	/**
+	 * Allocations of virtual registers (see {@link MipsRegAlloc}) in program
+	 * order, as pairs of code position and register number.
+	 */
+	public final ArrayList<int[]> allocs = new ArrayList<int[]>();
+
+	/** Return one more than the highest virtual register in {@link #allocs}. */
+	public int registerLimit() {
+		int limit = MipsRegAlloc.FirstVirtual;
+		for (int[] a : allocs)
+			limit = Math.max(limit, a[1] + 1);
+		return limit;
+	}
+
+	/** Register saves and restores emitted around a single call, and the state at the call. */
+	public static class CallSaves {
+		/** The call instruction, or <code>null</code> for a system call or an inlined call. */
+		public MipsInstr call = null;
+
+		/** Stack pointer at the call, relative to the frame pointer. */
+		public int spOffset;
+
+		/** Virtual registers allocated at the call, indexed by register number;
+		 *  registers beyond the end of the array are free. */
+		public boolean[] inUse;
+
+		/** Stores before and loads after the call. */
+		public final ArrayList<MipsInstr> code = new ArrayList<MipsInstr>();
+	}
+
+	/** Register saves of all calls, see {@link MipsRegAlloc}. */
+	public final ArrayList<CallSaves> callSaves = new ArrayList<CallSaves>();
+
+	/** Instructions setting up the stack frame (empty for the main program), see {@link MipsFrame}. */
+	public final ArrayList<MipsInstr> prologue = new ArrayList<MipsInstr>();
+
+	/**
+	 * Instructions releasing the stack frame before the final <code>jr $ra</code>
+	 * (empty for the main program), see {@link MipsFrame}.
+	 */
+	public final ArrayList<MipsInstr> epilogue = new ArrayList<MipsInstr>();
+
+	/** Number of parameters of the procedure. */
+	public int numParams = 0;
+
+	/** A procedure call directly followed by a return of its result, see {@link MipsTailCall}. */
+	public static class TailCall {
+		/** The call instruction. */
+		public final MipsInstr call;
+
+		/** Number of arguments. */
+		public final int numArgs;
+
+		/** Frame offsets of the arguments passed on the stack (relative to <code>$sp</code> at the call). */
+		public final int[] stackArgs;
+
+		/** Stack pointer adjustment allocating the argument area before the call, or <code>null</code>. */
+		public final MipsInstr push;
+
+		public TailCall(MipsInstr call, int numArgs, int[] stackArgs, MipsInstr push) {
+			this.call = call;
+			this.numArgs = numArgs;
+			this.stackArgs = stackArgs;
+			this.push = push;
+		}
+	}
+
+	/** Tail calls to other procedures, in program order. */
+	public final ArrayList<TailCall> tailCalls = new ArrayList<TailCall>();
+
+	/**
+	 * Label at the start of the procedure body, where self tail calls jump to
+	 * (see {@link BackendMIPS}), or <code>null</code>.
+	 */
+	public MipsLabel tailLoop = null;
+
+	/** A loop entered at its start label only, see {@link MipsLoopOpt}. */
+	public static class Loop {
+		/** Label at the start of the loop condition. */
+		public final MipsLabel start;
+
+		/** Label after the loop, where the loop condition jumps to when false. */
+		public final MipsLabel end;
+
+		public Loop(MipsLabel start, MipsLabel end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/** The loops of the procedure, inner loops before enclosing loops. */
+	public final ArrayList<Loop> loops = new ArrayList<Loop>();
+
+	/** The label of the procedure epilogue, where <code>return</code> statements jump to. */
+	public MipsLabel exitLabel = null;
+
+	/** Saves and restores of callee-saved registers, inserted by {@link MipsRegAlloc}. */
+	public final ArrayList<MipsInstr> calleeSaves = new ArrayList<MipsInstr>();
+
+	/** Stack pointer adjustment reserving spill slots, or <code>null</code> outside of procedures. */
+	public MipsInstr spillArea = null;
+
+	/**
+	 * Frame offset of the first spill slot; local variables and saved registers
+	 * are stored at this offset and below.
+	 */
+	public int frameBase = 0;
+
+	public MipsProc(MipsLabel label, boolean isMain) {
+		this.label = label;
+		this.isMain = isMain;
+	}
+
+	public String toString() {
+		return (label == null) ? "<top level>" : label.name;
+	}
+}
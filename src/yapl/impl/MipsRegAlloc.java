@@ -0,0 +1,443 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import yapl.lib.CompilerStatistics;
+
+/**
+ * Linear-scan register allocator mapping the virtual registers of a single
+ * procedure to physical registers.
+ * <p>
+ * {@link BackendMIPS} generates code for virtual registers (register numbers
+ * {@link #FirstVirtual} to {@link #LastVirtual}) and records each register
+ * allocation in {@link MipsProc#allocs}. Since freed register numbers are
+ * reused, the occurrences of a virtual register between two of its
+ * allocations form a separate <em>value</em>. The live interval of each value
+ * is computed from a liveness analysis, and physical registers are assigned
+ * in order of increasing interval start. If all physical registers are in use,
+ * the value whose interval ends last is spilled: it is loaded into a scratch
+ * register before each use and stored to a stack slot after each definition.
+ * Values defined by a single <code>li</code> instruction are preferably
+ * spilled, and are rematerialized by <code>li</code> instead of being stored.
+ * </p>
+ * <p>
+ * Values live across a procedure call are preferably assigned to the
+ * callee-saved registers <code>$s0 - $s6</code>, which are saved in the
+ * prologue and restored in the epilogue of a procedure using them. The
+ * register saves around a call emitted by {@link BackendMIPS} (see
+ * {@link MipsProc#callSaves}) are ignored by the liveness analysis, and are
+ * only kept for values in caller-saved registers live after the call.
+ * </p>
+ * <p>
+ * Spill slots and callee-saved registers are placed at the top of the local
+ * variable area of the stack frame (see {@link MipsProc#frameBase}); frame
+ * offsets of local variables are shifted down accordingly. The numbers of
+ * spilled and rematerialized values are reported as statistics
+ * <code>regalloc.spills</code> and <code>regalloc.remat</code>, spills of a
+ * single procedure as <code>regalloc.spills.</code><em>procedure</em>.
+ * Kept and removed register saves around calls are counted by
+ * <code>regalloc.callsaves</code> and <code>regalloc.callsaves.removed</code>,
+ * callee-saved registers saved by procedures by <code>regalloc.calleesaved</code>.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class MipsRegAlloc {
+
+	/** Number of the first virtual register. */
+	public static final int FirstVirtual = 32;
+
+	/** Number of the last virtual register, the largest register number of a {@link MipsInstr}. */
+	public static final int LastVirtual = Short.MAX_VALUE;
+
+	/** Operand values of an instruction without virtual registers. */
+	static final int[] NoValues = { -1, -1, -1 };
+
+	/** Scratch registers holding spilled values; only allocated if nothing is spilled. */
+	private static final short[] ScratchRegs = { 24, 25 };
+
+	private static final Pattern OffsetComment = Pattern.compile("\\(offset = (-?\\d+)\\)");
+
+	private final MipsProc proc;
+	private final ArrayList<MipsInstr> code;
+
+	/** Values of the <code>rd, rs, rt</code> operands of each instruction (-1 if not virtual). */
+	private int[][] values;
+	private int nValues = 0;
+
+	/** Live interval of each value, as instruction positions (inclusive). */
+	private int[] start, end;
+
+	/** The defining <code>li</code> instruction of a rematerializable value, or <code>null</code>. */
+	private MipsInstr[] constDef;
+
+	/** Assigned physical register of each value, or -1 if spilled. */
+	private short[] reg;
+
+	/** Values live after each instruction. */
+	private BitSet[] liveOut;
+
+	/** Values live across a procedure call. */
+	private BitSet crossesCall = new BitSet();
+
+	/** Register save instructions around calls. */
+	private HashMap<MipsInstr, MipsProc.CallSaves> saveOf = new HashMap<MipsInstr, MipsProc.CallSaves>();
+
+	private MipsRegAlloc(MipsProc proc) {
+		this.proc = proc;
+		this.code = proc.code;
+		for (MipsProc.CallSaves saves : proc.callSaves) {
+			for (MipsInstr i : saves.code)
+				saveOf.put(i, saves);
+		}
+	}
+
+	/** Return <code>true</code> if <code>reg</code> is preserved by procedure calls. */
+	public static boolean isCalleeSaved(int reg) {
+		return reg >= 16 && reg <= 23;
+	}
+
+	/** Return <code>true</code> if <code>reg</code> is a virtual register. */
+	public static boolean isVirtual(int reg) {
+		return reg >= FirstVirtual;
+	}
+
+	/**
+	 * Replace all virtual registers of a procedure by physical registers.
+	 * @param proc      the procedure (modified in place).
+	 * @param regs      the allocatable physical registers.
+	 * @param stats     where to count spilled values.
+	 */
+	public static void allocate(MipsProc proc, short[] regs, CompilerStatistics stats) {
+		if (proc.allocs.isEmpty())
+			return;
+		MipsRegAlloc a = new MipsRegAlloc(proc);
+		a.numberValues();
+		a.computeIntervals();
+		int spills = a.linearScan(regs);
+		if (spills > 0) {
+			short[] pool = new short[regs.length];
+			int n = 0;
+			for (short r : regs) {
+				if (Arrays.binarySearch(ScratchRegs, r) < 0)
+					pool[n++] = r;
+			}
+			spills = a.linearScan(Arrays.copyOf(pool, n));
+		}
+		int remat = a.rewrite(stats);
+		if (spills > 0) {
+			stats.add("regalloc.spills", spills - remat);
+			stats.add("regalloc.remat", remat);
+			if (spills > remat)
+				stats.add("regalloc.spills." + proc, spills - remat);
+		}
+		proc.allocs.clear();
+		proc.callSaves.clear();
+	}
+
+	/** Split virtual registers into values and number them. */
+	private void numberValues() {
+		int[] current = new int[proc.registerLimit()];
+		Arrays.fill(current, -1);
+		values = new int[code.size()][];
+		int e = 0;
+		for (int k = 0; k < code.size(); k++) {
+			while (e < proc.allocs.size() && proc.allocs.get(e)[0] <= k)
+				current[proc.allocs.get(e++)[1]] = nValues++;
+			MipsInstr i = code.get(k);
+			values[k] = new int[] { value(current, i.rd), value(current, i.rs), value(current, i.rt) };
+		}
+	}
+
+	private static int value(int[] current, short reg) {
+		if (!isVirtual(reg))
+			return -1;
+		if (reg >= current.length || current[reg] < 0)
+			throw new IllegalStateException("unallocated register $" + reg);
+		return current[reg];
+	}
+
+	/** Compute live intervals and rematerializable values. */
+	private void computeIntervals() {
+		int n = code.size();
+		HashMap<MipsLabel, Integer> labelPos = new HashMap<MipsLabel, Integer>();
+		for (int k = 0; k < n; k++) {
+			if (code.get(k).op == MipsInstr.LABEL)
+				labelPos.put(code.get(k).label, k);
+		}
+		BitSet[] liveIn = new BitSet[n + 1];
+		liveOut = new BitSet[n];
+		for (int k = 0; k <= n; k++)
+			liveIn[k] = new BitSet();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = n - 1; k >= 0; k--) {
+				MipsInstr i = code.get(k);
+				BitSet out = new BitSet();
+				if (i.op != MipsInstr.J && i.op != MipsInstr.JR)
+					out.or(liveIn[k + 1]);
+				if (i.op == MipsInstr.J || MipsLiveness.isBranch(i)) {
+					Integer pos = labelPos.get(i.label);
+					if (pos != null)
+						out.or(liveIn[pos]);
+				}
+				BitSet in = (BitSet) out.clone();
+				int[] v = saveOf.containsKey(i) ? NoValues : values[k];
+				if (v[0] >= 0)
+					in.clear(v[0]);
+				if (v[1] >= 0)
+					in.set(v[1]);
+				if (v[2] >= 0)
+					in.set(v[2]);
+				liveOut[k] = out;
+				if (!in.equals(liveIn[k])) {
+					liveIn[k] = in;
+					changed = true;
+				}
+			}
+		}
+		start = new int[nValues];
+		end = new int[nValues];
+		Arrays.fill(start, Integer.MAX_VALUE);
+		Arrays.fill(end, -1);
+		constDef = new MipsInstr[nValues];
+		int[] defs = new int[nValues];
+		for (int k = 0; k < n; k++) {
+			if (code.get(k).op == MipsInstr.JAL)
+				crossesCall.or(liveOut[k]);
+			for (BitSet live : new BitSet[] { liveIn[k], liveOut[k] }) {
+				for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1))
+					extend(v, k);
+			}
+			if (saveOf.containsKey(code.get(k)))
+				continue;
+			for (int v : values[k]) {
+				if (v >= 0)
+					extend(v, k);
+			}
+			int d = values[k][0];
+			if (d >= 0 && defs[d]++ == 0 && code.get(k).op == MipsInstr.LI)
+				constDef[d] = code.get(k);
+			else if (d >= 0)
+				constDef[d] = null;
+		}
+	}
+
+	private void extend(int v, int k) {
+		start[v] = Math.min(start[v], k);
+		end[v] = Math.max(end[v], k);
+	}
+
+	/**
+	 * Assign physical registers from <code>regs</code> to all values.
+	 * @return the number of spilled values.
+	 */
+	private int linearScan(short[] regs) {
+		reg = new short[nValues];
+		Arrays.fill(reg, (short) -1);
+		Integer[] order = new Integer[nValues];
+		for (int v = 0; v < nValues; v++)
+			order[v] = v;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer v, Integer w) {
+				return Integer.compare(start[v], start[w]);
+			}
+		});
+		ArrayList<Integer> active = new ArrayList<Integer>();
+		boolean[] used = new boolean[FirstVirtual];
+		int spills = 0;
+		for (int v : order) {
+			if (end[v] < 0)
+				continue;			// never occurs
+			for (int a = active.size() - 1; a >= 0; a--) {
+				int w = active.get(a);
+				if (end[w] < start[v]) {
+					used[reg[w]] = false;
+					active.remove(a);
+				}
+			}
+			/* callee-saved registers for values live across calls, others otherwise */
+			reg[v] = -1;
+			boolean calleeSaved = crossesCall.get(v);
+			for (int pass = 0; pass < 2 && reg[v] < 0; pass++) {
+				for (short r : regs) {
+					if (!used[r] && isCalleeSaved(r) == calleeSaved) {
+						reg[v] = r;
+						break;
+					}
+				}
+				calleeSaved = !calleeSaved;
+			}
+			if (reg[v] < 0) {
+				int victim = v;
+				for (int w : active) {
+					if (spillFirst(w, victim))
+						victim = w;
+				}
+				if (victim != v) {
+					reg[v] = reg[victim];
+					reg[victim] = -1;
+					active.remove((Integer) victim);
+				}
+				spills++;
+			}
+			if (reg[v] >= 0) {
+				used[reg[v]] = true;
+				active.add(v);
+			}
+		}
+		return spills;
+	}
+
+	/** Return <code>true</code> if value <code>v</code> should rather be spilled than <code>w</code>. */
+	private boolean spillFirst(int v, int w) {
+		if ((constDef[v] != null) != (constDef[w] != null))
+			return constDef[v] != null;
+		return end[v] > end[w];
+	}
+
+	/**
+	 * Replace values by their registers, insert spill code, remove register
+	 * saves not needed, and allocate spill slots and callee-saved registers.
+	 * @return the number of rematerialized values.
+	 */
+	private int rewrite(CompilerStatistics stats) {
+		int remat = 0;
+		int[] slot = new int[nValues];
+		Arrays.fill(slot, -1);
+		ArrayList<Integer> slotEnd = new ArrayList<Integer>();
+		Integer[] order = new Integer[nValues];
+		for (int v = 0; v < nValues; v++)
+			order[v] = v;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer v, Integer w) {
+				return Integer.compare(start[v], start[w]);
+			}
+		});
+		for (int v : order) {
+			if (end[v] < 0 || reg[v] >= 0)
+				continue;
+			if (constDef[v] != null) {
+				remat++;
+				continue;
+			}
+			for (int s = 0; s < slotEnd.size() && slot[v] < 0; s++) {
+				if (slotEnd.get(s) < start[v])
+					slot[v] = s;
+			}
+			if (slot[v] < 0) {
+				slot[v] = slotEnd.size();
+				slotEnd.add(0);
+			}
+			slotEnd.set(slot[v], end[v]);
+		}
+		ArrayList<Short> saved = new ArrayList<Short>();
+		if (!proc.isMain && !proc.epilogue.isEmpty()) {
+			for (int v = 0; v < nValues; v++) {
+				if (end[v] >= 0 && isCalleeSaved(reg[v]) && !saved.contains(reg[v]))
+					saved.add(reg[v]);
+			}
+		}
+		int spillBytes = (slotEnd.size() + saved.size()) * 4;
+		if (spillBytes > 0) {
+			if (proc.spillArea == null)
+				throw new IllegalStateException("cannot spill registers outside of procedures");
+			proc.spillArea.imm = -spillBytes;
+			/* packed fields may be bytes within the word at frameBase */
+			for (MipsInstr i : code) {
+				if ((i.op == MipsInstr.LW || i.op == MipsInstr.SW || i.op == MipsInstr.LA
+						|| i.op == MipsInstr.LB || i.op == MipsInstr.SB)
+						&& i.rs == BackendMIPS.RegFP && i.label == null && i.imm < proc.frameBase + 4)
+					i.imm -= spillBytes;
+				else if (i.text != null && i.op == MipsInstr.ADDI && i.rd == BackendMIPS.RegSP)
+					i.text = shiftOffsetComment(i.text, spillBytes);
+			}
+		}
+		HashMap<MipsInstr, Integer> position = new HashMap<MipsInstr, Integer>();
+		for (int k = 0; k < code.size(); k++)
+			position.put(code.get(k), k);
+		int callSaves = 0;
+		ArrayList<MipsInstr> result = new ArrayList<MipsInstr>(code.size());
+		for (int k = 0; k < code.size(); k++) {
+			MipsInstr i = code.get(k);
+			int[] v = values[k];
+			MipsProc.CallSaves saves = saveOf.get(i);
+			if (saves != null) {
+				int value = (i.op == MipsInstr.SW) ? v[2] : v[0];
+				if (saves.call == null || reg[value] < 0 || isCalleeSaved(reg[value])
+						|| !liveOut[position.get(saves.call)].get(value))
+					continue;		// not needed after the call
+				callSaves++;
+			}
+			if (v[0] >= 0 && constDef[v[0]] == i && reg[v[0]] < 0)
+				continue;			// rematerialized at each use
+			if (v[1] >= 0)
+				i.rs = load(result, v[1], ScratchRegs[0], slot);
+			if (v[2] >= 0)
+				i.rt = (v[2] == v[1]) ? i.rs : load(result, v[2], ScratchRegs[1], slot);
+			if (v[0] >= 0)
+				i.rd = (reg[v[0]] >= 0) ? reg[v[0]] : ScratchRegs[0];
+			result.add(i);
+			if (v[0] >= 0 && reg[v[0]] < 0)
+				result.add(MipsInstr.store(i.rd, slotOffset(slot[v[0]]), BackendMIPS.RegFP)
+						.withComment("spill"));
+			if (i == proc.spillArea) {
+				for (int s = 0; s < saved.size(); s++) {
+					MipsInstr store = MipsInstr.store(saved.get(s), slotOffset(slotEnd.size() + s), BackendMIPS.RegFP)
+							.withComment("callee-saved");
+					result.add(store);
+					proc.calleeSaves.add(store);
+				}
+			}
+		}
+		if (!saved.isEmpty()) {
+			int pos = result.indexOf(proc.epilogue.get(0));
+			for (int s = saved.size() - 1; s >= 0; s--) {
+				MipsInstr load = MipsInstr.load(MipsInstr.LW, saved.get(s), slotOffset(slotEnd.size() + s),
+						BackendMIPS.RegFP);
+				result.add(pos, load);
+				proc.calleeSaves.add(load);
+			}
+		}
+		stats.add("regalloc.callsaves", callSaves);
+		stats.add("regalloc.callsaves.removed", saveOf.size() - callSaves);
+		stats.add("regalloc.calleesaved", saved.size());
+		if (proc.spillArea != null && spillBytes == 0)
+			result.remove(proc.spillArea);
+		code.clear();
+		code.addAll(result);
+		return remat;
+	}
+
+	/** Shift the offset mentioned in the comment of a local variable allocation (see {@link BackendMIPS#allocStack}). */
+	private String shiftOffsetComment(String text, int spillBytes) {
+		Matcher m = OffsetComment.matcher(text);
+		if (!m.find() || Integer.parseInt(m.group(1)) >= proc.frameBase + 4)
+			return text;
+		return text.substring(0, m.start(1)) + (Integer.parseInt(m.group(1)) - spillBytes)
+				+ text.substring(m.end(1));
+	}
+
+	/** Return the register holding value <code>v</code>, loading it into <code>scratch</code> if spilled. */
+	private short load(ArrayList<MipsInstr> result, int v, short scratch, int[] slot) {
+		if (reg[v] >= 0)
+			return reg[v];
+		if (constDef[v] != null)
+			result.add(MipsInstr.li(scratch, constDef[v].imm).withComment("rematerialize"));
+		else
+			result.add(MipsInstr.load(MipsInstr.LW, scratch, slotOffset(slot[v]), BackendMIPS.RegFP)
+					.withComment("reload"));
+		return scratch;
+	}
+
+	private int slotOffset(int slot) {
+		return proc.frameBase - 4 * slot;
+	}
+}
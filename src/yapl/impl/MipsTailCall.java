@@ -0,0 +1,124 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+
+import yapl.lib.CompilerStatistics;
+
+/**
+ * Tail call optimization on the MIPS instruction IR of a single procedure,
+ * applied after register allocation (see {@link MipsRegAlloc}) and before
+ * the stack frame optimizations of {@link MipsFrame}.
+ * <p>
+ * A call of another procedure directly followed by a return of its result
+ * (recorded by {@link BackendMIPS} in {@link MipsProc#tailCalls}) is
+ * replaced by a jump to the callee after releasing the caller's stack frame.
+ * The callee then returns to the caller's caller directly, and the stack
+ * does not grow. Arguments passed on the stack are moved to the caller's
+ * own argument area, hence the callee must not have more parameters than
+ * the caller. Self tail calls are turned into loops by {@link BackendMIPS}.
+ * The number of replaced calls is reported as statistics <code>tailcall.other</code>.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class MipsTailCall {
+
+	/**
+	 * Replace the tail calls of a single procedure.
+	 * @param proc      the procedure to optimize (modified in place).
+	 * @param stats     where to count replaced calls.
+	 */
+	public static void optimize(MipsProc proc, CompilerStatistics stats) {
+		for (MipsProc.TailCall call : proc.tailCalls) {
+			if (replace(proc, call))
+				stats.add("tailcall.other", 1);
+		}
+	}
+
+	private static boolean isSPAdjust(MipsInstr i) {
+		return i.op == MipsInstr.ADDI && i.rd == BackendMIPS.RegSP && i.rs == BackendMIPS.RegSP;
+	}
+
+	private static boolean isCopy(MipsInstr i) {
+		return i.op == MipsInstr.MOVE || (i.op == MipsInstr.ADD && i.rt == 0);
+	}
+
+	/**
+	 * Return <code>true</code> if the code between the allocation of the
+	 * argument area and the call accesses memory relative to <code>$sp</code>.
+	 */
+	private static boolean usesArgumentArea(ArrayList<MipsInstr> code, MipsProc.TailCall call) {
+		int start = code.indexOf(call.push);
+		if (start < 0)
+			return true;
+		for (MipsInstr i : code.subList(start + 1, code.indexOf(call.call))) {
+			if (!isSPAdjust(i) && ((MipsLiveness.uses(i) | MipsLiveness.defs(i)) & MipsLiveness.bit(BackendMIPS.RegSP)) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Replace a tail call by a jump.
+	 * @return <code>false</code> if the call is not followed by a return any more,
+	 *         or the callee has too many parameters.
+	 */
+	private static boolean replace(MipsProc proc, MipsProc.TailCall call) {
+		ArrayList<MipsInstr> code = proc.code;
+		int k = code.indexOf(call.call);
+		if (k < 0 || call.numArgs > proc.numParams || proc.epilogue.isEmpty())
+			return false;
+		/* up to the return, only copies of the result and stack pointer adjustments */
+		long result = MipsLiveness.bit(BackendMIPS.RegV0);
+		ArrayList<MipsInstr> adjusts = new ArrayList<MipsInstr>();
+		int end = -1;
+		for (int n = k + 1; n < code.size() && end < 0; n++) {
+			MipsInstr i = code.get(n);
+			if (i.label == proc.exitLabel && (i.op == MipsInstr.J || i.op == MipsInstr.LABEL))
+				end = (i.op == MipsInstr.J) ? n + 1 : n;
+			else if (isSPAdjust(i))
+				adjusts.add(i);
+			else if (isCopy(i) && (MipsLiveness.bit(i.rs) & result) != 0)
+				result |= MipsLiveness.bit(i.rd);
+			else if (i.op != MipsInstr.COMMENT)
+				return false;
+		}
+		if (end < 0)
+			return false;
+		if (call.stackArgs.length == 0 && call.push != null && !usesArgumentArea(code, call)) {
+			/* the argument area is not needed */
+			for (MipsInstr i : adjusts) {
+				if (i.imm == -call.push.imm) {
+					adjusts.remove(i);
+					code.remove(i);
+					code.remove(call.push);
+					end -= 2;
+					k--;
+					break;
+				}
+			}
+		}
+		ArrayList<MipsInstr> jump = new ArrayList<MipsInstr>();
+		for (int offset : call.stackArgs) {
+			jump.add(MipsInstr.load(MipsInstr.LW, BackendMIPS.RegTmp, offset, BackendMIPS.RegSP));
+			jump.add(MipsInstr.store(BackendMIPS.RegTmp, offset, BackendMIPS.RegFP));
+		}
+		jump.addAll(adjusts);
+		ArrayList<MipsInstr> restores = new ArrayList<MipsInstr>();
+		for (MipsInstr i : proc.calleeSaves) {
+			if (i.op == MipsInstr.LW)
+				restores.add(i.copy());
+		}
+		ArrayList<MipsInstr> epilogue = new ArrayList<MipsInstr>();
+		for (MipsInstr i : proc.epilogue)
+			epilogue.add(i.copy());
+		jump.addAll(restores);
+		jump.addAll(epilogue);
+		jump.add(MipsInstr.jump(MipsInstr.J, call.call.label).withComment("tail call"));
+		code.subList(k, end).clear();
+		code.addAll(k, jump);
+		proc.calleeSaves.addAll(restores);
+		proc.epilogue.addAll(epilogue);
+		return true;
+	}
+}
@@ -0,0 +1,235 @@
+package yapl.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import yapl.lib.ArrayType;
+import yapl.lib.BoolType;
+import yapl.lib.IntType;
+import yapl.lib.Type;
+import yapl.lib.YAPLException;
+
+/**
+ * Serialized state of the compiler after reading the predefined procedures
+ * and the run-time library (the <em>prelude</em>): the symbols of the global
+ * scope of {@link Symboltable}, including types and parameter chains, and
+ * the assembler code to be injected into every compiled program.
+ * <p>
+ * A snapshot file is written once by {@link #write(File, Symboltable, String)}
+ * and memory-mapped by {@link #map(File)}; {@link #create(Symboltable, String)}
+ * keeps a snapshot in memory instead. Each call of
+ * {@link #restore(Symboltable)} decodes fresh {@link Symbol} objects from the
+ * snapshot, so a single snapshot may be shared by concurrent compilations.
+ * </p>
+ * <pre>
+ * Snapshot = int Magic int FormatVersion string asmCode int n { Symbol }
+ * Symbol   = byte kind string name Type byte flags int offset boolean hasNext [ Symbol ]
+ * Type     = byte TypeNone | TypeInt | TypeBool | TypeArray int len Type
+ * </pre>
+ * Strings are stored as UTF-8 bytes prefixed by their length.
+ *
+ * @version $Id$
+ */
+public class PreludeSnapshot {
+
+	/** Magic number at the start of a snapshot file ("YAPS"). */
+	public static final int Magic = 0x59415053;
+
+	/** Version of the snapshot file format; part of the snapshot key. */
+	public static final int FormatVersion = 1;
+
+	/* type tags */
+	private static final byte TypeNone = 0;
+	private static final byte TypeInt = 1;
+	private static final byte TypeBool = 2;
+	private static final byte TypeArray = 3;
+
+	/* symbol flags */
+	private static final byte FlagReference = 1;
+	private static final byte FlagReadonly = 2;
+	private static final byte FlagGlobal = 4;
+	private static final byte FlagReturnSeen = 8;
+
+	/** The mapped file or in-memory snapshot, positioned at the symbol section. */
+	private final ByteBuffer symbols;
+
+	/** Assembler code of predefined procedures and run-time library. */
+	private final String asmCode;
+
+	private PreludeSnapshot(ByteBuffer symbols, String asmCode) {
+		this.symbols = symbols;
+		this.asmCode = asmCode;
+	}
+
+	/** Return the assembler code to be injected into every compiled program. */
+	public String getAsmCode() {
+		return asmCode;
+	}
+
+	/**
+	 * Add the symbols of the snapshot to the current (global) scope of
+	 * the given symbol table.
+	 * @throws YAPLException	(SymbolExists) if a symbol is already declared.
+	 */
+	public void restore(Symboltable symtab) throws YAPLException {
+		ByteBuffer in = symbols.duplicate();
+		int n = in.getInt();
+		for (int i = 0; i < n; i++) {
+			Symbol sym = readSymbol(in);
+			boolean global = sym.isGlobal();
+			symtab.addSymbol(sym);
+			sym.setGlobal(global);
+		}
+	}
+
+	/**
+	 * Memory-map a snapshot file written by {@link #write(File, Symboltable, String)}.
+	 * @throws IOException	if the file cannot be read or has an unknown format.
+	 */
+	public static PreludeSnapshot map(File file) throws IOException {
+		ByteBuffer in;
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+		if (in.remaining() < 8 || in.getInt() != Magic || in.getInt() != FormatVersion)
+			throw new IOException(file + ": not a prelude snapshot of version " + FormatVersion);
+		String asmCode = readString(in);
+		return new PreludeSnapshot(in.slice(), asmCode);
+	}
+
+	/**
+	 * Create an in-memory snapshot of the global scope of <code>symtab</code>
+	 * and the given assembler code, e.g. if the snapshot file cannot be written.
+	 * @throws IOException	if a symbol has a type not supported by the snapshot format.
+	 */
+	public static PreludeSnapshot create(Symboltable symtab, String asmCode) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			writeSymbols(out, symtab);
+		}
+		return new PreludeSnapshot(ByteBuffer.wrap(bytes.toByteArray()), asmCode);
+	}
+
+	/**
+	 * Write a snapshot of the global scope of <code>symtab</code> and the given
+	 * assembler code to <code>file</code>. The file is written under a temporary
+	 * name first and then renamed, so concurrent writers and readers never see
+	 * an incomplete snapshot.
+	 * @throws IOException	if the file cannot be written, or a symbol has a
+	 *                      type not supported by the snapshot format.
+	 */
+	public static void write(File file, Symboltable symtab, String asmCode) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				out.writeInt(Magic);
+				out.writeInt(FormatVersion);
+				writeString(out, asmCode);
+				writeSymbols(out, symtab);
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static void writeSymbols(DataOutputStream out, Symboltable symtab) throws IOException {
+		List<yapl.interfaces.Symbol> syms = symtab.globalSymbols();
+		out.writeInt(syms.size());
+		for (yapl.interfaces.Symbol sym : syms)
+			writeSymbol(out, sym);
+	}
+
+	private static void writeSymbol(DataOutputStream out, yapl.interfaces.Symbol sym) throws IOException {
+		out.writeByte(sym.getKind());
+		writeString(out, sym.getName());
+		writeType(out, sym.getType());
+		int flags = 0;
+		if (sym.isReference())
+			flags |= FlagReference;
+		if (sym.isReadonly())
+			flags |= FlagReadonly;
+		if (sym.isGlobal())
+			flags |= FlagGlobal;
+		if (sym.getReturnSeen())
+			flags |= FlagReturnSeen;
+		out.writeByte(flags);
+		out.writeInt(sym.getOffset());
+		out.writeBoolean(sym.getNextSymbol() != null);
+		if (sym.getNextSymbol() != null)
+			writeSymbol(out, sym.getNextSymbol());
+	}
+
+	private static Symbol readSymbol(ByteBuffer in) {
+		Symbol sym = new Symbol(in.get(), readString(in));
+		sym.setType(readType(in));
+		byte flags = in.get();
+		sym.setReference((flags & FlagReference) != 0);
+		sym.setReadonly((flags & FlagReadonly) != 0);
+		sym.setGlobal((flags & FlagGlobal) != 0);
+		sym.setReturnSeen((flags & FlagReturnSeen) != 0);
+		sym.setOffset(in.getInt());
+		if (in.get() != 0)
+			sym.setNextSymbol(readSymbol(in));
+		return sym;
+	}
+
+	private static void writeType(DataOutputStream out, Type type) throws IOException {
+		if (type == null)
+			out.writeByte(TypeNone);
+		else if (type instanceof IntType)
+			out.writeByte(TypeInt);
+		else if (type instanceof BoolType)
+			out.writeByte(TypeBool);
+		else if (type instanceof ArrayType) {
+			out.writeByte(TypeArray);
+			out.writeInt(((ArrayType) type).len);
+			writeType(out, ((ArrayType) type).base);
+		} else
+			throw new IOException("prelude snapshot: unsupported type " + type);
+	}
+
+	private static Type readType(ByteBuffer in) {
+		switch (in.get()) {
+		case TypeInt:
+			return new IntType();
+		case TypeBool:
+			return new BoolType();
+		case TypeArray: {
+			int len = in.getInt();
+			return new ArrayType(readType(in), len);
+		}
+		default:
+			return null;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] b = new byte[in.getInt()];
+		in.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
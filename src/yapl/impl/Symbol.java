@@ -21,6 +21,7 @@ public class Symbol implements yapl.interfaces.Symbol {
 	protected boolean readonly = false;
 	protected boolean global;
 	protected int offset;
+	protected short register = -1;
 	protected yapl.interfaces.Symbol next = null;
 	protected boolean returnSeen = false;
 
@@ -136,6 +137,14 @@ public class Symbol implements yapl.interfaces.Symbol {
 		this.offset = offset;
 	}
 
+	public short getRegister() {
+		return register;
+	}
+
+	public void setRegister(short register) {
+		this.register = register;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -3,6 +3,10 @@ package yapl.impl;
 import yapl.interfaces.Symbol;
 import yapl.lib.YAPLException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Stack;
 import java.util.Hashtable;
 
@@ -162,4 +166,18 @@ public class Symboltable implements yapl.interfaces.Symboltable {
 		return null;
 	}
 
+	/** Return the symbols of the outermost scope, ordered by name.
+	 * Used for taking a {@link PreludeSnapshot}.
+	 */
+	public List<Symbol> globalSymbols()
+	{
+		List<Symbol> syms = new ArrayList<Symbol>(scopes.firstElement().table.values());
+		Collections.sort(syms, new Comparator<Symbol>() {
+			public int compare(Symbol s1, Symbol s2) {
+				return s1.getName().compareTo(s2.getName());
+			}
+		});
+		return syms;
+	}
+
 }
@@ -1,5 +1,7 @@
 package yapl.interfaces;
 
+import java.util.List;
+
 import yapl.lib.Type;
 
 /**
@@ -45,9 +47,60 @@ public interface Attrib {
 	 */
 	public static final byte MemoryOperand   = 4;
 	
+	/** Sub-array of a dense multi-dimensional array (see
+	 * {@link BackendAsmRM#allocDenseArray(short, boolean)}), selected by some but not
+	 * all of its indices. The array base address is stored in register
+	 * {@link #getRegister()}, the linear index of the sub-array (a register value)
+	 * is given by {@link #getRightOperand()}, and the number of indices applied
+	 * so far by {@link #getOffset()}. Requires a data type (the sub-array type).
+	 */
 	public static final byte ArrayElement = 5;
 	
 	public static final byte RecordField = 6;
+
+	/** Boolean condition without a value of its own: control only continues
+	 * at the pending jumps given by {@link #getFalseLabels()} and
+	 * {@link #getTrueLabels()}. Requires a data type.
+	 */
+	public static final byte Jump = 7;
+
+	/** Boolean result of a comparison that has not been evaluated yet,
+	 * so that it can be fused with a conditional branch. The left operand
+	 * is stored in register {@link #getRegister()}, the right operand
+	 * is given by {@link #getRightOperand()} (a register value or a constant).
+	 * Requires a data type and a relation (see {@link #getRelation()}).
+	 */
+	public static final byte Compare = 8;
+
+	/** Variable or parameter kept in a register (see {@link Symbol#getRegister()}).
+	 * Requires a data type and a register number. In contrast to
+	 * {@link #RegValue}, the register belongs to the variable: it must
+	 * neither be modified nor freed when using the operand.
+	 */
+	public static final byte RegVariable = 9;
+
+	/** Register operand address of a byte-sized memory object, i.e. a boolean
+	 * record field in a packed record layout. Like {@link #RegAddress}, but
+	 * the object must be accessed by byte loads and stores
+	 * (see {@link BackendAsmRM#loadByteReg(short, short)}).
+	 * Requires a data type and a register number.
+	 */
+	public static final byte ByteAddress = 10;
+
+	/** Element of a bit array (see {@link BackendAsmRM#allocBitArray(short)}).
+	 * The address of the word holding the element is stored in register
+	 * {@link #getRegister()}, the number of its bit (a register value) is
+	 * given by {@link #getRightOperand()}. Requires a data type.
+	 */
+	public static final byte BitAddress = 11;
+
+	/** Byte-sized memory operand, i.e. a packed boolean record field kept in
+	 * the stack frame. Like {@link #MemoryOperand}, but the object must be
+	 * accessed by byte loads and stores; its address is loaded when the
+	 * operand is used, turning it into a {@link #ByteAddress}.
+	 * Requires a data type and an address offset.
+	 */
+	public static final byte ByteOperand = 12;
 	
 	/** Return the kind of operand represented by this object.
 	 * 
@@ -108,9 +161,38 @@ public interface Attrib {
 	public void setOffset(int offset);
 	
 	/** Get the register number (for register operands). */
-	public byte getRegister();
+	public short getRegister();
 	
 	/** Set the register number (for register operands). */
-	public void setRegister(byte register);
+	public void setRegister(short register);
+
+	/** Return the relation of a {@link #Compare} operand, one of the
+	 * relation constants defined by {@link BackendAsmRM}.
+	 */
+	public int getRelation();
+
+	/** Set the relation of a {@link #Compare} operand. */
+	public void setRelation(int relation);
+
+	/** Return the right operand of a {@link #Compare} operand. */
+	public Attrib getRightOperand();
+
+	/** Set the right operand of a {@link #Compare} operand. */
+	public void setRightOperand(Attrib operand);
+
+	/**
+	 * Return the (modifiable) list of labels of pending jumps taken if this
+	 * boolean operand is <code>false</code>, as generated by short-circuit
+	 * evaluation. The jumps have not been resolved yet, i.e. the labels
+	 * have not been assigned to a code address.
+	 */
+	public List<String> getFalseLabels();
+
+	/**
+	 * Return the (modifiable) list of labels of pending jumps taken if this
+	 * boolean operand is <code>true</code>.
+	 * @see #getFalseLabels()
+	 */
+	public List<String> getTrueLabels();
 	
 }
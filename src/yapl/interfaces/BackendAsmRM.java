@@ -19,18 +19,40 @@ package yapl.interfaces;
  * </p>
  * <p>
  * Arrays may be allocated at run-time using the
- * {@link #storeArrayDim(int,byte)} and {@link #allocArray(byte,int)} methods.
+ * {@link #storeArrayDim(int,short)} and {@link #allocArray(short,boolean)} methods.
  * Multi-dimensional arrays need to be implemented by hierarchies of
  * one-dimensional arrays: an n-dimensional array with first dimension length k
  * is represented as a one-dimensional array of k pointers to (n-1)-dimensional
  * arrays. Hence, run-time allocation of multi-dimensional arrays needs support
  * by a recursive procedure in the run-time environment.
+ * Alternatively, {@link #allocDenseArray(short, boolean)} allocates a multi-dimensional
+ * array as a single block: a header holding all dimension lengths, followed by
+ * the elements in row-major order, which are accessed by
+ * {@link #arrayIndex(short, short, int, short)} and
+ * {@link #arrayOffset(short, short, short, int)}.
+ * A one-dimensional boolean array may be allocated by {@link #allocBitArray(short)},
+ * packing its elements into bits, which are accessed by
+ * {@link #bitArrayOffset(short, short, short, short)}.
+ * </p>
+ * <p>
+ * To support a garbage collector, heap allocations tell which words of the
+ * allocated block hold references to other heap blocks, and global variables
+ * holding references are registered by {@link #addGlobalRoot(int)}.
  * </p>
  * 
  * @author Mario Taschwer
  */
 public interface BackendAsmRM
 {
+    /*--- relations of compare-and-branch operations ---*/
+
+    public static final int Less = 0;
+    public static final int LessOrEqual = 1;
+    public static final int Greater = 2;
+    public static final int GreaterOrEqual = 3;
+    public static final int Equal = 4;
+    public static final int NotEqual = 5;
+
     /*--- implementation constants ---*/
     
     /**
@@ -49,18 +71,18 @@ public interface BackendAsmRM
      * Allocate a register.
      * @return the register number or -1 if all registers are in use.
      */
-    public byte allocReg();
+    public short allocReg();
     
     /** 
      * Deallocate a register.
      * @param reg       the register number.
      */
-    public void freeReg(byte reg);
+    public void freeReg(short reg);
     
     /** Return the number of a fixed register containing zero. 
      * @return the register number. 
      */
-    public byte zeroReg();
+    public short zeroReg();
     
     /*--- emitting comments and labels ---*/
 	
@@ -89,6 +111,14 @@ public interface BackendAsmRM
      */
     public int allocStaticData(int bytes, String comment);
 
+    /**
+     * Register a variable in the static data area holding a reference to a
+     * heap block (or 0), to be treated as a root by a garbage collector.
+     * @param addr      the offset of the variable in the static data area,
+     *                  see {@link #allocStaticData(int, String)}.
+     */
+    public void addGlobalRoot(int addr);
+
     /**
      * Allocate string constant in static data area.
      * The string constant will be terminated by a zero byte.
@@ -116,25 +146,52 @@ public interface BackendAsmRM
      * @param destReg    register where to store the start address 
      *                   of the allocated block.
      * @param bytes      the number of bytes to allocate.
+     * @param refBytes   the number of bytes at the start of the block holding
+     *                   references to heap blocks.
      */
-    public void allocHeap(byte destReg, int bytes);
+    public void allocHeap(short destReg, int bytes, int refBytes);
     
 	/**
 	 * Store array dimension length.
 	 * Needs to be called with increasing values of <code>dim</code>, before
-	 * calling {@link #allocArray(byte, int)}.
+	 * calling {@link #allocArray(short, boolean)}.
 	 * @param dim      array dimension; starts at 0.
 	 * @param lenReg   register containing the length of the given array dimension.
 	 */
-	public void storeArrayDim(int dim, byte lenReg);
+	public void storeArrayDim(int dim, short lenReg);
 	
 	/**
 	 * Allocate (one- or multi-dimensional) array at run time.
 	 * Only word-sized element types are supported.
-	 * {@link #storeArrayDim(int, byte)} must have been called before.
+	 * {@link #storeArrayDim(int, short)} must have been called before.
 	 * @param destReg   register where to store the array start address.
+	 * @param refElements  whether the elements of the innermost dimension
+	 *                  are references to heap blocks.
 	 */
-	public void allocArray(byte destReg);
+	public void allocArray(short destReg, boolean refElements);
+	
+	/**
+	 * Allocate a dense multi-dimensional array at run time, as a single block
+	 * holding the length of each dimension (starting at offset 0) followed
+	 * by the elements in row-major order.
+	 * Only word-sized element types are supported.
+	 * {@link #storeArrayDim(int, short)} must have been called before.
+	 * @param destReg   register where to store the array start address.
+	 * @param refElements  whether the elements are references to heap blocks.
+	 */
+	public void allocDenseArray(short destReg, boolean refElements);
+	
+	/**
+	 * Allocate a one-dimensional array of boolean elements at run time,
+	 * packing the elements into bits. Like an array allocated by
+	 * {@link #allocArray(short, boolean)}, it starts with its length.
+	 * Elements are accessed by {@link #bitArrayOffset(short, short, short, short)},
+	 * which also works for arrays of word-sized elements allocated otherwise,
+	 * as these are not smaller.
+	 * {@link #storeArrayDim(int, short)} must have been called before.
+	 * @param destReg   register where to store the array start address.
+	 */
+	public void allocBitArray(short destReg);
 	
     /*--- load/store operations ---*/
     
@@ -144,7 +201,14 @@ public interface BackendAsmRM
 	 * @param reg		the destination register.
 	 * @param value		the constant value (word) to be loaded.
 	 */
-	public void loadConst(byte reg, int value);
+	public void loadConst(short reg, int value);
+	
+	/**
+	 * Copy the content of a register into another register.
+	 * @param regDest	the destination register.
+	 * @param regSrc	the source register.
+	 */
+	public void move(short regDest, short regSrc);
 	
 	/**
 	 * Issue a <em>load address</em> instruction using an offset address.
@@ -156,7 +220,7 @@ public interface BackendAsmRM
      *                  relative to the static data area; otherwise, 
      *                  it is relative to the current stack frame.
 	 */
-	public void loadAddress(byte reg, int addr, boolean isStatic);
+	public void loadAddress(short reg, int addr, boolean isStatic);
 	
 	/** Issue a <em>load word</em> instruction using an offset address.
 	 * @param reg		the destination register.
@@ -165,7 +229,7 @@ public interface BackendAsmRM
 	 *                  relative to the static data area; otherwise, 
 	 *                  it is relative to the current stack frame.
 	 */
-	public void loadWord(byte reg, int addr, boolean isStatic);
+	public void loadWord(short reg, int addr, boolean isStatic);
 	
 	/** Issue a <em>store word</em> instruction using an offset address.
 	 * @param reg		the source register.
@@ -174,13 +238,13 @@ public interface BackendAsmRM
      *                  relative to the static data area; otherwise, 
      *                  it is relative to the current stack frame.
 	 */
-	public void storeWord(byte reg, int addr, boolean isStatic);
+	public void storeWord(short reg, int addr, boolean isStatic);
 	
     /** Issue a <em>load word</em> instruction using an address register.
      * @param reg       the destination register.
      * @param addrReg   the register containing the memory address.
      */
-    public void loadWordReg(byte reg, byte addrReg);
+    public void loadWordReg(short reg, short addrReg);
     
     /** Issue a <em>load word</em> instruction using an address register
      * and an offset.
@@ -188,13 +252,44 @@ public interface BackendAsmRM
      * @param addrReg   the register containing the memory address.
      * @param offset    the offset to add to the value contained in <code>addrReg</code>.
      */
-    public void loadWordReg(byte reg, byte addrReg, int offset);
+    public void loadWordReg(short reg, short addrReg, int offset);
     
     /** Issue a <em>store word</em> instruction using an address register.
      * @param reg       the source register.
      * @param addrReg   the register containing the memory address.
      */
-    public void storeWordReg(byte reg, int addrReg);
+    public void storeWordReg(short reg, int addrReg);
+    
+    /** Issue a <em>load byte</em> instruction using an address register.
+     * The loaded byte is sign-extended to a word, so a byte holding a
+     * boolean value (see {@link #boolValue(boolean)}) yields the same word.
+     * @param reg       the destination register.
+     * @param addrReg   the register containing the memory address.
+     */
+    public void loadByteReg(short reg, short addrReg);
+    
+    /** Issue a <em>store byte</em> instruction using an address register,
+     * storing the least significant byte of <code>reg</code>.
+     * @param reg       the source register.
+     * @param addrReg   the register containing the memory address.
+     */
+    public void storeByteReg(short reg, short addrReg);
+    
+    /** Load a single bit of a word as a boolean value
+     * (see {@link #bitArrayOffset(short, short, short, short)}).
+     * @param reg       the destination register.
+     * @param addrReg   the register containing the memory address of the word.
+     * @param bit       the register containing the bit number.
+     */
+    public void loadBitReg(short reg, short addrReg, short bit);
+    
+    /** Store a boolean value into a single bit of a word, leaving the other
+     * bits unchanged (see {@link #bitArrayOffset(short, short, short, short)}).
+     * @param reg       the source register.
+     * @param addrReg   the register containing the memory address of the word.
+     * @param bit       the register containing the bit number.
+     */
+    public void storeBitReg(short reg, short addrReg, short bit);
     
     /**
      * Compute address of array element.
@@ -202,14 +297,56 @@ public interface BackendAsmRM
 	 * @param baseAddr  register holding the array base address.
 	 * @param index     register holding the element index.
      */
-    public void arrayOffset(byte dest, byte baseAddr, byte index);
+    public void arrayOffset(short dest, short baseAddr, short index);
+
+    /**
+     * Compute address of an element of a dense array (see {@link #allocDenseArray(short, boolean)}).
+     * @param dest      destination register.
+	 * @param baseAddr  register holding the array base address.
+	 * @param index     register holding the linear element index (see
+	 *                  {@link #arrayIndex(short, short, int, short)}); it is modified.
+	 * @param dims      number of array dimensions.
+     */
+    public void arrayOffset(short dest, short baseAddr, short index, int dims);
+
+    /**
+     * Compute the address of the word holding an element of a bit array
+     * (see {@link #allocBitArray(short)}), and the number of its bit within
+     * that word.
+     * @param dest      destination register for the word address.
+     * @param bit       destination register for the bit number.
+	 * @param baseAddr  register holding the array base address.
+	 * @param index     register holding the element index; it is modified.
+     */
+    public void bitArrayOffset(short dest, short bit, short baseAddr, short index);
+
+    /**
+     * Extend the linear index of a dense array element (see {@link #allocDenseArray(short, boolean)})
+     * by the index of the next dimension:
+     * <code>index := index * length(dim) + subIndex</code>.
+	 * @param index     register holding the linear index of the sub-array
+	 *                  selected by the indices of the dimensions before <code>dim</code>.
+	 * @param baseAddr  register holding the array base address.
+	 * @param dim       the dimension of <code>subIndex</code>; starts at 0.
+	 * @param subIndex  register holding the index of dimension <code>dim</code>.
+     */
+    public void arrayIndex(short index, short baseAddr, int dim, short subIndex);
 
 	/**
 	 * Determine length of 1-dimensional array at run time.
 	 * @param dest      the destination register.
 	 * @param baseAddr  register holding the array base address.
 	 */
-	public void arrayLength(byte dest, byte baseAddr);
+	public void arrayLength(short dest, short baseAddr);
+
+	/**
+	 * Determine the length of a dimension of a dense array at run time
+	 * (see {@link #allocDenseArray(short, boolean)}).
+	 * @param dest      the destination register.
+	 * @param baseAddr  register holding the array base address.
+	 * @param dim       the array dimension; starts at 0.
+	 */
+	public void arrayLength(short dest, short baseAddr, int dim);
 	
     /*--- run-time I/O operations ---*/
     
@@ -227,7 +364,7 @@ public interface BackendAsmRM
 	 * @param regDest		destination register number.
 	 * @param regX			register number of source operand.
 	 */
-	public void neg(byte regDest, byte regX);
+	public void neg(short regDest, short regX);
 	
 	/** 
 	 * Add integer registers.<br>
@@ -237,7 +374,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void add(byte regDest, byte regX, byte regY);
+	public void add(short regDest, short regX, short regY);
 
 	/** 
 	 * Add constant to integer register.<br>
@@ -247,7 +384,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param value			constant value to be added.
 	 */
-	public void addConst(byte regDest, byte regX, int value);
+	public void addConst(short regDest, short regX, int value);
 
 	/** 
 	 * Subtract integer registers.<br>
@@ -257,7 +394,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void sub(byte regDest, byte regX, byte regY);
+	public void sub(short regDest, short regX, short regY);
 
 	/** 
 	 * Multiply integer registers.<br>
@@ -267,7 +404,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void mul(byte regDest, byte regX, byte regY);
+	public void mul(short regDest, short regX, short regY);
 
 	/** 
 	 * Divide integer registers.<br>
@@ -277,7 +414,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void div(byte regDest, byte regX, byte regY);
+	public void div(short regDest, short regX, short regY);
 	
 	/** 
 	 * Remainder of integer division.<br>
@@ -287,7 +424,43 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void mod(byte regDest, byte regX, byte regY);
+	public void mod(short regDest, short regX, short regY);
+
+	/** 
+	 * Multiply integer register by constant.<br>
+	 * <code>regDest = regX * value</code><br>
+	 * The destination register may be equal to the source register.
+	 * Implementations should prefer cheaper instruction sequences (e.g. shifts)
+	 * over a general multiplication.
+	 * @param regDest		destination register number.
+	 * @param regX			register number of source operand.
+	 * @param value			constant factor.
+	 */
+	public void mulConst(short regDest, short regX, int value);
+
+	/** 
+	 * Divide integer register by constant.<br>
+	 * <code>regDest = regX / value</code><br>
+	 * The destination register may be equal to the source register.
+	 * Implementations should prefer cheaper instruction sequences over
+	 * a general division.
+	 * @param regDest		destination register number.
+	 * @param regX			register number of source operand.
+	 * @param value			constant divisor.
+	 */
+	public void divConst(short regDest, short regX, int value);
+
+	/** 
+	 * Remainder of integer division by constant.<br>
+	 * <code>regDest = regX % value</code><br>
+	 * The destination register may be equal to the source register.
+	 * Implementations should prefer cheaper instruction sequences over
+	 * a general division.
+	 * @param regDest		destination register number.
+	 * @param regX			register number of source operand.
+	 * @param value			constant divisor.
+	 */
+	public void modConst(short regDest, short regX, int value);
 	
     /*--- comparison operations ---*/
     
@@ -298,7 +471,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void isLess(byte regDest, byte regX, byte regY);
+	public void isLess(short regDest, short regX, short regY);
 	
 	/** 
 	 * Set boolean register value by <code>less than or equal</code> comparison.<br>
@@ -308,7 +481,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void isLessOrEqual(byte regDest, byte regX, byte regY);
+	public void isLessOrEqual(short regDest, short regX, short regY);
 	
 	/** 
 	 * Set boolean register value by <code>is equal</code> comparison.<br>
@@ -318,7 +491,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void isEqual(byte regDest, byte regX, byte regY);
+	public void isEqual(short regDest, short regX, short regY);
 	
     /*--- logical operations ---*/
     
@@ -329,7 +502,7 @@ public interface BackendAsmRM
 	 * @param regDest		destination register number.
 	 * @param regSrc		source register number.
 	 */
-	public void not(byte regDest, byte regSrc);
+	public void not(short regDest, short regSrc);
 
 	/** 
 	 * Logical AND of boolean register values.<br>
@@ -339,7 +512,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void and(byte regDest, byte regX, byte regY);
+	public void and(short regDest, short regX, short regY);
 	
 	/** 
 	 * Logical OR of boolean register values.<br>
@@ -349,7 +522,7 @@ public interface BackendAsmRM
 	 * @param regX			register number of first source operand.
 	 * @param regY			register number of second source operand.
 	 */
-	public void or(byte regDest, byte regX, byte regY);
+	public void or(short regDest, short regX, short regY);
 	
     /*--- jump instructions ---*/
     
@@ -360,10 +533,37 @@ public interface BackendAsmRM
 	 * @param value		the boolean value to compare with <code>reg</code>.
 	 * @param label		the label to jump to. 
 	 */
-	public void branchIf(byte reg, boolean value, String label);
+	public void branchIf(short reg, boolean value, String label);
+
+	/**
+	 * Emit conditional jump comparing two integer registers.<br>
+	 * <code>if (regX relation regY) goto label</code>
+	 * @param relation	one of the relation constants defined by this interface.
+	 * @param regX		register number of first operand.
+	 * @param regY		register number of second operand.
+	 * @param label		the label to jump to.
+	 */
+	public void branchIfCompare(int relation, short regX, short regY, String label);
+
+	/**
+	 * Emit conditional jump comparing an integer register with a constant.<br>
+	 * <code>if (regX relation value) goto label</code>
+	 * @param relation	one of the relation constants defined by this interface.
+	 * @param regX		register number of first operand.
+	 * @param value		constant second operand.
+	 * @param label		the label to jump to.
+	 */
+	public void branchIfCompareConst(int relation, short regX, int value, String label);
 	
 	/** Emit unconditional jump to <code>label</code>. */
 	public void jump(String label);
+
+	/**
+	 * Mark the code between the labels <code>startLabel</code> and
+	 * <code>endLabel</code> (both emitted already) as a loop entered at
+	 * <code>startLabel</code> only. Emits no code.
+	 */
+	public void markLoop(String startLabel, String endLabel);
 	
     /* --- procedure calls --- */
     
@@ -402,12 +602,12 @@ public interface BackendAsmRM
      * @param reg       the register holding the return value. Set this to -1
      *                  if the procedure does not return a value.
      */
-    public void returnFromProc(String label, byte reg);
+    public void returnFromProc(String label, short reg);
     
     /** 
      * Prepare stack frame for procedure call.
      * DO NOT allocate space on the stack between calling
-     * this method and calling {@link #callProc(byte, String)}.
+     * this method and calling {@link #callProc(short, String)}.
      * @param numArgs       the number of procedure arguments.
      */
     public void prepareProcCall(int numArgs);
@@ -419,13 +619,13 @@ public interface BackendAsmRM
      * @param reg       the register number where the argument
      *                  value resides.
      */
-    public void passArg(int arg, byte reg);
+    public void passArg(int arg, short reg);
     
     /** 
      * Generate a procedure call.
      * {@link #prepareProcCall(int)} MUST be called before.
      * Procedure arguments (if any) need to be passed using
-     * {@link #passArg(int, byte)} before.
+     * {@link #passArg(int, short)} before.
      * @param reg           register number for storing the
      *                      return value. Set this parameter to
      *                      -1, if the procedure does not return
@@ -433,7 +633,7 @@ public interface BackendAsmRM
      * @param name          the procedure name (label); must match
      *                      the label given to {@link #enterProc(String, boolean)}.
      */
-    public void callProc(byte reg, String name);
+    public void callProc(short reg, String name);
     
     /** 
      * Return the stack address offset for a given procedure parameter index,
@@ -441,5 +641,15 @@ public interface BackendAsmRM
      * @param index     the parameter index, starts at 0.
      */
     public int paramOffset(int index);
+
+    /** 
+     * Return the register holding a given procedure parameter on procedure
+     * entry, or -1 if the parameter is passed on the stack only (at
+     * {@link #paramOffset(int)}). Parameters passed in registers must be
+     * copied to their destination right after {@link #enterProc(String, int)};
+     * their stack location is reserved by the caller, but not initialized.
+     * @param index     the parameter index, starts at 0.
+     */
+    public short paramRegister(int index);
     
 }
\ No newline at end of file
@@ -50,7 +50,7 @@ public interface CodeGen {
 	 *                       (Internal) if the data type of <code>attr</code>
 	 *                       is not primitive.
 	 */
-	public byte loadValue(Attrib attr)
+	public short loadValue(Attrib attr)
 			throws YAPLException;
 
 	/**
@@ -65,7 +65,7 @@ public interface CodeGen {
 	 *                       (NoMoreRegs) if there are no free registers available;
 	 *                       cannot occur with stack machine backends.
 	 */
-	public byte loadAddress(Attrib attr)
+	public short loadAddress(Attrib attr)
 			throws YAPLException;
 
 	/**
@@ -141,6 +141,53 @@ public interface CodeGen {
 	public Attrib allocRecord(RecordType recordType)
 			throws YAPLException;
 
+	/**
+	 * Allocate space for a local record or array variable which only holds
+	 * records or arrays created by <code>new</code> in the current block that
+	 * do not escape it, see {@link yapl.version.codegen.EscapeAnalysis}.
+	 * The record or array itself may be allocated in the current stack frame,
+	 * or the fields of a record may be replaced by scalar variables.
+	 *
+	 * @param sym    the variable symbol.
+	 * @param length the maximal array length (ignored for records).
+	 * @return <code>true</code> if space has been allocated; otherwise,
+	 *         the variable must be allocated by {@link #allocVariable(Symbol)}.
+	 * @throws YAPLException
+	 */
+	public boolean allocLocalObject(Symbol sym, int length)
+			throws YAPLException;
+
+	/**
+	 * Generate code for the assignment of a new record or array to a variable
+	 * allocated by {@link #allocLocalObject(Symbol, int)}. All fields or
+	 * elements are set to zero. An array whose length is not known to fit
+	 * into the space reserved for it (e.g. because the length is given by
+	 * a constant redeclared in a nested block) is allocated on the heap.
+	 *
+	 * @param sym    the variable symbol.
+	 * @param length the operand representing the array length, or
+	 *               <code>null</code> for records. Its register is released.
+	 * @throws YAPLException
+	 */
+	public void initLocalObject(Symbol sym, Attrib length)
+			throws YAPLException;
+
+	/**
+	 * Return the operand representing a field of a record variable allocated
+	 * by {@link #allocLocalObject(Symbol, int)}, if the field is accessed
+	 * directly (as a scalar variable or in the stack frame) rather than by
+	 * the record address. Must not generate code; a packed boolean field
+	 * is therefore returned as a {@link Attrib#ByteOperand}.
+	 *
+	 * @param record the record variable symbol.
+	 * @param field  the record field.
+	 * @return the field operand, or <code>null</code> if the field
+	 *         must be accessed by {@link #recordOffset(Attrib, Symbol)}.
+	 * @throws YAPLException
+	 */
+	public Attrib localField(Symbol record, Symbol field)
+			throws YAPLException;
+
 	/**
 	 * Update a formal parameter's {@link Symbol#getOffset() address offset}.
 	 * Must not generate code.
@@ -248,6 +295,32 @@ public interface CodeGen {
 	public Attrib op1(Token op, Attrib x)
 			throws YAPLException;
 
+	/**
+	 * Generate code for the left operand of a conditional "And" operator
+	 * (short-circuit evaluation), before the right operand is evaluated:
+	 * jump to a pending false label of <code>x</code> if <code>x</code> is
+	 * <code>false</code>. The result is combined with the right operand
+	 * by {@link #op2(Attrib, Token, Attrib)}.
+	 * 
+	 * @param x
+	 *           the left operand, updated in place.
+	 */
+	public void condAnd(Attrib x)
+			throws YAPLException;
+
+	/**
+	 * Generate code for the left operand of a conditional "Or" operator
+	 * (short-circuit evaluation), before the right operand is evaluated:
+	 * jump to a pending true label of <code>x</code> if <code>x</code> is
+	 * <code>true</code>.
+	 * 
+	 * @param x
+	 *           the left operand, updated in place.
+	 * @see #condAnd(Attrib)
+	 */
+	public void condOr(Attrib x)
+			throws YAPLException;
+
 	/**
 	 * Check types and generate code for binary operation
 	 * <code>x = x op y</code>. <code>x</code> will be updated in place to
@@ -386,6 +459,9 @@ public interface CodeGen {
 	/**
 	 * Generate code jumping to <code>label</code> if
 	 * <code>condition</code> is <code>false</code>.
+	 * Pending jumps of <code>condition</code> taken if it is false
+	 * are resolved to <code>label</code>, which must be assigned
+	 * later by {@link #assignLabel(String)}.
 	 */
 	public void branchIfFalse(Attrib condition, String label)
 			throws YAPLException;
@@ -393,4 +469,12 @@ public interface CodeGen {
 	/** Generate code unconditionally jumping to <code>label</code>. */
 	public void jump(String label);
 
+	/**
+	 * Mark the code between the labels <code>startLabel</code> and
+	 * <code>endLabel</code> as a loop, which is entered at <code>startLabel</code>
+	 * only and left by jumping to <code>endLabel</code> (or by returning).
+	 * Both labels have been assigned already. Used for loop optimizations.
+	 */
+	public void markLoop(String startLabel, String endLabel);
+
 }
@@ -84,6 +84,9 @@ public interface CompilerError {
 	/** Too many array dimensions. */
 	public static final int TooManyDims          = 51;
 	
+	/** Sub-array of a dense multi-dimensional array used as an array value. */
+	public static final int DenseSubArray        = 52;
+	
     /* --- End of error numbers --- */
 	
 	/** Return the compiler error number.
@@ -81,6 +81,17 @@ public interface Symbol
 	 */
 	public void setOffset(int offset);
 	
+	/** Return the register holding the value of a variable or parameter
+	 * kept in a register instead of memory, or -1 if the value is stored
+	 * at {@link #getOffset()}.
+	 */
+	public short getRegister();
+	
+	/** Set the register holding the symbol's value.
+	 * @see #getRegister()
+	 */
+	public void setRegister(short register);
+	
 	/** Return the next symbol linked to this one.
 	 * Parameter symbols are represented as a linked list attached
 	 * to the procedure symbol.
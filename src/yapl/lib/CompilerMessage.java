@@ -1,5 +1,7 @@
 package yapl.lib;
 
+import java.io.PrintStream;
+
 import yapl.interfaces.CompilerError;
 
 /** This class provides static methods for generating compiler messages
@@ -21,7 +23,16 @@ public class CompilerMessage {
 	 */
 	public static void printOK(String progName)
 	{
-		System.err.println(prefix + progName + "] OK"); 
+		printOK(System.err, progName);
+	}
+	
+	/** Print a compiler status OK message to the given stream.
+	 * @param out         the stream to print to.
+	 * @param progName    the source program name.
+	 */
+	public static void printOK(PrintStream out, String progName)
+	{
+		out.println(prefix + progName + "] OK"); 
 	}
 	
 	/**
@@ -33,6 +44,19 @@ public class CompilerMessage {
 	 * @param progName    the source program name.
 	 */
 	public static void printError(CompilerError err, String progName)
+	{
+		printError(System.err, err, progName);
+	}
+	
+	/**
+	 * Print a compiler error message to the given stream.
+	 * @param out         the stream to print to.
+	 * @param err         the Exception or Error object representing the cause
+	 *                    and source location of the error.
+	 * @param progName    the source program name.
+	 * @see #printError(CompilerError, String)
+	 */
+	public static void printError(PrintStream out, CompilerError err, String progName)
 	{
 		StringBuffer buf = new StringBuffer();
 		buf.append(prefix);
@@ -45,8 +69,8 @@ public class CompilerMessage {
 		buf.append(err.column());
 		buf.append(")\n");
 		buf.append(err.getMessage());
-		System.err.println(buf.toString());
+		out.println(buf.toString());
 		if (err.errorNumber() == CompilerError.Internal && err instanceof Throwable)
-			((Throwable) err).printStackTrace();
+			((Throwable) err).printStackTrace(out);
 	}
 }
@@ -0,0 +1,145 @@
+package yapl.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Command-line options controlling optimizations of the YAPL compiler.
+ * The option syntax is (EBNF):
+ * <pre>
+ * Option = "-O" | "-f" name | "-fno-" name | "-f" name "=" number | "-stats" .
+ * </pre>
+ * <code>-O</code> enables all optimizations listed in {@link #Optimizations};
+ * <code>-f</code><em>name</em> and <code>-fno-</code><em>name</em> enable or
+ * disable a single optimization, overriding <code>-O</code> regardless of the
+ * option order. A name of the form <em>optimization.part</em> (e.g. a single
+ * peephole rule) refers to a part of an optimization, which is enabled iff
+ * the optimization is enabled and the part has not been disabled explicitly.
+ * <code>-f</code><em>name</em><code>=</code><em>number</em> sets a numeric
+ * parameter of an optimization (e.g. a size limit), see {@link #getParam(String, int)}.
+ * <code>-stats</code> requests optimization statistics (see {@link CompilerStatistics}).
+ * All optimizations are disabled by default. The ones listed in {@link #OptIn}
+ * change the run-time data layout in ways not all programs can use, and are
+ * only enabled by <code>-f</code><em>name</em>.
+ *
+ * @version $Id$
+ */
+public class CompilerOptions {
+
+	/** Names of the optimizations enabled by <code>-O</code>. */
+	public static final String[] Optimizations = { "peephole", "constfold", "strength", "cmpbranch", "mem2reg", "regargs", "frame", "inline", "tailcall", "loops", "heap", "escape", "pack" };
+
+	/** Names of the optimizations which are not enabled by <code>-O</code>. */
+	public static final String[] OptIn = { "dense", "gc", "bits" };
+
+	private boolean optimize = false;
+	private boolean stats = false;
+	private Set<String> enabled = new HashSet<String>();
+	private Set<String> disabled = new HashSet<String>();
+	private Map<String, Integer> params = new TreeMap<String, Integer>();
+
+	/** Create options with all optimizations disabled. */
+	public CompilerOptions() {
+	}
+
+	/**
+	 * Create options from the given command-line arguments.
+	 * @throws IllegalArgumentException if an argument is not a valid option.
+	 */
+	public CompilerOptions(String... args) {
+		for (String arg : args) {
+			if (!parse(arg))
+				throw new IllegalArgumentException("unknown compiler option: " + arg);
+		}
+	}
+
+	/** Return <code>true</code> if <code>arg</code> looks like a compiler option handled by {@link #parse(String)}. */
+	public static boolean isOption(String arg) {
+		return arg.equals("-O") || arg.equals("-stats") || (arg.startsWith("-f") && arg.length() > 2);
+	}
+
+	/**
+	 * Parse a single command-line argument.
+	 * @return <code>false</code> if <code>arg</code> is not a valid option.
+	 */
+	public boolean parse(String arg) {
+		if (arg.equals("-O")) {
+			optimize = true;
+		} else if (arg.equals("-stats")) {
+			stats = true;
+		} else if (arg.matches("-f[^=]+=\\d+") && isName(arg.substring(2, arg.indexOf('=')))) {
+			try {
+				params.put(arg.substring(2, arg.indexOf('=')), Integer.valueOf(arg.substring(arg.indexOf('=') + 1)));
+			} catch (NumberFormatException e) {
+				return false;		// value out of range
+			}
+		} else if (arg.startsWith("-fno-") && isName(arg.substring(5))) {
+			disabled.add(arg.substring(5));
+			enabled.remove(arg.substring(5));
+		} else if (arg.startsWith("-f") && isName(arg.substring(2))) {
+			enabled.add(arg.substring(2));
+			disabled.remove(arg.substring(2));
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/** Return <code>true</code> if <code>name</code> is an optimization or a part of it. */
+	private static boolean isName(String name) {
+		int dot = name.indexOf('.');
+		String opt = (dot < 0) ? name : name.substring(0, dot);
+		return (Arrays.asList(Optimizations).contains(opt) || Arrays.asList(OptIn).contains(opt))
+				&& dot != name.length() - 1;
+	}
+
+	/** Return <code>true</code> if the given optimization (or part of it) is enabled. */
+	public boolean isEnabled(String name) {
+		if (disabled.contains(name))
+			return false;
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0)
+			return isEnabled(name.substring(0, dot));
+		return enabled.contains(name) || (optimize && Arrays.asList(Optimizations).contains(name));
+	}
+
+	/**
+	 * Return the value of a numeric optimization parameter.
+	 * @param name          the parameter name, e.g. <code>inline.size</code>.
+	 * @param defaultValue  the value if the parameter has not been set.
+	 */
+	public int getParam(String name, int defaultValue) {
+		Integer value = params.get(name);
+		return (value == null) ? defaultValue : value;
+	}
+
+	/** Return <code>true</code> if optimization statistics have been requested. */
+	public boolean printStats() {
+		return stats;
+	}
+
+	/** Return the options as command-line arguments. */
+	public List<String> toArgs() {
+		List<String> args = new ArrayList<String>();
+		if (optimize)
+			args.add("-O");
+		for (String name : enabled)
+			args.add("-f" + name);
+		for (String name : disabled)
+			args.add("-fno-" + name);
+		for (Map.Entry<String, Integer> e : params.entrySet())
+			args.add("-f" + e.getKey() + "=" + e.getValue());
+		if (stats)
+			args.add("-stats");
+		return args;
+	}
+
+	public String toString() {
+		return String.join(" ", toArgs());
+	}
+}
@@ -0,0 +1,38 @@
+package yapl.lib;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters collected by optimization passes during a single compilation,
+ * e.g. how often a peephole rule has been applied. The format of printed
+ * statistics is (EBNF):
+ * <pre>
+ * Statistics = { "YAPL statistics: [" ProgName "] " name " = " number newLine } .
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class CompilerStatistics {
+
+	private Map<String, Integer> counters = new TreeMap<String, Integer>();
+
+	/** Add <code>n</code> to the counter of the given name. */
+	public void add(String name, int n) {
+		Integer value = counters.get(name);
+		counters.put(name, (value == null) ? n : value + n);
+	}
+
+	/** Return the value of the given counter (0 if it has not been set). */
+	public int get(String name) {
+		Integer value = counters.get(name);
+		return (value == null) ? 0 : value;
+	}
+
+	/** Print all counters in alphabetical order. */
+	public void print(PrintStream out, String progName) {
+		for (Map.Entry<String, Integer> e : counters.entrySet())
+			out.println("YAPL statistics: [" + progName + "] " + e.getKey() + " = " + e.getValue());
+	}
+}
@@ -206,6 +206,9 @@ public class YAPLException extends Exception implements CompilerError
             break;
         case InvalidNewType:
             buf.append("invalid type used with 'new'");
+            break;
+        case DenseSubArray:
+            buf.append("sub-array of dense multi-dimensional array used as a value");
             break;
 		default:
 			buf.append("internal error: unknown YAPLException kind ");
@@ -1,6 +1,10 @@
 package yapl.version.codegen;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import yapl.interfaces.Attrib;
 import yapl.interfaces.BackendAsmRM;
@@ -32,6 +36,39 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 	/** Counter for {@link #newLabel()}. */
 	protected int labelNum = 0;
 
+	/** Prefix of labels returned by {@link #newLabel()}. */
+	protected String labelPrefix = "L";
+
+	/**
+	 * Pending jumps resolved by {@link #branchIfFalse(Attrib, String)}:
+	 * labels to be assigned together with the key label.
+	 */
+	protected Map<String, List<String>> labelAliases = new HashMap<String, List<String>>();
+
+	/** Enabled optimizations. */
+	protected CompilerOptions options = new CompilerOptions();
+
+	/** Optimization statistics. */
+	protected CompilerStatistics stats = new CompilerStatistics();
+
+	/** Maximal number of variables per procedure kept in registers, see {@link #promote(Symbol)}. */
+	protected static final int MaxRegVariables = 32;
+
+	/** Number of variables of the current procedure kept in registers. */
+	protected int regVariables = 0;
+
+	/** Maximal number of fields of a record replaced by scalar variables, see {@link #allocLocalObject(Symbol, int)}. */
+	protected static final int MaxScalarFields = 4;
+
+	/** Maximal size in words of a record or array allocated in the stack frame. */
+	protected static final int MaxFrameWords = 32;
+
+	/** Scalar variables replacing the fields of local record variables, by variable and field in declaration order. */
+	protected Map<Symbol, Map<Symbol, Symbol>> scalarFields = new HashMap<Symbol, Map<Symbol, Symbol>>();
+
+	/** Stack frame offset and size in words of records and arrays allocated in the stack frame, by variable. */
+	protected Map<Symbol, int[]> frameObjects = new HashMap<Symbol, int[]>();
+
 	/**
 	 * Return the number of bytes occupied by a variable of the given data type
 	 * on the target architecture.
@@ -47,12 +84,43 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 				|| type instanceof ArrayType)
 			// array variables also occupy only 1 word (start address)
 			return backend.wordSize();
-		else if (type instanceof RecordType)
-			// fields of record types are references!
-			return ((RecordType) type).numFields() * backend.wordSize();
+		else if (type instanceof RecordType) {
+			// fields of record types are references (or packed booleans)!
+			int bytes = 0;
+			for (Symbol field : (RecordType) type)
+				bytes += fieldSize(field);
+			int word = backend.wordSize();
+			return (bytes + word - 1) / word * word;
+		}
 		throw new YAPLException(YAPLException.Internal);
 	}
 
+	/**
+	 * Return <code>true</code> if the record field <code>field</code> occupies
+	 * a single byte, which is the case for boolean fields if the optimization
+	 * <code>pack</code> is enabled.
+	 */
+	protected boolean isPacked(Symbol field) {
+		return options.isEnabled("pack") && field.getType() instanceof BoolType;
+	}
+
+	/** Return the number of bytes occupied by a record field. */
+	protected int fieldSize(Symbol field) {
+		return isPacked(field) ? 1 : sizeAsReference(field.getType());
+	}
+
+	/**
+	 * Return <code>true</code> if arrays of the given type are allocated as
+	 * bit arrays (see {@link BackendAsmRM#allocBitArray(short)}), which is the
+	 * case for one-dimensional boolean arrays if the optimization
+	 * <code>bits</code> is enabled. Elements of all boolean arrays, including
+	 * the rows of multi-dimensional ones, are accessed as bits then.
+	 */
+	protected boolean isBitArray(Type type) {
+		return options.isEnabled("bits") && type instanceof ArrayType
+				&& ((ArrayType) type).base instanceof BoolType;
+	}
+
 	/**
 	 * Return number of bytes occupied by a reference to the given data type
 	 * on the target architecture. If the data type is primitive (int or bool),
@@ -73,22 +141,114 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 		this.backend = backend;
 	}
 
+	/**
+	 * Constructor.
+	 * 
+	 * @param arch        the target architecture to generate code for.
+	 * @param labelPrefix prefix of generated labels; must not clash with the
+	 *                    labels of other code linked into the same program,
+	 *                    e.g. "LR" for the run-time library.
+	 */
+	public CodeGenAsmRM(BackendAsmRM backend, String labelPrefix) {
+		this.backend = backend;
+		this.labelPrefix = labelPrefix;
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param arch        the target architecture to generate code for.
+	 * @param options     enabled optimizations.
+	 * @param stats       where to count applied optimizations.
+	 */
+	public CodeGenAsmRM(BackendAsmRM backend, CompilerOptions options, CompilerStatistics stats) {
+		this.backend = backend;
+		this.options = options;
+		this.stats = stats;
+	}
+
 	@Override
 	public String newLabel() {
-		return "L" + labelNum++;
+		return labelPrefix + labelNum++;
 	}
 
 	@Override
 	public void assignLabel(String label) {
 		backend.emitLabel(label, null);
+		List<String> aliases = labelAliases.remove(label);
+		if (aliases != null)
+			assignLabels(aliases);
 	}
 
+	/** Assign all labels of the given list to the current code address and clear the list. */
+	protected void assignLabels(List<String> labels) {
+		for (String label : labels)
+			backend.emitLabel(label, null);
+		labels.clear();
+	}
+
+	/** Return <code>true</code> if <code>attr</code> has pending jumps. */
+	protected static boolean hasJumps(Attrib attr) {
+		return !attr.getFalseLabels().isEmpty() || !attr.getTrueLabels().isEmpty();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Pending jumps of a boolean operand are resolved by loading the
+	 * respective boolean value into the register.
+	 */
 	@Override
-	public byte loadValue(Attrib attr) throws YAPLException {
+	public short loadValue(Attrib attr) throws YAPLException {
+		if (!hasJumps(attr))
+			return loadOperand(attr);
+		List<String> falseLabels = new ArrayList<String>(attr.getFalseLabels());
+		List<String> trueLabels = new ArrayList<String>(attr.getTrueLabels());
+		attr.getFalseLabels().clear();
+		attr.getTrueLabels().clear();
+		short reg = loadOperand(attr);
+		String end = newLabel();
+		backend.jump(end);
+		if (!falseLabels.isEmpty()) {
+			assignLabels(falseLabels);
+			backend.loadConst(reg, backend.boolValue(false));
+			if (!trueLabels.isEmpty())
+				backend.jump(end);
+		}
+		if (!trueLabels.isEmpty()) {
+			assignLabels(trueLabels);
+			backend.loadConst(reg, backend.boolValue(true));
+		}
+		assignLabel(end);
+		return reg;
+	}
+
+	/**
+	 * Load the value of <code>attr</code> into a register, ignoring pending jumps.
+	 * @see #loadValue(Attrib)
+	 */
+	protected short loadOperand(Attrib attr) throws YAPLException {
 		int attrKind = attr.getKind();
+		if (attrKind == Attrib.Compare)
+			return loadCompare(attr);
+		if (attrKind == Attrib.ArrayElement)
+			throw new YAPLException(CompilerError.DenseSubArray);
 		if (attrKind == Attrib.RegValue)
 			return attr.getRegister();
-		byte reg = (attrKind == Attrib.RegAddress) ? attr.getRegister() : backend.allocReg();
+		if (attrKind == Attrib.BitAddress) {
+			short reg = attr.getRegister();
+			backend.loadBitReg(reg, reg, attr.getRightOperand().getRegister());
+			freeReg(attr.getRightOperand());
+			attr.setRightOperand(null);
+			attr.setKind(Attrib.RegValue);
+			return reg;
+		}
+		if (attrKind == Attrib.ByteOperand) {
+			// byte loads and stores only take an address register
+			loadAddress(attr);
+			attrKind = attr.getKind();
+		}
+		short reg = (attrKind == Attrib.RegAddress || attrKind == Attrib.ByteAddress)
+				? attr.getRegister() : backend.allocReg();
 		if (reg < 0) {
 			throw new YAPLException(YAPLException.NoMoreRegs);
 		}
@@ -97,21 +257,18 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 			case Attrib.RegAddress:
 				backend.loadWordReg(reg, reg);
 				break;
-			case Attrib.Constant: {
-				int value = 0;
-				if (attrType instanceof IntType) {
-					value = ((IntType) attrType).value;
-				} else if (attrType instanceof BoolType) {
-					value = backend.boolValue(((BoolType) attrType).value);
-				} else {
-					throw new YAPLException(YAPLException.Internal);
-				}
-				backend.loadConst(reg, value);
-			}
+			case Attrib.ByteAddress:
+				backend.loadByteReg(reg, reg);
+				break;
+			case Attrib.Constant:
+				backend.loadConst(reg, constValue(attr));
 				break;
 			case Attrib.MemoryOperand:
 				backend.loadWord(reg, attr.getOffset(), attr.isGlobal());
 				break;
+			case Attrib.RegVariable:
+				backend.move(reg, attr.getRegister());
+				break;
 			default:
 				throw new YAPLException(YAPLException.Internal);
 		}
@@ -120,17 +277,76 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 		return reg;
 	}
 
+	/**
+	 * Return a register holding the value of <code>attr</code>, which is
+	 * only read (not modified) by the caller. In contrast to
+	 * {@link #loadValue(Attrib)}, the register of a variable kept in a
+	 * register is returned without copying it.
+	 */
+	protected short useValue(Attrib attr) throws YAPLException {
+		if (attr.getKind() == Attrib.RegVariable && !hasJumps(attr))
+			return attr.getRegister();
+		return loadValue(attr);
+	}
+
+	/** Return the machine representation of a constant integer or boolean operand. */
+	protected int constValue(Attrib attr) throws YAPLException {
+		Type attrType = attr.getType();
+		if (attrType instanceof IntType)
+			return ((IntType) attrType).value;
+		else if (attrType instanceof BoolType)
+			return backend.boolValue(((BoolType) attrType).value);
+		throw new YAPLException(YAPLException.Internal);
+	}
+
+	/** Evaluate a {@link Attrib#Compare} operand into its left operand register. */
+	protected short loadCompare(Attrib attr) throws YAPLException {
+		short xReg = attr.getRegister();
+		Attrib y = attr.getRightOperand();
+		short yReg = useValue(y);
+		switch (attr.getRelation()) {
+			case BackendAsmRM.Less:
+				backend.isLess(xReg, xReg, yReg);
+				break;
+			case BackendAsmRM.LessOrEqual:
+				backend.isLessOrEqual(xReg, xReg, yReg);
+				break;
+			case BackendAsmRM.Greater:
+				backend.isLess(xReg, yReg, xReg);
+				break;
+			case BackendAsmRM.GreaterOrEqual:
+				backend.isLessOrEqual(xReg, yReg, xReg);
+				break;
+			case BackendAsmRM.Equal:
+				backend.isEqual(xReg, xReg, yReg);
+				break;
+			case BackendAsmRM.NotEqual:
+				backend.isEqual(xReg, xReg, yReg);
+				backend.not(xReg, xReg);
+				break;
+			default:
+				throw new YAPLException(YAPLException.Internal);
+		}
+		freeReg(y);
+		attr.setKind(Attrib.RegValue);
+		attr.setRightOperand(null);
+		return xReg;
+	}
+
 	@Override
-	public byte loadAddress(Attrib attr) throws YAPLException {
+	public short loadAddress(Attrib attr) throws YAPLException {
 		int attrKind = attr.getKind();
-		if (attrKind == Attrib.RegAddress)
+		if (attrKind == Attrib.RegAddress || attrKind == Attrib.ByteAddress)
 			return attr.getRegister();
-		byte reg = backend.allocReg();
+		if (attrKind == Attrib.ArrayElement)
+			throw new YAPLException(CompilerError.DenseSubArray);
+		short reg = backend.allocReg();
 		if (reg < 0) {
 			throw new YAPLException(YAPLException.NoMoreRegs);
 		}
 		switch (attrKind) {
 			case Attrib.MemoryOperand:
+			case Attrib.ByteOperand:
 				backend.loadAddress(reg, attr.getOffset(), attr.isGlobal());
 				break;
 			default:
@@ -138,54 +354,189 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 				throw new YAPLException(YAPLException.Internal);
 		}
 		attr.setRegister(reg);
-		attr.setKind(Attrib.RegAddress);
+		attr.setKind(attrKind == Attrib.ByteOperand ? Attrib.ByteAddress : Attrib.RegAddress);
 		return reg;
 	}
 
 	@Override
 	public void freeReg(Attrib attr) {
+		if (attr.getKind() == Attrib.Compare) {
+			backend.freeReg(attr.getRegister());
+			freeReg(attr.getRightOperand());
+			attr.setKind(Attrib.Invalid);
+			return;
+		}
+		if (attr.getKind() == Attrib.ArrayElement || attr.getKind() == Attrib.BitAddress) {
+			backend.freeReg(attr.getRegister());
+			freeReg(attr.getRightOperand());
+			attr.setKind(Attrib.Invalid);
+			return;
+		}
 		if (attr.getKind() != Attrib.RegValue &&
-				attr.getKind() != Attrib.RegAddress)
+				attr.getKind() != Attrib.RegAddress &&
+				attr.getKind() != Attrib.ByteAddress)
 			return;
 		backend.freeReg(attr.getRegister());
 		attr.setKind(Attrib.Invalid);
 	}
 
+	/**
+	 * Keep a local scalar variable or parameter of the current procedure in
+	 * a register for the lifetime of the procedure, if enabled by the
+	 * <code>mem2reg</code> optimization. Global variables (accessible from
+	 * other procedures) and arrays and records (passed by reference) remain
+	 * in memory, as do variables exceeding {@link #MaxRegVariables}.
+	 * @return <code>true</code> if <code>sym</code> has been assigned a register.
+	 */
+	protected boolean promote(Symbol sym) {
+		Type t = sym.getType();
+		if (!options.isEnabled("mem2reg") || sym.isGlobal() || sym.isReference()
+				|| !(t instanceof IntType || t instanceof BoolType) || regVariables >= MaxRegVariables)
+			return false;
+		short reg = backend.allocReg();
+		if (reg < 0)
+			return false;
+		sym.setRegister(reg);
+		regVariables++;
+		stats.add("mem2reg.vars", 1);
+		return true;
+	}
+
 	@Override
 	public void allocVariable(Symbol sym) throws YAPLException {
 		Type t = sym.getType();
 		int bytes = t.isReference() ? sizeAsReference(t) : sizeOf(t);
+		if (promote(sym))
+			return;
 		if (sym.isGlobal()) {
 			sym.setOffset(backend.allocStaticData(bytes, sym.getName()));
+			if (t.isReference())
+				backend.addGlobalRoot(sym.getOffset());
 		} else {
 			sym.setOffset(backend.allocStack(bytes, sym.getName()));
+			if (t.isReference() && options.isEnabled("gc")) {
+				// the collector follows references stored into heap objects
+				short reg = backend.allocReg();
+				backend.loadConst(reg, 0);
+				backend.storeWord(reg, sym.getOffset(), false);
+				backend.freeReg(reg);
+			}
 		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * Fields holding references are placed first, so that a garbage collector
+	 * finds them by their number (see {@link #allocRecord(RecordType)}).
+	 * Packed boolean fields (see {@link #isPacked(Symbol)}) are placed last,
+	 * one per byte, so that the other fields remain word-aligned.
+	 */
 	@Override
 	public void setFieldOffsets(RecordType record) {
 		int offset = 0;
 		for (Symbol field : record) {
-			field.setOffset(offset);
-			offset += sizeAsReference(field.getType());
+			if (field.getType().isReference()) {
+				field.setOffset(offset);
+				offset += fieldSize(field);
+			}
+		}
+		for (Symbol field : record) {
+			if (!field.getType().isReference() && !isPacked(field)) {
+				field.setOffset(offset);
+				offset += fieldSize(field);
+			}
+		}
+		for (Symbol field : record) {
+			if (isPacked(field)) {
+				field.setOffset(offset);
+				offset += fieldSize(field);
+				stats.add("pack.fields", 1);
+			}
 		}
 	}
 
+	/** Return the number of bytes holding references at the start of a record. */
+	protected int referenceBytes(RecordType record) {
+		int bytes = 0;
+		for (Symbol field : record) {
+			if (field.getType().isReference())
+				bytes += sizeAsReference(field.getType());
+		}
+		return bytes;
+	}
+
+	/** Return the element type of the innermost dimension of <code>type</code>. */
+	protected static Type baseType(Type type) {
+		while (type instanceof ArrayType)
+			type = ((ArrayType) type).base;
+		return type;
+	}
+
 	@Override
 	public void setParamOffset(Symbol sym, int pos) {
 		sym.setOffset(backend.paramOffset(pos));
 	}
 
+	/** Return the number of dimensions of <code>type</code>, 0 if it is not an array type. */
+	protected static int dimensions(Type type) {
+		int n = 0;
+		for (; type instanceof ArrayType; type = ((ArrayType) type).base)
+			n++;
+		return n;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * With the <code>dense</code> option, a multi-dimensional array is
+	 * indexed by its linear element index, see {@link Attrib#ArrayElement}.
+	 * With the <code>bits</code> option, an element of a boolean array is
+	 * a single bit, see {@link Attrib#BitAddress}.
+	 */
 	@Override
 	public void arrayOffset(Attrib arr, Attrib index) throws YAPLException {
 		if (!(arr.getType() instanceof ArrayType)) {
 			throw new YAPLException(YAPLException.Internal);
 		}
-		byte reg = loadValue(arr);
-		byte idx = loadValue(index);
+		Type base = ((ArrayType) arr.getType()).base;
+		if (arr.getKind() == Attrib.ArrayElement) {
+			Attrib linear = arr.getRightOperand();
+			int level = arr.getOffset();
+			backend.arrayIndex(linear.getRegister(), arr.getRegister(), level, useValue(index));
+			freeReg(index);
+			arr.setOffset(++level);
+			arr.setType(base);
+			if (!(base instanceof ArrayType)) {
+				/* the base address is read by each arrayIndex(), so keep it unmodified */
+				backend.arrayOffset(linear.getRegister(), arr.getRegister(), linear.getRegister(), level);
+				backend.freeReg(arr.getRegister());
+				arr.setRegister(linear.getRegister());
+				arr.setRightOperand(null);
+				arr.setKind(Attrib.RegAddress);
+			}
+			return;
+		}
+		short reg = loadValue(arr);
+		short idx = loadValue(index);
+		arr.setType(base);
+		if (base instanceof BoolType && options.isEnabled("bits")) {
+			Attrib bit = new yapl.impl.Attrib(Attrib.RegValue, new IntType());
+			bit.setRegister(backend.allocReg());
+			backend.bitArrayOffset(reg, bit.getRegister(), reg, idx);
+			freeReg(index);
+			arr.setRightOperand(bit);
+			arr.setKind(Attrib.BitAddress);
+			return;
+		}
+		if (base instanceof ArrayType && options.isEnabled("dense")) {
+			Attrib linear = new yapl.impl.Attrib(Attrib.RegValue, new IntType());
+			linear.setRegister(idx);
+			arr.setRightOperand(linear);
+			arr.setOffset(1);
+			arr.setKind(Attrib.ArrayElement);
+			return;
+		}
 		backend.arrayOffset(reg, reg, idx);
 		freeReg(index);
-		arr.setType(((ArrayType) arr.getType()).base);
 		arr.setKind(Attrib.RegAddress);
 	}
 
@@ -193,24 +544,91 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 	public void recordOffset(Attrib record, Symbol field) throws YAPLException {
 		if (!(record.getType() instanceof RecordType))
 			throw new YAPLException(YAPLException.Internal);
-		byte reg = loadValue(record);
+		short reg = loadValue(record);
 		backend.addConst(reg, reg, field.getOffset());
 		record.setType(field.getType());
-		record.setKind(Attrib.RegAddress);
+		record.setKind(isPacked(field) ? Attrib.ByteAddress : Attrib.RegAddress);
 	}
 
 	@Override
 	public void assign(Attrib lvalue, Attrib expr) throws YAPLException {
-		byte lreg = loadAddress(lvalue);
-		byte reg = loadValue(expr);
-		backend.storeWordReg(reg, lreg);
+		if (lvalue.getKind() == Attrib.RegVariable) {
+			if (expr.getKind() == Attrib.Constant && !hasJumps(expr))
+				backend.loadConst(lvalue.getRegister(), constValue(expr));
+			else
+				backend.move(lvalue.getRegister(), useValue(expr));
+			freeReg(expr);
+			return;
+		}
+		if (lvalue.getKind() == Attrib.BitAddress) {
+			backend.storeBitReg(loadValue(expr), lvalue.getRegister(), lvalue.getRightOperand().getRegister());
+			freeReg(expr);
+			freeReg(lvalue);
+			return;
+		}
+		short lreg = loadAddress(lvalue);
+		short reg = loadValue(expr);
+		if (lvalue.getKind() == Attrib.ByteAddress)
+			backend.storeByteReg(reg, lreg);
+		else
+			backend.storeWordReg(reg, lreg);
 		freeReg(expr);
 		freeReg(lvalue);
 	}
 
+	/**
+	 * Return <code>true</code> if constant folding is enabled and all
+	 * given operands are compile-time constants.
+	 */
+	protected boolean canFold(Attrib... operands) {
+		if (!options.isEnabled("constfold"))
+			return false;
+		for (Attrib a : operands) {
+			if (a.getKind() != Attrib.Constant || hasJumps(a))
+				return false;
+		}
+		return true;
+	}
+
+	/** Return the value of a constant integer operand. */
+	protected static int intValue(Attrib attr) {
+		return ((IntType) attr.getType()).value;
+	}
+
+	/** Return the value of a constant boolean operand. */
+	protected static boolean boolValue(Attrib attr) {
+		return ((BoolType) attr.getType()).value;
+	}
+
+	/**
+	 * Turn <code>x</code> into the constant result of a folded operation.
+	 * A new type object is used, because <code>x</code> may share its type
+	 * with a <code>Const</code> symbol.
+	 */
+	protected Attrib setConstant(Attrib x, Type value) {
+		x.setKind(Attrib.Constant);
+		x.setType(value);
+		x.setConstant(true);
+		stats.add("constfold.ops", 1);
+		return x;
+	}
+
 	@Override
 	public Attrib op1(Token op, Attrib x) throws YAPLException {
-		byte xReg = loadValue(x);
+		if (canFold(x) && x.getType() instanceof IntType) {
+			switch (op.getKind()) {
+				case PLUS:
+					return x;
+				case MINUS:
+					/* negating the minimal integer traps at run time */
+					if (intValue(x) != Integer.MIN_VALUE)
+						return setConstant(x, new IntType(-intValue(x)));
+					break;
+				default:
+					throw new YAPLException(YAPLException.IllegalOp1Type, op);
+			}
+		}
+		short xReg = loadValue(x);
 		if (x.getType() instanceof IntType) {
 			switch (op.getKind()) {
 				case PLUS:
@@ -228,10 +646,196 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 		return x;
 	}
 
+	/**
+	 * Evaluate a binary operation on constant operands at compile time.
+	 * Additions and subtractions that overflow (trapping on MIPS) and
+	 * divisions and modulo operations by zero are not folded, so that they
+	 * behave at run time exactly as without constant folding.
+	 * @return <code>false</code> if the operation must be evaluated at run time.
+	 */
+	protected boolean foldOp2(Attrib x, Token op, Attrib y) throws YAPLException {
+		if (x.getType() instanceof IntType && y.getType() instanceof IntType) {
+			int a = intValue(x), b = intValue(y);
+			switch (op.getKind()) {
+				case PLUS:
+					if (((a + b) ^ a) < 0 && ((a + b) ^ b) < 0)
+						return false;
+					setConstant(x, new IntType(a + b));
+					break;
+				case MINUS:
+					if (((a - b) ^ a) < 0 && (a ^ b) < 0)
+						return false;
+					setConstant(x, new IntType(a - b));
+					break;
+				case MULT:
+					setConstant(x, new IntType(a * b));
+					break;
+				case DIV:
+					if (b == 0)
+						return false;
+					setConstant(x, new IntType(a / b));
+					break;
+				case MOD:
+					if (b == 0)
+						return false;
+					setConstant(x, new IntType(a % b));
+					break;
+				default:
+					throw new YAPLException(YAPLException.IllegalOp2Type, op);
+			}
+		} else if (x.getType() instanceof BoolType && y.getType() instanceof BoolType) {
+			switch (op.getKind()) {
+				case AND:
+					setConstant(x, new BoolType(boolValue(x) && boolValue(y)));
+					break;
+				case OR:
+					setConstant(x, new BoolType(boolValue(x) || boolValue(y)));
+					break;
+				default:
+					throw new YAPLException(YAPLException.IllegalOp2Type, op);
+			}
+		} else {
+			throw new YAPLException(YAPLException.IllegalOp2Type, op);
+		}
+		return true;
+	}
+
+	/**
+	 * Generate code for an integer operation with a constant operand by
+	 * cheaper instruction sequences (addition of immediate values, shifts,
+	 * multiplication by magic numbers) if strength reduction is enabled.
+	 * The constant may be the first operand of commutative operations.
+	 * @return <code>false</code> if no cheaper sequence applies.
+	 */
+	protected boolean reduceOp2(Attrib x, Token op, Attrib y) throws YAPLException {
+		if (!options.isEnabled("strength")
+				|| !(x.getType() instanceof IntType && y.getType() instanceof IntType))
+			return false;
+		boolean commutative = op.getKind() == PLUS || op.getKind() == MULT;
+		Attrib c = y, z = x;
+		if (commutative && x.getKind() == Attrib.Constant && y.getKind() != Attrib.Constant) {
+			c = x;
+			z = y;
+		}
+		if (c.getKind() != Attrib.Constant)
+			return false;
+		int value = intValue(c);
+		int kind = op.getKind();
+		if (kind == MINUS && value != Integer.MIN_VALUE) {
+			kind = PLUS;
+			value = -value;
+		}
+		/* addi takes a 16 bit signed immediate value */
+		if (kind == MINUS || (kind == PLUS && (value < Short.MIN_VALUE || value > Short.MAX_VALUE)))
+			return false;
+		short reg = loadValue(z);
+		switch (kind) {
+			case PLUS:
+				backend.addConst(reg, reg, value);
+				break;
+			case MULT:
+				backend.mulConst(reg, reg, value);
+				break;
+			case DIV:
+				backend.divConst(reg, reg, value);
+				break;
+			case MOD:
+				backend.modConst(reg, reg, value);
+				break;
+			default:
+				throw new YAPLException(YAPLException.IllegalOp2Type, op);
+		}
+		if (z != x) {
+			x.setKind(Attrib.RegValue);
+			x.setRegister(reg);
+			z.setKind(Attrib.Invalid);
+		}
+		x.setType(new IntType());
+		x.setConstant(false);
+		stats.add("strength.ops", 1);
+		return true;
+	}
+
+	/**
+	 * Generate code jumping to <code>label</code> if the boolean operand
+	 * <code>x</code> (ignoring its pending jumps) equals <code>value</code>.
+	 * The register occupied by <code>x</code> is released.
+	 */
+	protected void branchOn(Attrib x, boolean value, String label) throws YAPLException {
+		if (x.getKind() == Attrib.Jump)
+			return;
+		if (x.getKind() == Attrib.Constant) {
+			if (boolValue(x) == value)
+				backend.jump(label);
+			return;
+		}
+		if (x.getKind() == Attrib.Compare) {
+			int relation = value ? x.getRelation() : negate(x.getRelation());
+			Attrib y = x.getRightOperand();
+			if (y.getKind() == Attrib.Constant)
+				backend.branchIfCompareConst(relation, x.getRegister(), constValue(y), label);
+			else
+				backend.branchIfCompare(relation, x.getRegister(), y.getRegister(), label);
+			freeReg(x);
+			return;
+		}
+		short reg = useValue(x);
+		backend.branchIf(reg, value, label);
+		freeReg(x);
+	}
+
+	@Override
+	public void condAnd(Attrib x) throws YAPLException {
+		if (!(x.getType() instanceof BoolType))
+			return;		// type error reported by op2
+		String label = newLabel();
+		branchOn(x, false, label);
+		x.getFalseLabels().add(label);
+		assignLabels(x.getTrueLabels());
+		x.setKind(Attrib.Jump);
+	}
+
+	@Override
+	public void condOr(Attrib x) throws YAPLException {
+		if (!(x.getType() instanceof BoolType))
+			return;
+		String label = newLabel();
+		branchOn(x, true, label);
+		x.getTrueLabels().add(label);
+		assignLabels(x.getFalseLabels());
+		x.setKind(Attrib.Jump);
+	}
+
+	/** Make <code>dest</code> represent the operand <code>src</code>, except for its pending jumps. */
+	protected static void copyOperand(Attrib dest, Attrib src) {
+		dest.setKind(src.getKind());
+		dest.setType(src.getType());
+		dest.setConstant(src.isConstant());
+		dest.setReadonly(src.isReadonly());
+		dest.setGlobal(src.isGlobal());
+		dest.setOffset(src.getOffset());
+		dest.setRegister(src.getRegister());
+		dest.setRelation(src.getRelation());
+		dest.setRightOperand(src.getRightOperand());
+	}
+
 	@Override
 	public Attrib op2(Attrib x, Token op, Attrib y) throws YAPLException {
-		byte xReg = loadValue(x);
-		byte yReg = loadValue(y);
+		if (x.getKind() == Attrib.Jump) {
+			/* short-circuit evaluation, see condAnd() and condOr() */
+			if (!(y.getType() instanceof BoolType))
+				throw new YAPLException(YAPLException.IllegalOp2Type, op);
+			copyOperand(x, y);
+			x.getFalseLabels().addAll(y.getFalseLabels());
+			x.getTrueLabels().addAll(y.getTrueLabels());
+			return x;
+		}
+		if (canFold(x, y) && foldOp2(x, op, y))
+			return x;
+		if (reduceOp2(x, op, y))
+			return x;
+		short xReg = loadValue(x);
+		short yReg = useValue(y);
 		if (x.getType() instanceof IntType && y.getType() instanceof IntType) {
 			switch (op.getKind()) {
 				case PLUS:
@@ -271,13 +875,111 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 		return x;
 	}
 
+	/** Return the {@link BackendAsmRM} relation of a relational or equality operator. */
+	protected static int relation(Token op) throws YAPLException {
+		switch (op.getKind()) {
+			case LESS:
+				return BackendAsmRM.Less;
+			case LESS_EQUAL:
+				return BackendAsmRM.LessOrEqual;
+			case GREATER:
+				return BackendAsmRM.Greater;
+			case GREATER_EQUAL:
+				return BackendAsmRM.GreaterOrEqual;
+			case EQUAL:
+				return BackendAsmRM.Equal;
+			case NOT_EQUAL:
+				return BackendAsmRM.NotEqual;
+			default:
+				throw new YAPLException(YAPLException.IllegalRelOpType, op);
+		}
+	}
+
+	/** Return the relation <code>r'</code> such that <code>(x r y) == !(x r' y)</code>. */
+	protected static int negate(int relation) {
+		switch (relation) {
+			case BackendAsmRM.Less:
+				return BackendAsmRM.GreaterOrEqual;
+			case BackendAsmRM.LessOrEqual:
+				return BackendAsmRM.Greater;
+			case BackendAsmRM.Greater:
+				return BackendAsmRM.LessOrEqual;
+			case BackendAsmRM.GreaterOrEqual:
+				return BackendAsmRM.Less;
+			case BackendAsmRM.Equal:
+				return BackendAsmRM.NotEqual;
+			default:
+				return BackendAsmRM.Equal;
+		}
+	}
+
+	/** Return the relation <code>r'</code> such that <code>(x r y) == (y r' x)</code>. */
+	protected static int mirror(int relation) {
+		switch (relation) {
+			case BackendAsmRM.Less:
+				return BackendAsmRM.Greater;
+			case BackendAsmRM.LessOrEqual:
+				return BackendAsmRM.GreaterOrEqual;
+			case BackendAsmRM.Greater:
+				return BackendAsmRM.Less;
+			case BackendAsmRM.GreaterOrEqual:
+				return BackendAsmRM.LessOrEqual;
+			default:
+				return relation;
+		}
+	}
+
+	/**
+	 * Turn <code>x</code> into a {@link Attrib#Compare} operand representing
+	 * <code>x relation y</code>, to be evaluated by a conditional branch
+	 * (see {@link #branchOn(Attrib, boolean, String)}) or by {@link #loadValue(Attrib)}.
+	 * A constant operand becomes the right operand.
+	 */
+	protected Attrib compare(Attrib x, int relation, Attrib y) throws YAPLException {
+		if (x.getKind() == Attrib.Constant && y.getKind() != Attrib.Constant) {
+			Attrib c = new yapl.impl.Attrib(Attrib.Constant, x.getType());
+			x.setRegister(loadValue(y));
+			y.setKind(Attrib.Invalid);
+			y = c;
+			relation = mirror(relation);
+		} else {
+			loadValue(x);
+			if (y.getKind() != Attrib.Constant)
+				useValue(y);
+		}
+		x.setKind(Attrib.Compare);
+		x.setRelation(relation);
+		x.setRightOperand(y);
+		x.setType(new BoolType());
+		x.setConstant(false);
+		stats.add("cmpbranch.compares", 1);
+		return x;
+	}
+
 	@Override
 	public Attrib relOp(Attrib x, Token op, Attrib y) throws YAPLException {
 		if (!(x.getType() instanceof IntType && y.getType() instanceof IntType)) {
 			throw new YAPLException(YAPLException.IllegalRelOpType, op);
 		}
-		byte xReg = loadValue(x);
-		byte yReg = loadValue(y);
+		if (canFold(x, y)) {
+			int a = intValue(x), b = intValue(y);
+			switch (op.getKind()) {
+				case LESS:
+					return setConstant(x, new BoolType(a < b));
+				case LESS_EQUAL:
+					return setConstant(x, new BoolType(a <= b));
+				case GREATER:
+					return setConstant(x, new BoolType(a > b));
+				case GREATER_EQUAL:
+					return setConstant(x, new BoolType(a >= b));
+				default:
+					throw new YAPLException(YAPLException.IllegalRelOpType, op);
+			}
+		}
+		if (options.isEnabled("cmpbranch"))
+			return compare(x, relation(op), y);
+		short xReg = loadValue(x);
+		short yReg = useValue(y);
 		switch (op.getKind()) {
 			case LESS:
 				backend.isLess(xReg, xReg, yReg);
@@ -302,11 +1004,29 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 
 	@Override
 	public Attrib equalOp(Attrib x, Token op, Attrib y) throws YAPLException {
-		byte xReg = loadValue(x);
-		byte yReg = loadValue(y);
+		if (canFold(x, y)) {
+			boolean equal;
+			if (x.getType() instanceof IntType && y.getType() instanceof IntType)
+				equal = intValue(x) == intValue(y);
+			else if (x.getType() instanceof BoolType && y.getType() instanceof BoolType)
+				equal = boolValue(x) == boolValue(y);
+			else
+				throw new YAPLException(YAPLException.IllegalEqualOpType, op);
+			return setConstant(x, new BoolType((op.getKind() == EQUAL) == equal));
+		}
+		if (options.isEnabled("cmpbranch")) {
+			if (!((x.getType() instanceof IntType && y.getType() instanceof IntType)
+					|| (x.getType() instanceof BoolType && y.getType() instanceof BoolType)))
+				throw new YAPLException(YAPLException.IllegalEqualOpType, op);
+			return compare(x, relation(op), y);
+		}
+		short xReg = loadValue(x);
+		short yReg = useValue(y);
 		if ((x.getType() instanceof IntType && y.getType() instanceof IntType)
 				|| (x.getType() instanceof BoolType && y.getType() instanceof BoolType)) {
 			backend.isEqual(xReg, xReg, yReg);
+			if (op.getKind() == NOT_EQUAL)
+				backend.not(xReg, xReg);
 		} else {
 			throw new YAPLException(YAPLException.IllegalEqualOpType, op);
 		}
@@ -318,6 +1038,7 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 
 	@Override
 	public void enterProc(Symbol proc) throws YAPLException {
+		regVariables = 0;
 		if (proc == null)
 			backend.enterMain();
 		else {
@@ -325,6 +1046,18 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 			for (Symbol p = proc.getNextSymbol(); p != null; p = p.getNextSymbol())
 				nParams++;
 			backend.enterProc(proc.getName(), nParams);
+			int index = 0;
+			for (Symbol p = proc.getNextSymbol(); p != null; p = p.getNextSymbol()) {
+				short argReg = backend.paramRegister(index++);
+				if (promote(p)) {
+					if (argReg >= 0)
+						backend.move(p.getRegister(), argReg);
+					else
+						backend.loadWord(p.getRegister(), p.getOffset(), false);
+				} else if (argReg >= 0) {
+					backend.storeWord(argReg, p.getOffset(), false);
+				}
+			}
 		}
 	}
 
@@ -339,9 +1072,9 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 	@Override
 	public void returnFromProc(Symbol proc, Attrib returnVal)
 			throws YAPLException {
-		byte reg = (byte) -1;
+		short reg = (short) -1;
 		if (returnVal != null)
-			reg = loadValue(returnVal);
+			reg = useValue(returnVal);
 		backend.returnFromProc(proc == null ? "main" : proc.getName() + "_ret", reg);
 		if (returnVal != null)
 			freeReg(returnVal);
@@ -354,13 +1087,13 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 		if (narg > 0) {
 			narg = 0;
 			for (Attrib a : args) {
-				byte reg = loadValue(a);
+				short reg = useValue(a);
 				backend.passArg(narg++, reg);
 				freeReg(a);
 			}
 		}
 		Attrib retVal = null;
-		byte reg = (byte) -1;
+		short reg = (short) -1;
 		if (proc.getType() != null) {
 			retVal = new yapl.impl.Attrib(Attrib.RegValue, proc.getType());
 			reg = backend.allocReg();
@@ -384,9 +1117,15 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 	@Override
 	public void branchIfFalse(Attrib condition, String label)
 			throws YAPLException {
-		byte reg = loadValue(condition);
-		backend.branchIf(reg, false, label);
-		freeReg(condition);
+		branchOn(condition, false, label);
+		assignLabels(condition.getTrueLabels());
+		if (!condition.getFalseLabels().isEmpty()) {
+			List<String> aliases = labelAliases.get(label);
+			if (aliases == null)
+				labelAliases.put(label, aliases = new ArrayList<String>());
+			aliases.addAll(condition.getFalseLabels());
+			condition.getFalseLabels().clear();
+		}
 	}
 
 	@Override
@@ -394,17 +1133,28 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 		backend.jump(label);
 	}
 
+	@Override
+	public void markLoop(String startLabel, String endLabel) {
+		backend.markLoop(startLabel, endLabel);
+	}
+
 	@Override
 	public void storeArrayDim(int dim, Attrib length) throws YAPLException {
-		byte reg = loadValue(length);
+		short reg = loadValue(length);
 		backend.storeArrayDim(dim, reg);
 		freeReg(length);
 	}
 
 	@Override
 	public Attrib allocArray(ArrayType arrayType) throws YAPLException {
-		byte reg = backend.allocReg();
-		backend.allocArray(reg);
+		short reg = backend.allocReg();
+		if (dimensions(arrayType) > 1 && options.isEnabled("dense")) {
+			backend.allocDenseArray(reg, baseType(arrayType).isReference());
+			stats.add("dense.arrays", 1);
+		} else if (isBitArray(arrayType))
+			backend.allocBitArray(reg);
+		else
+			backend.allocArray(reg, baseType(arrayType).isReference());
 		Attrib attrib = new yapl.impl.Attrib(Attrib.RegValue, arrayType);
 		attrib.setRegister(reg);
 		return attrib;
@@ -423,15 +1173,15 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 		}
 
 		// Allocate register for array pointer
-		byte arrayReg = backend.allocReg();
+		short arrayReg = backend.allocReg();
 
 		// Calculate total size and allocate memory
-		byte sizeReg = backend.allocReg();
+		short sizeReg = backend.allocReg();
 		backend.loadConst(sizeReg, 4); // Start with 4 bytes for length
 
 		for (int i = dimensions.size() - 1; i >= 0; i--) {
 			Attrib dim = (Attrib) dimensions.get(i);
-			byte dimReg = loadValue(dim);
+			short dimReg = loadValue(dim);
 
 			// Multiply current size by dimension
 			backend.mul(sizeReg, sizeReg, dimReg);
@@ -444,7 +1194,7 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 		}
 
 		// Allocate memory
-		backend.allocHeap(arrayReg, sizeReg);
+		backend.allocHeap(arrayReg, sizeReg, 0);
 		backend.freeReg(sizeReg);
 
 		// Initialize array structure
@@ -452,7 +1202,7 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 
 		for (int i = 0; i < dimensions.size(); i++) {
 			Attrib dim = (Attrib) dimensions.get(i);
-			byte dimReg = loadValue(dim);
+			short dimReg = loadValue(dim);
 
 			// Store dimension length
 			backend.storeWord(dimReg, offset, false);
@@ -473,25 +1223,144 @@ public class CodeGenAsmRM implements yapl.interfaces.CodeGen, YAPLConstants {
 
 	@Override
 	public Attrib allocRecord(RecordType recordType) throws YAPLException {
-		byte reg = backend.allocReg();
-		backend.allocHeap(reg, sizeOf(recordType));
+		short reg = backend.allocReg();
+		backend.allocHeap(reg, sizeOf(recordType), referenceBytes(recordType));
 		Attrib attrib = new yapl.impl.Attrib(Attrib.RegValue, recordType);
 		attrib.setRegister(reg);
 		return attrib;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * If the optimization <code>escape</code> is enabled, the fields of records
+	 * with at most {@link #MaxScalarFields} fields are replaced by scalar
+	 * variables (part <code>escape.scalar</code>), which may be kept in
+	 * registers (see {@link #promote(Symbol)}). Other records and arrays of at
+	 * most {@link #MaxFrameWords} words are allocated in the stack frame;
+	 * the fields of such records are accessed at fixed frame offsets, so only
+	 * array variables hold the address of their array.
+	 */
+	@Override
+	public boolean allocLocalObject(Symbol sym, int length) throws YAPLException {
+		Type t = sym.getType();
+		if (!options.isEnabled("escape") || sym.isGlobal())
+			return false;
+		if (t instanceof RecordType && ((RecordType) t).numFields() <= MaxScalarFields
+				&& options.isEnabled("escape.scalar")) {
+			Map<Symbol, Symbol> fields = new LinkedHashMap<Symbol, Symbol>();
+			for (Symbol field : (RecordType) t) {
+				Symbol scalar = new yapl.impl.Symbol(Symbol.Variable, sym.getName() + "." + field.getName());
+				scalar.setType(field.getType());
+				allocVariable(scalar);
+				fields.put(field, scalar);
+			}
+			scalarFields.put(sym, fields);
+			stats.add("escape.scalar", 1);
+			return true;
+		}
+		int words = isBitArray(t) ? (length + 31) / 32 : length;
+		int bytes = (t instanceof RecordType) ? sizeOf(t) : (words + 1) * backend.wordSize();
+		if (bytes > MaxFrameWords * backend.wordSize())
+			return false;
+		if (t instanceof ArrayType)
+			allocVariable(sym);
+		int offset = backend.allocStack(bytes, sym.getName() + " (object)");
+		frameObjects.put(sym, new int[] { offset, bytes / backend.wordSize() });
+		stats.add("escape.frame", 1);
+		return true;
+	}
+
+	@Override
+	public void initLocalObject(Symbol sym, Attrib length) throws YAPLException {
+		Map<Symbol, Symbol> fields = scalarFields.get(sym);
+		if (fields != null) {
+			for (Symbol scalar : fields.values()) {
+				Type zero = (scalar.getType() instanceof BoolType) ? new BoolType(false) : new IntType(0);
+				assign(new yapl.impl.Attrib(scalar), new yapl.impl.Attrib(Attrib.Constant, zero));
+			}
+			return;
+		}
+		int[] object = frameObjects.get(sym);
+		if (length != null && !fitsFrame(sym, object, length)) {
+			storeArrayDim(0, length);
+			assign(new yapl.impl.Attrib(sym), allocArray((ArrayType) sym.getType()));
+			return;
+		}
+		int start = 0;
+		if (length != null) {
+			// array length, followed by the elements
+			short len = loadValue(length);
+			backend.storeWord(len, object[0], false);
+			freeReg(length);
+			start = 1;
+		}
+		short reg = backend.allocReg();
+		backend.loadConst(reg, 0);
+		for (int i = start; i < object[1]; i++)
+			backend.storeWord(reg, object[0] + i * backend.wordSize(), false);
+		if (length != null) {
+			backend.loadAddress(reg, object[0], false);
+			backend.storeWord(reg, sym.getOffset(), false);
+		}
+		backend.freeReg(reg);
+	}
+
+	/** Return <code>true</code> if an array of the given length fits into the frame object reserved for <code>sym</code>. */
+	protected boolean fitsFrame(Symbol sym, int[] object, Attrib length) {
+		if (length.getKind() != Attrib.Constant || hasJumps(length))
+			return false;
+		int elements = object[1] - 1;
+		if (isBitArray(sym.getType()))
+			elements *= 32;
+		return intValue(length) >= 0 && intValue(length) <= elements;
+	}
+
+	@Override
+	public Attrib localField(Symbol record, Symbol field) throws YAPLException {
+		Map<Symbol, Symbol> fields = scalarFields.get(record);
+		if (fields != null)
+			return new yapl.impl.Attrib(fields.get(field));
+		int[] object = frameObjects.get(record);
+		if (object == null)
+			return null;
+		Attrib attr = new yapl.impl.Attrib(Attrib.MemoryOperand, field.getType());
+		attr.setOffset(object[0] + field.getOffset());
+		if (isPacked(field))
+			attr.setKind(Attrib.ByteOperand);
+		return attr;
+	}
+
 	@Override
 	public Attrib arrayLength(Attrib arr) throws YAPLException {
-		byte reg = loadValue(arr);
+		short reg = loadValue(arr);
 		backend.arrayLength(reg, reg);
 		arr.setKind(Attrib.RegValue);
 		arr.setType(new IntType());
 		return arr;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * The length of a dimension of a dense array (see {@link Attrib#ArrayElement})
+	 * is read from the array header.
+	 */
 	@Override
 	public Attrib arrayLength(Attrib arr, int dimension) throws YAPLException {
-		byte reg = loadValue(arr);
+		if (arr.getKind() == Attrib.ArrayElement || (dimension > 0 && options.isEnabled("dense"))) {
+			int dim = dimension;
+			if (arr.getKind() == Attrib.ArrayElement) {
+				dim += arr.getOffset();
+				freeReg(arr.getRightOperand());
+				arr.setRightOperand(null);
+				arr.setKind(Attrib.RegValue);
+			}
+			short reg = loadValue(arr);
+			backend.arrayLength(reg, reg, dim);
+			arr.setKind(Attrib.RegValue);
+			arr.setType(new IntType());
+			return arr;
+		}
+		short reg = loadValue(arr);
 
 		// For multi-dimensional arrays, we need to traverse the array structure
 		for (int i = 0; i < dimension; i++) {
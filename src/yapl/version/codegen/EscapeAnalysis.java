@@ -0,0 +1,161 @@
+package yapl.version.codegen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import yapl.interfaces.Symbol;
+import yapl.interfaces.Symboltable;
+import yapl.lib.ArrayType;
+import yapl.lib.IntType;
+import yapl.lib.RecordType;
+import yapl.lib.Type;
+import yapl.lib.YAPLException;
+
+/**
+ * Escape analysis of the local variables of a block, performed on the tokens
+ * of the block before it is compiled.
+ * <p>
+ * A record or (one-dimensional) array created by <code>new</code> does not
+ * escape the block if it is only assigned to a local variable <em>v</em>
+ * which is used in the following forms only:
+ * </p>
+ * <pre>
+ * v := new R;  v := new T[n];     (n a number or constant)
+ * v.field      v[index]      #v
+ * </pre>
+ * <p>
+ * In particular, <em>v</em> is never passed to a procedure, returned, or
+ * assigned to another variable or field, so it is the only reference to the
+ * record or array, which is unreachable once <em>v</em> is assigned again or
+ * the block is left. Such variables may therefore hold their record or array
+ * in the stack frame (see {@link yapl.interfaces.CodeGen#allocLocalObject(Symbol, int)}).
+ * Any other use of the name in the block, including a declaration in a
+ * nested block, lets the variable escape.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class EscapeAnalysis implements YAPLConstants {
+
+	/** Uses of a variable name within the block. */
+	private static class Uses {
+		boolean escapes = false;
+		boolean fields = false;
+		boolean elements = false;
+		boolean newRecord = false;
+		List<Token> lengths = new ArrayList<Token>();
+	}
+
+	private HashMap<String, Uses> uses = new HashMap<String, Uses>();
+
+	/**
+	 * Analyze the block starting at the next token of <code>parser</code>,
+	 * i.e. its declarations followed by <code>Begin</code> and the statements
+	 * up to the matching <code>End</code>. No tokens are consumed.
+	 */
+	public static EscapeAnalysis scan(YAPL parser) {
+		EscapeAnalysis result = new EscapeAnalysis();
+		ArrayList<Token> block = new ArrayList<Token>();
+		int depth = 0;
+		for (int i = 1;; i++) {
+			Token tok = parser.getToken(i);
+			if (tok.kind == EOF)
+				break;
+			block.add(tok);
+			if (tok.kind == BEGIN)
+				depth++;
+			else if (tok.kind == END && --depth == 0)
+				break;
+		}
+		depth = 0;
+		for (int i = 0; i < block.size(); i++) {
+			Token tok = block.get(i);
+			if (tok.kind == BEGIN)
+				depth++;
+			else if (tok.kind == IDENT && depth > 0)
+				result.use(block, i);
+		}
+		return result;
+	}
+
+	/** Return the kind of the token at <code>i</code>, or EOF if beyond the block. */
+	private static int kind(List<Token> block, int i) {
+		return (i < block.size()) ? block.get(i).kind : EOF;
+	}
+
+	/** Record the use of the identifier at <code>i</code>. */
+	private void use(List<Token> block, int i) {
+		int prev = block.get(i - 1).kind;
+		if (prev == DOT)
+			return;		// field name
+		String name = block.get(i).image;
+		Uses u = uses.get(name);
+		if (u == null) {
+			u = new Uses();
+			uses.put(name, u);
+		}
+		int next = kind(block, i + 1);
+		if (next == DOT) {
+			u.fields = true;
+		} else if (next == BRACKET_LEFT || prev == SHARP) {
+			u.elements = true;
+		} else if (next == ASSIGN && kind(block, i + 2) == NEW) {
+			if (kind(block, i + 4) == SEMICOLON) {
+				u.newRecord = true;
+			} else if (kind(block, i + 4) == BRACKET_LEFT
+					&& (kind(block, i + 5) == NUMBER || kind(block, i + 5) == IDENT)
+					&& kind(block, i + 6) == BRACKET_RIGHT && kind(block, i + 7) == SEMICOLON) {
+				u.lengths.add(block.get(i + 5));
+			} else {
+				u.escapes = true;
+			}
+		} else {
+			u.escapes = true;
+		}
+	}
+
+	/**
+	 * Return <code>true</code> if the local variable <code>sym</code>, declared
+	 * in the analyzed block, only holds records or arrays created within the
+	 * block which do not escape it.
+	 */
+	public boolean isLocal(Symbol sym, Symboltable symboltable) throws YAPLException {
+		Uses u = uses.get(sym.getName());
+		Type t = sym.getType();
+		if (u == null || u.escapes || sym.isGlobal())
+			return false;
+		if (t instanceof RecordType)
+			return u.newRecord && !u.elements && u.lengths.isEmpty();
+		if (t instanceof ArrayType && !(((ArrayType) t).base instanceof ArrayType))
+			return !u.newRecord && !u.fields && arrayLength(sym, symboltable) >= 0;
+		return false;
+	}
+
+	/**
+	 * Return the maximal length of the arrays created for <code>sym</code>,
+	 * or -1 if it is not a compile-time constant. Constant names are
+	 * resolved in the scope of the declaration of <code>sym</code>, which
+	 * may differ from the scope of <code>new</code>; the actual length is
+	 * checked again by {@link yapl.interfaces.CodeGen#initLocalObject(Symbol, yapl.interfaces.Attrib)}.
+	 */
+	public int arrayLength(Symbol sym, Symboltable symboltable) throws YAPLException {
+		Uses u = uses.get(sym.getName());
+		if (u == null || u.lengths.isEmpty())
+			return -1;
+		int length = 0;
+		for (Token tok : u.lengths) {
+			int n;
+			if (tok.kind == NUMBER) {
+				n = Integer.parseInt(tok.image);
+			} else {
+				Symbol c = symboltable.lookup(tok.image);
+				if (c == null || c.getKind() != Symbol.Constant || !(c.getType() instanceof IntType))
+					return -1;
+				n = ((IntType) c.getType()).value;
+			}
+			length = Math.max(length, n);
+		}
+		return length;
+	}
+}
@@ -0,0 +1,122 @@
+package yapl.version.codegen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import yapl.lib.CompilerOptions;
+
+/**
+ * Thin client of the YAPL compile server (see {@link YaplServer}).
+ * <p>
+ * Usage: <code>java yapl.version.codegen.YaplClient [-port n] [-o out_file] yapl_source_file</code>
+ * </p>
+ * <p>
+ * Behaves like <code>java YAPL [-o out_file] yapl_source_file</code>, but lets
+ * a running compile server do the work. The assembler files of predefined
+ * procedures and the run-time library are those configured for the server.
+ * Exit code: 0 on success, 1 on I/O error, 2 on usage error.
+ * {@link #run(String[])} returns the exit code instead of calling
+ * <code>System.exit</code>, which {@link #main(String[])} only does on
+ * failure, so the client may be run inside the JVM of ANT.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class YaplClient {
+
+	/** Exit code on I/O error. */
+	public static final int IOError = 1;
+
+	/** Exit code on usage error. */
+	public static final int UsageError = 2;
+
+	public static void main(String[] args) {
+		int status = run(args);
+		if (status != 0)
+			System.exit(status);
+	}
+
+	/**
+	 * Send the compile request given by the command-line arguments <code>args</code>
+	 * to the server and write the generated assembler code to the output file
+	 * or stdout, as it is received.
+	 * @return the exit code: 0 on success, {@link #IOError} or {@link #UsageError}.
+	 */
+	public static int run(String[] args) {
+		String srcfile, outfile = null;
+		int port = YaplServer.DefaultPort;
+		boolean error = false;
+		List<String> options = new ArrayList<String>();
+		int i = 0;
+		/* parse command-line */
+		for (; i < args.length && args[i].charAt(0) == '-'; i++) {
+			if (args[i].equals("-o") && ++i < args.length)
+				outfile = args[i];
+			else if (args[i].equals("-port") && ++i < args.length) {
+				try {
+					port = Integer.parseInt(args[i]);
+				} catch (NumberFormatException e) {
+					port = -1;
+				}
+				if (port < 0 || port > 65535) {
+					error = true;
+					break;
+				}
+			}
+			else if (CompilerOptions.isOption(args[i]))
+				options.add(args[i]);
+			else {
+				error = true;
+				break;
+			}
+		}
+		if (error || i + 1 != args.length) {
+			System.err.println("Usage: java yapl.version.codegen.YaplClient [-port n] [compiler_options] [-o out_file] yapl_source_file");
+			System.err.println("If -o option is not given, output will be written to stdout.");
+			return UsageError;
+		}
+		srcfile = args[i];
+
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			out.writeInt(options.size());
+			for (String opt : options)
+				YaplServer.writeString(out, opt);
+			YaplServer.writeBytes(out, Files.readAllBytes(Paths.get(srcfile)));
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			boolean ok = in.readBoolean();
+			String progName = YaplServer.readString(in);
+			String message = YaplServer.readString(in);
+			in.readLong();	// server-side compile time, logged by the server
+
+			if (outfile != null) {
+				try (OutputStream asmOut = new BufferedOutputStream(new FileOutputStream(outfile))) {
+					YaplServer.copyBytes(in, asmOut);
+				}
+			} else {
+				YaplServer.copyBytes(in, System.out);
+				System.out.flush();
+			}
+			System.err.print(message);
+			if (ok && outfile != null)
+				System.out.println("YAPL program " + progName + " has been compiled to " + outfile);
+		} catch (IOException e) {
+			System.err.println(e);
+			return IOError;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,353 @@
+package yapl.version.codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import yapl.impl.PreludeSnapshot;
+import yapl.interfaces.CompilerError;
+import yapl.lib.CompilerMessage;
+import yapl.lib.CompilerOptions;
+import yapl.lib.CompilerStatistics;
+import yapl.lib.YAPLException;
+
+/**
+ * Reentrant entry point of the YAPL compiler.
+ * <p>
+ * Each call of {@link #compile(InputStream, PrintStream)} creates a fresh
+ * parser, symbol table, code generator and backend, so a single
+ * <code>YaplCompiler</code> instance may be used to compile any number of
+ * programs, also concurrently from several threads. Instances only hold
+ * the (immutable) locations of the predefined procedures and the run-time
+ * library, and the prelude snapshot built from them.
+ * </p>
+ * <p>
+ * The <em>prelude</em> (symbols of predefined procedures and run-time library,
+ * and the assembler code injected into every output) is built only once and
+ * saved as a {@link PreludeSnapshot} file, named by a hash of the prelude input
+ * files, in the directory given by the system property
+ * <code>yapl.prelude.dir</code> (default: <code>java.io.tmpdir</code>),
+ * which is created if necessary. Later compilations, also by other JVMs,
+ * memory-map the snapshot instead of parsing the prelude again. If the
+ * snapshot file cannot be written, the prelude is kept in memory only.
+ * The assembler code of the garbage collector is read along with the
+ * prelude, and injected only into programs compiled with <code>-fgc</code>.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class YaplCompiler {
+
+	/** Outcome of a single compilation. */
+	public static class Result {
+		private String progName;
+		private CompilerError error;
+		private CompilerStatistics stats;
+
+		Result(String progName, CompilerError error, CompilerStatistics stats) {
+			this.progName = progName;
+			this.error = error;
+			this.stats = stats;
+		}
+
+		/** Return the name of the compiled program (if known). */
+		public String getProgName() {
+			return progName;
+		}
+
+		/** Return the compiler error, or <code>null</code> on success. */
+		public CompilerError getError() {
+			return error;
+		}
+
+		/**
+		 * Return the optimization statistics, or <code>null</code> if they
+		 * have not been requested by {@link CompilerOptions}.
+		 */
+		public CompilerStatistics getStatistics() {
+			return stats;
+		}
+
+		/** Return <code>true</code> iff the program has been compiled successfully. */
+		public boolean isOK() {
+			return error == null;
+		}
+
+		/**
+		 * Print the compiler message (OK or error) in the format
+		 * specified by {@link CompilerMessage}, followed by the
+		 * optimization statistics, if requested.
+		 */
+		public void printMessage(PrintStream out) {
+			if (error == null)
+				CompilerMessage.printOK(out, progName);
+			else
+				CompilerMessage.printError(out, error, progName);
+			if (stats != null)
+				stats.print(out, progName);
+		}
+	}
+
+	private final String predefinedSrc;
+	private final String predefinedAsm;
+	private final String runtimelibSrc;
+	private final String runtimelibAsm;
+	private final String gcAsm;
+
+	/** Directory where prelude snapshots are stored. */
+	private final File preludeDir;
+
+	/**
+	 * A mapped prelude snapshot, the assembler code of the garbage collector,
+	 * and the stamps of the files they have been built from.
+	 */
+	private static class Prelude {
+		final long[] stamps;
+		final PreludeSnapshot snapshot;
+		final String gcCode;
+
+		Prelude(long[] stamps, PreludeSnapshot snapshot, String gcCode) {
+			this.stamps = stamps;
+			this.snapshot = snapshot;
+			this.gcCode = gcCode;
+		}
+	}
+
+	/** The prelude snapshot used by the last compilation. */
+	private volatile Prelude prelude;
+
+	/**
+	 * Create a compiler using the given predefined procedures and run-time library.
+	 *
+	 * @param predefinedSrc path to YAPL declarations of predefined procedures.
+	 * @param predefinedAsm path to assembler code of predefined procedures
+	 *                      (may be null or empty).
+	 * @param runtimelibSrc path to YAPL source code of the run-time library;
+	 *                      used only if <code>runtimelibAsm</code> is empty.
+	 * @param runtimelibAsm path to pre-compiled assembler code of the run-time
+	 *                      library (may be null or empty).
+	 * @param gcAsm         path to assembler code of the garbage collector;
+	 *                      required only for programs compiled with <code>-fgc</code>.
+	 */
+	public YaplCompiler(String predefinedSrc, String predefinedAsm,
+			String runtimelibSrc, String runtimelibAsm, String gcAsm) {
+		this.predefinedSrc = predefinedSrc;
+		this.predefinedAsm = predefinedAsm;
+		this.runtimelibSrc = runtimelibSrc;
+		this.runtimelibAsm = runtimelibAsm;
+		this.gcAsm = gcAsm;
+		this.preludeDir = new File(System.getProperty("yapl.prelude.dir",
+				System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * Create a compiler configured by the system properties
+	 * <code>yapl.predefined.src</code>, <code>yapl.predefined.asm</code>,
+	 * <code>yapl.runtimelib.src</code>, <code>yapl.runtimelib.asm</code>,
+	 * and <code>yapl.gc.asm</code>.
+	 */
+	public YaplCompiler() {
+		this(System.getProperty("yapl.predefined.src"),
+				System.getProperty("yapl.predefined.asm"),
+				System.getProperty("yapl.runtimelib.src"),
+				System.getProperty("yapl.runtimelib.asm"),
+				System.getProperty("yapl.gc.asm"));
+	}
+
+	/**
+	 * Compile a YAPL program.
+	 *
+	 * @param source the YAPL source code.
+	 * @param out    where to write the generated assembler code to.
+	 * @return the compilation result; compiler errors (including unexpected
+	 *         run-time exceptions, reported as internal errors) are not thrown
+	 *         but reported by the result object.
+	 * @throws IOException if the predefined procedures or the run-time library
+	 *                     cannot be read.
+	 */
+	public Result compile(InputStream source, PrintStream out) throws IOException {
+		return compile(source, out, new CompilerOptions());
+	}
+
+	/**
+	 * Compile a YAPL program using the given optimization options.
+	 *
+	 * @param source  the YAPL source code.
+	 * @param out     where to write the generated assembler code to.
+	 * @param options enabled optimizations.
+	 * @see #compile(InputStream, PrintStream)
+	 */
+	public Result compile(InputStream source, PrintStream out, CompilerOptions options) throws IOException {
+		YAPL parser = null;
+		CompilerStatistics stats = new CompilerStatistics();
+		CompilerStatistics report = options.printStats() ? stats : null;
+		try {
+			Prelude prelude = prelude();
+			String gcCode = null;
+			if (options.isEnabled("gc")) {
+				if (prelude.gcCode == null)
+					throw new IOException("option -fgc requires system property yapl.gc.asm");
+				gcCode = prelude.gcCode;
+			}
+			yapl.impl.BackendMIPS backend = new yapl.impl.BackendMIPS(out,
+					new String[] { prelude.snapshot.getAsmCode(), gcCode }, options, stats);
+			parser = new YAPL(source);
+			parser.codegen = new CodeGenAsmRM(backend, options, stats);
+			prelude.snapshot.restore((yapl.impl.Symboltable) parser.symboltable);
+			parser.Program();
+			backend.finish();
+			return new Result(parser.progName, null, report);
+		} catch (TokenMgrError e) {
+			return new Result(progName(parser), e, report);
+		} catch (ParseException e) {
+			return new Result(progName(parser), e, report);
+		} catch (YAPLException e) {
+			if (parser != null)
+				e.setLastToken((yapl.interfaces.Token) parser.token);
+			return new Result(progName(parser), e, report);
+		} catch (RuntimeException e) {
+			/* do not let a compiler bug take down other compilations */
+			YAPLException internal = new YAPLException(CompilerError.Internal);
+			internal.initCause(e);
+			if (parser != null)
+				internal.setLastToken((yapl.interfaces.Token) parser.token);
+			return new Result(progName(parser), internal, report);
+		}
+	}
+
+	/** Return <code>true</code> if the run-time library has to be compiled from source. */
+	private boolean bootstrap() {
+		return runtimelibAsm == null || runtimelibAsm.length() == 0;
+	}
+
+	/** Return the paths of the files the prelude is built from. */
+	private String[] preludeInputs() {
+		return new String[] { predefinedSrc, predefinedAsm,
+				bootstrap() ? runtimelibSrc : runtimelibAsm };
+	}
+
+	/**
+	 * Return the prelude snapshot for the current content of the prelude input
+	 * files, building and saving it first if necessary, together with the
+	 * current assembler code of the garbage collector.
+	 */
+	private Prelude prelude() throws IOException, YAPLException, ParseException {
+		String[] inputs = Arrays.copyOf(preludeInputs(), 4);
+		inputs[3] = gcAsm;
+		long[] stamps = new long[2 * inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			if (inputs[i] != null && inputs[i].length() > 0) {
+				File f = new File(inputs[i]);
+				stamps[2 * i] = f.lastModified();
+				stamps[2 * i + 1] = f.length();
+			}
+		}
+		Prelude p = prelude;
+		if (p != null && Arrays.equals(p.stamps, stamps))
+			return p;
+		synchronized (this) {
+			p = prelude;
+			if (p != null && Arrays.equals(p.stamps, stamps))
+				return p;
+			File file = new File(preludeDir, "yapl-prelude-" + preludeKey(preludeInputs()) + ".snap");
+			p = new Prelude(stamps, file.exists() ? PreludeSnapshot.map(file) : buildPrelude(file),
+					yapl.impl.BackendMIPS.readAsmFile(gcAsm));
+			prelude = p;
+			return p;
+		}
+	}
+
+	/**
+	 * Return a hash of the content of the prelude input files, the
+	 * snapshot format version, and the modification time of the compiler classes.
+	 */
+	private String preludeKey(String[] inputs) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		md.update((byte) PreludeSnapshot.FormatVersion);
+		md.update((byte) (bootstrap() ? 1 : 0));
+		/* the prelude also depends on the compiler itself (parameter offsets, generated code) */
+		for (Class<?> c : new Class<?>[] { YAPL.class, CodeGenAsmRM.class,
+				yapl.impl.BackendMIPS.class, yapl.impl.MipsRegAlloc.class, yapl.impl.MipsPrinter.class }) {
+			URL url = c.getResource(c.getSimpleName() + ".class");
+			long stamp = (url == null) ? 0 : url.openConnection().getLastModified();
+			md.update(ByteBuffer.allocate(8).putLong(stamp).array());
+		}
+		for (String path : inputs) {
+			byte[] content = (path == null || path.length() == 0)
+					? new byte[0] : Files.readAllBytes(Paths.get(path));
+			md.update(ByteBuffer.allocate(4).putInt(content.length).array());
+			md.update(content);
+		}
+		StringBuilder key = new StringBuilder();
+		byte[] digest = md.digest();
+		for (int i = 0; i < 16; i++)
+			key.append(String.format("%02x", digest[i]));
+		return key.toString();
+	}
+
+	/**
+	 * Parse the predefined procedures, compile the run-time library if
+	 * necessary, and save the result as prelude snapshot <code>file</code>.
+	 * As the snapshot file is only a cache, an in-memory snapshot is
+	 * returned if the file cannot be written.
+	 * When compiled from source, the run-time library uses labels with
+	 * prefix "LR", like the pre-compiled runtimelib.asm, and allocates
+	 * heap memory inline.
+	 */
+	private PreludeSnapshot buildPrelude(File file) throws IOException, YAPLException, ParseException {
+		ByteArrayOutputStream runtimelib = new ByteArrayOutputStream();
+		/* library procedures always provide the entry point for register arguments */
+		yapl.impl.BackendMIPS backend = new yapl.impl.BackendMIPS(new PrintStream(runtimelib), new String[0],
+				new CompilerOptions("-fregargs", "-fheap"), new CompilerStatistics());
+		String asmCode = readAsm(predefinedAsm);
+		YAPL parser;
+		try (InputStream predefined = new FileInputStream(predefinedSrc)) {
+			parser = new YAPL(predefined);
+			parser.codegen = new CodeGenAsmRM(backend, "LR");
+			parser.PredefDecl();
+		}
+		if (bootstrap()) {
+			try (InputStream src = new FileInputStream(runtimelibSrc)) {
+				parser.bootstrap = true;
+				parser.ReInit(src);
+				parser.Procedure();
+			}
+			backend.finishLibrary();
+			asmCode += runtimelib.toString();
+		} else {
+			asmCode += readAsm(runtimelibAsm);
+		}
+		yapl.impl.Symboltable symtab = (yapl.impl.Symboltable) parser.symboltable;
+		try {
+			Files.createDirectories(preludeDir.toPath());
+			PreludeSnapshot.write(file, symtab, asmCode);
+			return PreludeSnapshot.map(file);
+		} catch (IOException e) {
+			return PreludeSnapshot.create(symtab, asmCode);
+		}
+	}
+
+	private static String readAsm(String path) throws IOException {
+		String code = yapl.impl.BackendMIPS.readAsmFile(path);
+		return (code == null) ? "" : code;
+	}
+
+	private static String progName(YAPL parser) {
+		return (parser == null) ? "<unknown>" : parser.progName;
+	}
+}
@@ -0,0 +1,238 @@
+package yapl.version.codegen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import yapl.lib.CompilerOptions;
+
+/**
+ * Long-running YAPL compile server, started by <code>java YAPL -server [port]</code>.
+ * <p>
+ * The server listens on a TCP port of the loopback interface and compiles
+ * each request in its own (virtual, if supported by the JVM) thread, using
+ * the reentrant {@link YaplCompiler}. This avoids JVM startup, JIT warmup,
+ * and re-reading the assembler files of predefined procedures and the
+ * run-time library for every compiled program. See {@link YaplClient} for
+ * the matching client.
+ * </p>
+ * <p>
+ * Each connection carries a single request and its response (all integers
+ * in network byte order, strings and byte arrays prefixed by their length):
+ * </p>
+ * <pre>
+ * Request  = int nOptions { string option } bytes source
+ * Response = boolean ok string progName string message long nanos bytes asm
+ * </pre>
+ * <p>
+ * The options are compiler options (see {@link yapl.lib.CompilerOptions});
+ * a request with any other option is rejected. The assembler files of
+ * predefined procedures and the run-time library are always taken from the
+ * system properties the server has been started with (see {@link YaplCompiler#YaplCompiler()}).
+ * <code>message</code> is the compiler message as printed by
+ * {@link yapl.lib.CompilerMessage}, <code>nanos</code> the time the server
+ * needed to compile the program. A request that cannot be read or compiled
+ * (e.g. because of a negative length or a missing assembler file) is answered
+ * by a response with <code>ok</code> false and an empty <code>asm</code>.
+ * </p>
+ *
+ * @version $Id$
+ */
+public class YaplServer {
+
+	/** Default TCP port of the compile server. */
+	public static final int DefaultPort = 4731;
+
+	/** Maximum number of options of a request. */
+	static final int MaxOptions = 1024;
+
+	/** Maximum length of a string or byte array on the wire. */
+	static final int MaxBytes = 64 << 20;
+
+	private final ServerSocket socket;
+	private final ExecutorService executor;
+
+	/** Compiler shared by all requests, configured by the system properties of the server. */
+	private final YaplCompiler compiler = new YaplCompiler();
+
+	/** Log stream for per-request latency and errors. */
+	private final PrintStream log;
+
+	/**
+	 * Create a compile server listening on the loopback interface.
+	 * @param port    TCP port to listen on.
+	 * @param log     where to report per-request latency.
+	 * @throws IOException if the port cannot be bound.
+	 */
+	public YaplServer(int port, PrintStream log) throws IOException {
+		this.socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.executor = newRequestExecutor();
+		this.log = log;
+	}
+
+	/**
+	 * Return an executor running each task in a new virtual thread if
+	 * supported by the JVM (Java 21 or later), otherwise in a pooled platform thread.
+	 */
+	private static ExecutorService newRequestExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/** Return the TCP port the server is listening on. */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Accept and handle requests until the server socket is closed.
+	 * @throws IOException if accepting a connection fails.
+	 */
+	public void serve() throws IOException {
+		log.println("YAPL compile server listening on port " + getPort());
+		try {
+			while (!socket.isClosed()) {
+				final Socket conn = socket.accept();
+				executor.execute(new Runnable() {
+					public void run() {
+						handle(conn);
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/** Stop accepting requests. */
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/** Handle a single connection. */
+	private void handle(Socket conn) {
+		try (Socket s = conn) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			ByteArrayOutputStream asm = new ByteArrayOutputStream();
+			YaplCompiler.Result result;
+			long start;
+			try {
+				int nOptions = in.readInt();
+				if (nOptions < 0 || nOptions > MaxOptions)
+					throw new ProtocolException("bad number of options: " + nOptions);
+				String[] options = new String[nOptions];
+				for (int i = 0; i < nOptions; i++)
+					options[i] = readString(in);
+				byte[] source = readBytes(in);
+
+				CompilerOptions compilerOptions = compilerOptions(options);
+				start = System.nanoTime();
+				result = compiler.compile(new ByteArrayInputStream(source), new PrintStream(asm),
+						compilerOptions);
+			} catch (IllegalArgumentException e) {
+				respond(out, false, "<unknown>", e.getMessage() + "\n", 0, new ByteArrayOutputStream());
+				log.println("request rejected: " + e.getMessage());
+				return;
+			} catch (IOException | RuntimeException e) {
+				respond(out, false, "<unknown>", "request failed: " + e + "\n", 0, new ByteArrayOutputStream());
+				log.println("request failed: " + e);
+				return;
+			}
+			ByteArrayOutputStream msg = new ByteArrayOutputStream();
+			PrintStream msgStream = new PrintStream(msg);
+			result.printMessage(msgStream);
+			msgStream.flush();
+			long nanos = System.nanoTime() - start;
+
+			respond(out, result.isOK(), result.getProgName(), msg.toString(), nanos, asm);
+			log.format("%s: %s (%.1f ms)%n", result.getProgName(),
+					result.isOK() ? "OK" : "ERROR " + result.getError().errorNumber(), nanos / 1e6);
+		} catch (IOException e) {
+			log.println("request failed: " + e);
+		}
+	}
+
+	private static void respond(DataOutputStream out, boolean ok, String progName,
+			String message, long nanos, ByteArrayOutputStream asm) throws IOException {
+		out.writeBoolean(ok);
+		writeString(out, progName);
+		writeString(out, message);
+		out.writeLong(nanos);
+		out.writeInt(asm.size());
+		asm.writeTo(out);
+		out.flush();
+	}
+
+	/**
+	 * Parse the request options into compiler options.
+	 * @throws IllegalArgumentException if an option is not a compiler option.
+	 */
+	private static CompilerOptions compilerOptions(String[] options) {
+		CompilerOptions compilerOptions = new CompilerOptions();
+		for (String opt : options) {
+			if (!compilerOptions.parse(opt))
+				throw new IllegalArgumentException("unsupported option: " + opt);
+		}
+		return compilerOptions;
+	}
+
+	/*--- wire format helpers, shared with YaplClient ---*/
+
+	static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] b = new byte[readLength(in)];
+		in.readFully(b);
+		return b;
+	}
+
+	/** Read the length of a string or byte array, rejecting negative or too large lengths. */
+	private static int readLength(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if (n < 0 || n > MaxBytes)
+			throw new ProtocolException("bad length: " + n);
+		return n;
+	}
+
+	/** Copy a byte array written by {@link #writeBytes} from <code>in</code> to <code>out</code>. */
+	static void copyBytes(DataInputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[8192];
+		for (int n = readLength(in); n > 0; ) {
+			int k = in.read(buf, 0, Math.min(n, buf.length));
+			if (k < 0)
+				throw new EOFException();
+			out.write(buf, 0, k);
+			n -= k;
+		}
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		writeBytes(out, s.getBytes("UTF-8"));
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		return new String(readBytes(in), "UTF-8");
+	}
+}
@@ -0,0 +1,514 @@
+# MIPS assembler code of the YAPL mark-sweep garbage collector
+# (see yapl.impl.MipsGcRuntime for the object layout)
+# $Id$
+#
+# The program provides _gcRoots and _gcMinThreshold (see yapl.impl.BackendMIPS).
+.data
+    .align 2
+_gcStackTop:    .word 0
+_gcHeapStart:   .word 0
+_gcHeapPtr:     .word 0
+_gcHeapEnd:     .word 0
+_gcFree:        .word 0             # free list, linked by the first word of each block
+_gcAllocated:   .word 0             # bytes allocated since the last collection
+_gcCollections: .word 0
+_gcFreed:       .word 0
+_gcLive:        .word 0
+_gcPauseTotal:  .word 0
+_gcPauseMax:    .word 0
+_gcMsgHeap:     .asciiz "GC: heap = "
+_gcMsgLive:     .asciiz " bytes, live = "
+_gcMsgColl:     .asciiz " bytes, collections = "
+_gcMsgFreed:    .asciiz ", freed = "
+_gcMsgPause:    .asciiz " bytes, pause = "
+_gcMsgMax:      .asciiz " ms (max "
+_gcMsgEnd:      .asciiz " ms)\n"
+_gcMsgError:    .asciiz "GC: heap memory is not contiguous\n"
+
+.text
+# int *_gcAlloc(int words, int header)
+.globl _gcAlloc
+_gcAlloc:
+    lw      $a0, 4($sp)             # entry for stack arguments
+    lw      $a1, 8($sp)
+.globl _gcAlloc_reg
+_gcAlloc_reg:
+    addiu   $sp, $sp, -16
+    sw      $ra, 12($sp)
+    sw      $s0, 8($sp)
+    sw      $s1, 4($sp)
+    sw      $s2, 0($sp)
+    move    $s0, $a0                # words
+    move    $s1, $a1                # header
+    li      $s2, 0                  # collected yet?
+    sll     $t0, $s0, 2
+    addiu   $t0, $t0, 4             # bytes including the header
+    lw      $t1, _gcAllocated
+    addu    $t1, $t1, $t0
+    sw      $t1, _gcAllocated
+_gcAlloc1:
+    la      $t1, _gcFree            # link to the current free block
+    lw      $t2, 0($t1)
+_gcAlloc2:
+    beqz    $t2, _gcAlloc5
+    lw      $t3, -4($t2)
+    srl     $t3, $t3, 3             # words of the free block
+    bge     $t3, $s0, _gcAlloc3
+    move    $t1, $t2
+    lw      $t2, 0($t2)
+    j       _gcAlloc2
+_gcAlloc3:
+    lw      $t4, 0($t2)             # next free block
+    beq     $t3, $s0, _gcAlloc4
+    sll     $t5, $s0, 2
+    addu    $t5, $t2, $t5           # split: header of the rest
+    subu    $t6, $t3, $s0
+    addiu   $t6, $t6, -1
+    sll     $t7, $t6, 3
+    ori     $t7, $t7, 4
+    sw      $t7, 0($t5)
+    beqz    $t6, _gcAlloc4          # rest is a header only
+    addiu   $t5, $t5, 4
+    sw      $t4, 0($t5)             # rest replaces the block in the free list
+    move    $t4, $t5
+_gcAlloc4:
+    sw      $t4, 0($t1)
+    sw      $s1, -4($t2)
+    move    $v0, $t2
+    sll     $t3, $s0, 2
+    addu    $t3, $t2, $t3
+_gcAllocZero:
+    beq     $t2, $t3, _gcAllocDone
+    sw      $zero, 0($t2)
+    addiu   $t2, $t2, 4
+    j       _gcAllocZero
+_gcAlloc5:
+    lw      $t2, _gcHeapPtr         # bump allocation (sbrk memory is zeroed)
+    addu    $t3, $t2, $t0
+    lw      $t4, _gcHeapEnd
+    bgt     $t3, $t4, _gcAlloc6
+    sw      $t3, _gcHeapPtr
+    sw      $s1, 0($t2)
+    addiu   $v0, $t2, 4
+    j       _gcAllocDone
+_gcAlloc6:
+    bnez    $s2, _gcAlloc7
+    lw      $t5, _gcHeapStart
+    beqz    $t5, _gcAlloc7
+    lw      $t5, _gcAllocated
+    lw      $t6, _gcLive            # threshold: live bytes after the last collection,
+    lw      $t7, _gcMinThreshold    # but at least _gcMinThreshold
+    bge     $t6, $t7, _gcAllocThreshold
+    move    $t6, $t7
+_gcAllocThreshold:
+    blt     $t5, $t6, _gcAlloc7
+    jal     _gcCollect
+    li      $s2, 1
+    sll     $t0, $s0, 2
+    addiu   $t0, $t0, 4
+    j       _gcAlloc1
+_gcAlloc7:
+    subu    $a0, $t3, $t4           # grow the heap by at least the missing bytes
+    li      $t5, 65536
+    bge     $a0, $t5, _gcAlloc8
+    move    $a0, $t5
+_gcAlloc8:
+    move    $t5, $a0
+    li      $v0, 9                  # sbrk
+    syscall
+    lw      $t6, _gcHeapStart
+    bnez    $t6, _gcAlloc9
+    sw      $v0, _gcHeapStart
+    sw      $v0, _gcHeapPtr
+    move    $t4, $v0
+_gcAlloc9:
+    bne     $v0, $t4, _gcError
+    addu    $t4, $t4, $t5
+    sw      $t4, _gcHeapEnd
+    j       _gcAlloc5
+_gcAllocDone:
+    lw      $s2, 0($sp)
+    lw      $s1, 4($sp)
+    lw      $s0, 8($sp)
+    lw      $ra, 12($sp)
+    addiu   $sp, $sp, 16
+    jr      $ra
+_gcError:
+    la      $a0, _gcMsgError
+    li      $v0, 4
+    syscall
+    li      $v0, 10
+    syscall
+
+# int *_gcAllocArray(int[] len, int dim, int nDims, int header)
+# allocates an array of arrays of dimensions dim..nDims-1, the innermost
+# ones having the given header
+.globl _gcAllocArray
+_gcAllocArray:
+    lw      $a0, 4($sp)             # entry for stack arguments
+    lw      $a1, 8($sp)
+    lw      $a2, 12($sp)
+    lw      $a3, 16($sp)
+.globl _gcAllocArray_reg
+_gcAllocArray_reg:
+    addiu   $sp, $sp, -28
+    sw      $ra, 24($sp)
+    sw      $s0, 20($sp)
+    sw      $s1, 16($sp)
+    sw      $s2, 12($sp)
+    sw      $s3, 8($sp)
+    sw      $s4, 4($sp)
+    sw      $s5, 0($sp)
+    move    $s0, $a0
+    addiu   $s1, $a1, 1             # next dimension
+    move    $s2, $a2
+    move    $s3, $a3
+    sll     $t0, $s1, 2
+    addu    $t0, $s0, $t0
+    lw      $s4, 0($t0)             # len[dim]
+    addiu   $a0, $s4, 1
+    move    $a1, $s3
+    bge     $s1, $s2, _gcAllocArray1
+    li      $a1, 26                 # array of references, 1 dimension
+_gcAllocArray1:
+    jal     _gcAlloc_reg
+    sw      $s4, 0($v0)
+    move    $s5, $v0
+    bge     $s1, $s2, _gcAllocArray3
+_gcAllocArray2:
+    beqz    $s4, _gcAllocArray3     # fill elements from the last one
+    move    $a0, $s0
+    move    $a1, $s1
+    move    $a2, $s2
+    move    $a3, $s3
+    jal     _gcAllocArray_reg
+    sll     $t0, $s4, 2
+    addu    $t0, $s5, $t0
+    sw      $v0, 0($t0)
+    addiu   $s4, $s4, -1
+    j       _gcAllocArray2
+_gcAllocArray3:
+    move    $v0, $s5
+    lw      $s5, 0($sp)
+    lw      $s4, 4($sp)
+    lw      $s3, 8($sp)
+    lw      $s2, 12($sp)
+    lw      $s1, 16($sp)
+    lw      $s0, 20($sp)
+    lw      $ra, 24($sp)
+    addiu   $sp, $sp, 28
+    jr      $ra
+
+# $v0 := number of words following the header at $a0 (changes $v1, $t8, $t9)
+_gcSize:
+    lw      $t8, 0($a0)
+    andi    $t9, $t8, 6
+    bnez    $t9, _gcSize1
+    srl     $v0, $t8, 3             # record
+    andi    $v0, $v0, 0x1fff
+    jr      $ra
+_gcSize1:
+    li      $v0, 4
+    bne     $t9, $v0, _gcSize2
+    srl     $v0, $t8, 3             # free block
+    jr      $ra
+_gcSize2:
+    andi    $v1, $t8, 0x200
+    bnez    $v1, _gcSize5
+    srl     $v1, $t8, 4             # array: product of the dimension lengths
+    andi    $v1, $v1, 31
+    addiu   $t8, $a0, 4
+    sll     $t9, $v1, 2
+    addu    $t9, $t8, $t9
+    li      $v0, 1
+_gcSize3:
+    beq     $t8, $t9, _gcSize4
+    lw      $v1, 0($t8)
+    mul     $v0, $v0, $v1
+    addiu   $t8, $t8, 4
+    j       _gcSize3
+_gcSize4:
+    subu    $t9, $t9, $a0
+    srl     $t9, $t9, 2
+    addu    $v0, $v0, $t9
+    addiu   $v0, $v0, -1            # plus the dimension length words
+    jr      $ra
+_gcSize5:
+    lw      $v0, 4($a0)             # bit array: 32 elements per word
+    addiu   $v0, $v0, 31
+    srl     $v0, $v0, 5
+    addiu   $v0, $v0, 1             # plus the length word
+    jr      $ra
+
+# mark the object with header at $a0 and push it onto the stack, if not yet marked
+# (changes $t8, $t9)
+_gcMark:
+    lw      $t8, 0($a0)
+    andi    $t9, $t8, 1
+    bnez    $t9, _gcMark1
+    ori     $t8, $t8, 1
+    sw      $t8, 0($a0)
+    addiu   $sp, $sp, -4
+    sw      $a0, 0($sp)
+_gcMark1:
+    jr      $ra
+
+# turn the heap memory from $a0 to $a1 into a free block, appended to the
+# free list at link $s5 (changes $a0, $t8, $t9)
+_gcFreeBlock:
+    subu    $t8, $a1, $a0
+    srl     $t8, $t8, 2
+    addiu   $t8, $t8, -1
+    sll     $t9, $t8, 3
+    ori     $t9, $t9, 4
+    sw      $t9, 0($a0)
+    beqz    $t8, _gcFreeBlock1
+    addiu   $a0, $a0, 4
+    sw      $zero, 0($a0)
+    sw      $a0, 0($s5)
+    move    $s5, $a0
+_gcFreeBlock1:
+    jr      $ra
+
+# void _gcCollect()
+_gcCollect:
+    addiu   $sp, $sp, -36           # save callee-saved registers, to be scanned with the stack
+    sw      $ra, 32($sp)
+    sw      $s7, 28($sp)
+    sw      $s6, 24($sp)
+    sw      $s5, 20($sp)
+    sw      $s4, 16($sp)
+    sw      $s3, 12($sp)
+    sw      $s2, 8($sp)
+    sw      $s1, 4($sp)
+    sw      $s0, 0($sp)
+    move    $s0, $sp
+    li      $v0, 30                 # system time
+    syscall
+    move    $s7, $a0
+    lw      $s1, _gcHeapStart
+    lw      $s2, _gcHeapPtr
+    lw      $t0, _gcStackTop
+    move    $t1, $s0
+    move    $s3, $s0                # candidates are stored below $s0
+_gcScan:
+    bge     $t1, $t0, _gcScan1
+    lw      $t2, 0($t1)
+    addiu   $t1, $t1, 4
+    ble     $t2, $s1, _gcScan
+    bgt     $t2, $s2, _gcScan
+    addiu   $s3, $s3, -4
+    sw      $t2, 0($s3)
+    j       _gcScan
+_gcScan1:
+    move    $sp, $s3
+    addiu   $t0, $s3, 4             # insertion sort of the candidates
+_gcSort:
+    bge     $t0, $s0, _gcSort3
+    lw      $t2, 0($t0)
+    move    $t1, $t0
+_gcSort1:
+    beq     $t1, $s3, _gcSort2
+    lw      $t3, -4($t1)
+    ble     $t3, $t2, _gcSort2
+    sw      $t3, 0($t1)
+    addiu   $t1, $t1, -4
+    j       _gcSort1
+_gcSort2:
+    sw      $t2, 0($t1)
+    addiu   $t0, $t0, 4
+    j       _gcSort
+_gcSort3:
+    move    $s4, $s1                # walk the heap, marking objects hit by candidates
+    move    $s5, $s3
+_gcStack:
+    bge     $s4, $s2, _gcGlobals
+    move    $a0, $s4
+    jal     _gcSize
+    sll     $v0, $v0, 2
+    addu    $s6, $s4, $v0
+    addiu   $s6, $s6, 4             # next header
+_gcStack1:
+    bge     $s5, $s0, _gcGlobals
+    lw      $t0, 0($s5)
+    bgt     $t0, $s4, _gcStack2
+    addiu   $s5, $s5, 4
+    j       _gcStack1
+_gcStack2:
+    bgt     $t0, $s6, _gcStack3
+    lw      $t1, 0($s4)
+    andi    $t1, $t1, 6
+    li      $t2, 4
+    beq     $t1, $t2, _gcStack3     # free block
+    move    $a0, $s4
+    jal     _gcMark
+_gcStack3:
+    move    $s4, $s6
+    j       _gcStack
+_gcGlobals:
+    la      $t0, _gcRoots
+    lw      $t1, 0($t0)
+    la      $t3, staticData
+_gcGlobals1:
+    beqz    $t1, _gcTrace
+    addiu   $t0, $t0, 4
+    addiu   $t1, $t1, -1
+    lw      $t2, 0($t0)
+    addu    $t2, $t3, $t2
+    lw      $a0, 0($t2)
+    beqz    $a0, _gcGlobals1
+    addiu   $a0, $a0, -4
+    jal     _gcMark
+    j       _gcGlobals1
+_gcTrace:
+    beq     $sp, $s3, _gcSweep      # mark stack empty
+    lw      $s4, 0($sp)
+    addiu   $sp, $sp, 4
+    lw      $t0, 0($s4)
+    andi    $t1, $t0, 6
+    bnez    $t1, _gcTrace1
+    srl     $s5, $t0, 16            # record: reference fields come first
+    addiu   $s6, $s4, 4
+    j       _gcTrace2
+_gcTrace1:
+    andi    $t1, $t0, 8
+    beqz    $t1, _gcTrace           # array without references
+    move    $a0, $s4
+    jal     _gcSize
+    srl     $t0, $t0, 4
+    andi    $t0, $t0, 31
+    subu    $s5, $v0, $t0
+    sll     $t0, $t0, 2
+    addu    $s6, $s4, $t0
+    addiu   $s6, $s6, 4             # first element
+_gcTrace2:
+    beqz    $s5, _gcTrace
+    lw      $a0, 0($s6)
+    addiu   $s6, $s6, 4
+    addiu   $s5, $s5, -1
+    beqz    $a0, _gcTrace2
+    addiu   $a0, $a0, -4
+    jal     _gcMark
+    j       _gcTrace2
+_gcSweep:
+    move    $sp, $s0
+    la      $s5, _gcFree
+    sw      $zero, 0($s5)
+    move    $s4, $s1
+    li      $s6, 0                  # start of the current free run
+    li      $t4, 0                  # freed bytes
+    li      $t5, 0                  # live bytes
+_gcSweep1:
+    bge     $s4, $s2, _gcSweep4
+    move    $a0, $s4
+    jal     _gcSize
+    sll     $v0, $v0, 2
+    addu    $t1, $s4, $v0
+    addiu   $t1, $t1, 4             # next header
+    subu    $t2, $t1, $s4
+    lw      $t0, 0($s4)
+    andi    $t3, $t0, 1
+    beqz    $t3, _gcSweep2
+    xori    $t0, $t0, 1             # live object: clear mark
+    sw      $t0, 0($s4)
+    addu    $t5, $t5, $t2
+    beqz    $s6, _gcSweep3
+    move    $a0, $s6
+    move    $a1, $s4
+    jal     _gcFreeBlock
+    li      $s6, 0
+    j       _gcSweep3
+_gcSweep2:
+    andi    $t3, $t0, 6
+    li      $t6, 4
+    beq     $t3, $t6, _gcSweep2a
+    addu    $t4, $t4, $t2           # unreachable object
+_gcSweep2a:
+    bnez    $s6, _gcSweep3
+    move    $s6, $s4
+_gcSweep3:
+    move    $s4, $t1
+    j       _gcSweep1
+_gcSweep4:
+    beqz    $s6, _gcDone
+    move    $a0, $s6
+    move    $a1, $s2
+    jal     _gcFreeBlock
+_gcDone:
+    lw      $t0, _gcCollections
+    addiu   $t0, $t0, 1
+    sw      $t0, _gcCollections
+    lw      $t0, _gcFreed
+    addu    $t0, $t0, $t4
+    sw      $t0, _gcFreed
+    sw      $t5, _gcLive
+    sw      $zero, _gcAllocated
+    li      $v0, 30
+    syscall
+    subu    $t0, $a0, $s7           # pause in ms
+    lw      $t1, _gcPauseTotal
+    addu    $t1, $t1, $t0
+    sw      $t1, _gcPauseTotal
+    lw      $t1, _gcPauseMax
+    bge     $t1, $t0, _gcDone2
+    sw      $t0, _gcPauseMax
+_gcDone2:
+    lw      $s0, 0($sp)
+    lw      $s1, 4($sp)
+    lw      $s2, 8($sp)
+    lw      $s3, 12($sp)
+    lw      $s4, 16($sp)
+    lw      $s5, 20($sp)
+    lw      $s6, 24($sp)
+    lw      $s7, 28($sp)
+    lw      $ra, 32($sp)
+    addiu   $sp, $sp, 36
+    jr      $ra
+
+# void _gcStats()
+.globl _gcStats
+.globl _gcStats_reg
+_gcStats:
+_gcStats_reg:
+    la      $a0, _gcMsgHeap
+    li      $v0, 4
+    syscall
+    lw      $t0, _gcHeapEnd
+    lw      $t1, _gcHeapStart
+    subu    $a0, $t0, $t1
+    li      $v0, 1
+    syscall
+    la      $a0, _gcMsgLive
+    li      $v0, 4
+    syscall
+    lw      $a0, _gcLive
+    li      $v0, 1
+    syscall
+    la      $a0, _gcMsgColl
+    li      $v0, 4
+    syscall
+    lw      $a0, _gcCollections
+    li      $v0, 1
+    syscall
+    la      $a0, _gcMsgFreed
+    li      $v0, 4
+    syscall
+    lw      $a0, _gcFreed
+    li      $v0, 1
+    syscall
+    la      $a0, _gcMsgPause
+    li      $v0, 4
+    syscall
+    lw      $a0, _gcPauseTotal
+    li      $v0, 1
+    syscall
+    la      $a0, _gcMsgMax
+    li      $v0, 4
+    syscall
+    lw      $a0, _gcPauseMax
+    li      $v0, 1
+    syscall
+    la      $a0, _gcMsgEnd
+    li      $v0, 4
+    syscall
+    jr      $ra
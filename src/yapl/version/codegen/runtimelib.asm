@@ -1,85 +1,106 @@
 .text
 .globl _allocArray
 _allocArray:
+    lw  	$a0, 4($sp)	# entry for stack arguments
+    lw  	$a1, 8($sp)
+    lw  	$a2, 12($sp)
+.globl _allocArray_reg
+_allocArray_reg:
     addi	$sp, $sp, -8
     sw  	$fp, 8($sp)
     addi	$fp, $sp, 8
     sw  	$ra, -4($fp)
-    addi	$sp, $sp, -4	# a (offset = -8)
-    addi	$sp, $sp, -4	# i (offset = -12)
-    lw  	$8, 4($30)
-    lw  	$9, 8($30)
-    addi	$9, $9, 1
+    addi	$sp, $sp, -4	# spill slots
+    sw  	$16, -8($fp)	# callee-saved
+    sw  	$a0, 4($fp)
+    sw  	$a1, 8($fp)
+    sw  	$a2, 12($fp)
+    addi	$sp, $sp, -4	# a (offset = -12)
+    addi	$sp, $sp, -4	# i (offset = -16)
+    lw  	$8, 4($fp)
+    lw  	$9, 8($fp)
+    addiu	$9, $9, 1
     sll 	$9, $9, 2
-    add 	$8, $8, $9
+    addu	$8, $8, $9
     lw  	$8, 0($8)
     sw  	$8, 0($23)
-    addi	$sp, $sp, -4	# saveRegs
-    sw  	$8, -16($fp)
-    lw  	$4, 0($23)
-    addi	$4, $4, 1
-    sll 	$4, $4, 2
-    li  	$2, 9
+    lw  	$8, 0($23)
+    addiu	$8, $8, 1
+    sll 	$8, $8, 2
+    lw  	$9, 8($23)
+    addu	$10, $9, $8
+    lw  	$11, 12($23)
+    ble 	$10, $11, _allocArray_heap0
+    addi	$sp, $sp, -16	# saveRegs
+    li  	$a0, 65536
+    bge 	$a0, $8, _allocArray_heap0_chunk
+    move	$a0, $8
+_allocArray_heap0_chunk:
+    li  	$v0, 9
     syscall		# sbrk
-    lw  	$4, 0($23)
-    sw  	$4, 0($2)
-    move	$8, $v0
-    addi	$sp, $sp, 4	# restoreRegs complete
-    la  	$9, -8($30)
+    move	$9, $v0
+    addu	$11, $v0, $a0
+    sw  	$11, 12($23)
+    addi	$sp, $sp, 16	# restoreRegs complete
+    addu	$10, $9, $8
+_allocArray_heap0:
+    sw  	$10, 8($23)
+    lw  	$8, 0($23)
     sw  	$8, 0($9)
-    lw  	$8, 8($30)
+    la  	$8, -12($fp)
+    sw  	$9, 0($8)
+    lw  	$8, 8($fp)
     li  	$9, 1
     add 	$8, $8, $9
-    la  	$9, 8($30)
+    la  	$9, 8($fp)
     sw  	$8, 0($9)
-    lw  	$8, 8($30)
-    lw  	$9, 12($30)
+    lw  	$8, 8($fp)
+    lw  	$9, 12($fp)
     slt 	$8, $8, $9
     beqz	$8, LR0
-    li  	$8, 0
-    la  	$9, -12($30)
-    sw  	$8, 0($9)
+    la  	$8, -16($fp)
+    li  	$9, 0
+    sw  	$9, 0($8)
 LR1:
-    lw  	$8, -12($30)
-    lw  	$9, -8($30)
-    lw  	$9, 0($9)
-    slt 	$8, $8, $9
-    beqz	$8, LR2
-    lw  	$8, -8($30)
-    lw  	$9, -12($30)
-    addi	$9, $9, 1
-    sll 	$9, $9, 2
-    add 	$8, $8, $9
-    lw  	$9, 4($30)
-    lw  	$10, 8($30)
-    lw  	$11, 12($30)
-    addi	$sp, $sp, -28	# saveRegs
-    sw  	$8, -16($fp)
-    sw  	$9, -20($fp)
-    sw  	$10, -24($fp)
-    sw  	$11, -28($fp)
-    sw  	$9, 4($sp)	# arg 0
-    sw  	$10, 8($sp)	# arg 1
-    sw  	$11, 12($sp)	# arg 2
-    jal 	_allocArray
-    add 	$9, $v0, $zero
+    lw  	$8, -12($fp)
+    lw  	$8, 0($8)
+    lw  	$9, -16($fp)
+    slt 	$9, $9, $8
+    beqz	$9, LR2
+    lw  	$16, -12($fp)
+    lw  	$8, -16($fp)
+    addiu	$8, $8, 1
+    sll 	$8, $8, 2
+    addu	$16, $16, $8
+    addi	$sp, $sp, -16	# saveRegs
+    lw  	$8, 4($fp)
+    move	$9, $8	# arg 0
+    lw  	$8, 8($fp)
+    move	$10, $8	# arg 1
+    lw  	$8, 12($fp)
+    move	$11, $8	# arg 2
+    move	$a0, $9
+    move	$a1, $10
+    move	$a2, $11
+    jal 	_allocArray_reg
+    add 	$8, $v0, $zero
+    addi	$sp, $sp, 16	# restoreRegs complete
+    sw  	$8, 0($16)
     lw  	$8, -16($fp)
-    addi	$sp, $sp, 28	# restoreRegs complete
-    sw  	$9, 0($8)
-    lw  	$8, -12($30)
     li  	$9, 1
     add 	$8, $8, $9
-    la  	$9, -12($30)
+    la  	$9, -16($fp)
     sw  	$8, 0($9)
     j   	LR1
 LR2:
     j   	LR3
 LR0:
 LR3:
-    lw  	$8, -8($30)
+    lw  	$8, -12($fp)
     move	$v0, $8
     j   	_allocArray_ret
 _allocArray_ret:
+    lw  	$16, -8($fp)
     lw  	$ra, -4($fp)
     move	$sp, $fp
     lw  	$fp, 0($fp)